@@ -0,0 +1,15 @@
+package cp1.base;
+
+/**
+ * An operation that commutes with all operations of its class, like
+ * an increment of a counter. Operations of the same class performed
+ * by different transactions on the same resource may be executed
+ * concurrently, so both execute and undo have to be atomic with respect
+ * to each other. Undoing an operation must not depend on operations
+ * of the class performed after it. A bounded operation, as in escrow,
+ * has to keep its bound even if operations of other transactions
+ * are undone later.
+ */
+public abstract class CommutativeResourceOperation extends ResourceOperation {
+
+}
@@ -0,0 +1,15 @@
+package cp1.base;
+
+/**
+ * An operation that only reads the state of a resource.
+ * Read-only operations performed by different transactions
+ * on the same resource may be executed concurrently.
+ */
+public abstract class ReadOnlyResourceOperation extends ResourceOperation {
+
+	@Override
+	public void undo(Resource r) {
+		// Nothing was changed, nothing to undo
+	}
+
+}
@@ -0,0 +1,176 @@
+/* Measures how long it takes to resolve a deadlock of two transactions while many threads are alive.
+ * The older transaction closes the cycle and the younger one gets aborted and interrupted. The latency is
+ * measured from the older one calling operateOnResourceInCurrentTransaction until it gets the resource.
+ *
+ * Usage: java cp1.benchmarks.AbortLatencyBenchmark [number of idle threads] [number of repetitions]
+ */
+package cp1.benchmarks;
+
+import cp1.base.*;
+import cp1.solution.TransactionManagerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+public class AbortLatencyBenchmark {
+
+    private final static int DEFAULT_IDLE_THREADS = 1000;
+    private final static int DEFAULT_REPS = 1000;
+    private final static int WARMUP_REPS = 200;
+
+    public static void main(String[] args) throws InterruptedException {
+        int idleThreads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_IDLE_THREADS;
+        int reps = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_REPS;
+
+        CountDownLatch finish = new CountDownLatch(1);
+        for (int i = 0; i < idleThreads; i++) {
+            Thread idle = new Thread(() -> {
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    // Just finish
+                }
+            });
+            idle.setDaemon(true);
+            idle.start();
+        }
+
+        run(reps / 5 + WARMUP_REPS); // Warm up
+        long[] latencies = run(reps);
+        finish.countDown();
+
+        Arrays.sort(latencies);
+        System.out.printf("Live threads: %d, deadlocks resolved: %d%n", Thread.activeCount(), reps);
+        System.out.printf("Abort latency [us]: median %.1f, p99 %.1f, max %.1f%n",
+                latencies[reps / 2] / 1000.0,
+                latencies[reps * 99 / 100] / 1000.0,
+                latencies[reps - 1] / 1000.0);
+    }
+
+    /**
+     * Creates a deadlock of two transactions reps times.
+     *
+     * @return Latencies of resolving the deadlocks in nanoseconds.
+     */
+    private static long[] run(int reps) throws InterruptedException {
+        ResourceImpl a = new ResourceImpl(new ResourceIdImpl(0));
+        ResourceImpl b = new ResourceImpl(new ResourceIdImpl(1));
+        List<Resource> resources = Arrays.asList(a, b);
+        Thread[] older = new Thread[1];
+        // Transaction of the older thread always starts earlier, so the younger one is the victim
+        TransactionManager tm = TransactionManagerFactory.newTM(resources,
+                () -> Thread.currentThread() == older[0] ? 0 : 1);
+
+        long[] latencies = new long[reps];
+        Semaphore olderLocked = new Semaphore(0);
+        Semaphore youngerLocked = new Semaphore(0);
+
+        Thread younger = new Thread(() -> {
+            for (int i = 0; i < reps; i++) {
+                olderLocked.acquireUninterruptibly();
+                try {
+                    tm.startTransaction();
+                    tm.operateOnResourceInCurrentTransaction(a.getId(), ResourceOpImpl.get());
+                    youngerLocked.release();
+                    tm.operateOnResourceInCurrentTransaction(b.getId(), ResourceOpImpl.get());
+                    throw new AssertionError("Younger transaction was not aborted");
+                } catch (ActiveTransactionAborted e) {
+                    // Expected
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                } finally {
+                    tm.rollbackCurrentTransaction();
+                }
+                Thread.interrupted(); // Clears the interrupt that came with the abort
+            }
+        });
+
+        older[0] = new Thread(() -> {
+            for (int i = 0; i < reps; i++) {
+                try {
+                    tm.startTransaction();
+                    tm.operateOnResourceInCurrentTransaction(b.getId(), ResourceOpImpl.get());
+                    olderLocked.release();
+                    youngerLocked.acquire();
+                    while (younger.getState() != Thread.State.WAITING) {
+                        Thread.onSpinWait();
+                    }
+                    long start = System.nanoTime();
+                    tm.operateOnResourceInCurrentTransaction(a.getId(), ResourceOpImpl.get()); // Closes the cycle
+                    latencies[i] = System.nanoTime() - start;
+                    tm.commitCurrentTransaction();
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                } finally {
+                    tm.rollbackCurrentTransaction();
+                }
+            }
+        });
+
+        older[0].start();
+        younger.start();
+        older[0].join();
+        younger.join();
+        return latencies;
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ResourceIdImpl implements ResourceId {
+        private final int value;
+
+        private ResourceIdImpl(int value) {
+            this.value = value;
+        }
+        @Override
+        public int compareTo(ResourceId other) {
+            return Integer.compare(this.value, ((ResourceIdImpl)other).value);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ResourceIdImpl && this.value == ((ResourceIdImpl)obj).value;
+        }
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(this.value);
+        }
+        @Override
+        public String toString() {
+            return "R" + this.value;
+        }
+    }
+
+    private static final class ResourceImpl extends Resource {
+        private volatile long value = 0;
+        public ResourceImpl(ResourceId id) {
+            super(id);
+        }
+        public void incValue() {
+            this.value++;
+        }
+        public void decValue() {
+            this.value--;
+        }
+    }
+
+    private static final class ResourceOpImpl extends ResourceOperation {
+        private final static ResourceOpImpl singleton = new ResourceOpImpl();
+        public static ResourceOperation get() {
+            return singleton;
+        }
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).incValue();
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).decValue();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/* Measures memory allocated by the manager in steady state. A single thread runs transactions
+ * of a given length, both committed and rolled back, and we read the number of bytes it allocated
+ * from the ThreadMXBean. Bytes per operation are the difference between long and empty transactions
+ * divided by the number of operations, so the cost of starting a transaction doesn't count in.
+ *
+ * Usage: java cp1.benchmarks.AllocationBenchmark [operations per transaction] [transactions]
+ */
+package cp1.benchmarks;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.Transaction;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AllocationBenchmark {
+
+    private final static int DEFAULT_OPERATIONS = 100;
+    private final static int DEFAULT_TRANSACTIONS = 100000;
+
+    private final static com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_OPERATIONS;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TRANSACTIONS;
+
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < operations; i++) {
+            resources.add(new ResourceImpl(new ResourceIdImpl(i)));
+        }
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(resources, System::nanoTime);
+
+        for (int round = 0; round < 3; round++) { // First rounds warm up
+            for (boolean commit : new boolean[]{true, false}) {
+                double empty = allocatedPerTransaction(tm, resources, 0, transactions, commit);
+                double full = allocatedPerTransaction(tm, resources, operations, transactions, commit);
+                System.out.printf("Round %d, %-8s: %.1f bytes per transaction, %.2f bytes per operation%n",
+                        round, commit ? "commit" : "rollback", empty, (full - empty) / operations);
+            }
+        }
+    }
+
+    private static double allocatedPerTransaction(ImplementedTransactionManager tm, List<Resource> resources,
+                                                  int operations, int transactions, boolean commit)
+            throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int t = 0; t < transactions; t++) {
+            Transaction transaction = tm.begin();
+            for (int i = 0; i < operations; i++) {
+                transaction.operate(resources.get(i).getId(), ResourceOpImpl.get());
+            }
+            if (commit) {
+                transaction.commit();
+            } else {
+                transaction.rollback();
+            }
+        }
+        return (threadBean.getThreadAllocatedBytes(threadId) - before) / (double) transactions;
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ResourceIdImpl implements ResourceId {
+        private final int value;
+
+        private ResourceIdImpl(int value) {
+            this.value = value;
+        }
+        @Override
+        public int compareTo(ResourceId other) {
+            return Integer.compare(this.value, ((ResourceIdImpl)other).value);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ResourceIdImpl && this.value == ((ResourceIdImpl)obj).value;
+        }
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(this.value);
+        }
+        @Override
+        public String toString() {
+            return "R" + this.value;
+        }
+    }
+
+    private static final class ResourceImpl extends Resource {
+        private long value = 0;
+        public ResourceImpl(ResourceId id) {
+            super(id);
+        }
+    }
+
+    private static final class ResourceOpImpl extends ResourceOperation {
+        private final static ResourceOpImpl singleton = new ResourceOpImpl();
+        public static ResourceOperation get() {
+            return singleton;
+        }
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).value++;
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).value--;
+        }
+    }
+}
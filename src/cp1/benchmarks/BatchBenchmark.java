@@ -0,0 +1,111 @@
+/* Compares the cost of an operation performed with operateOnResourceInCurrentTransaction
+ * and with operateOnResourcesInCurrentTransaction in transactions touching many resources.
+ * A single thread runs the transactions, so the numbers show the overhead of the manager.
+ *
+ * Usage: java cp1.benchmarks.BatchBenchmark [resources per transaction] [transactions]
+ */
+package cp1.benchmarks;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class BatchBenchmark {
+
+    private final static int DEFAULT_RESOURCES = 100;
+    private final static int DEFAULT_TRANSACTIONS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int resourcesNum = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RESOURCES;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TRANSACTIONS;
+
+        List<Resource> resources = new ArrayList<>();
+        List<Map.Entry<ResourceId, ResourceOperation>> batch = new ArrayList<>();
+        for (int i = 0; i < resourcesNum; i++) {
+            Resource r = new ResourceImpl(new ResourceIdImpl(i));
+            resources.add(r);
+            batch.add(new AbstractMap.SimpleImmutableEntry<>(r.getId(), ResourceOpImpl.get()));
+        }
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(resources, System::nanoTime);
+
+        for (int round = 0; round < 3; round++) { // First rounds warm up
+            long start = System.nanoTime();
+            for (int t = 0; t < transactions; t++) {
+                tm.startTransaction();
+                for (Map.Entry<ResourceId, ResourceOperation> entry : batch) {
+                    tm.operateOnResourceInCurrentTransaction(entry.getKey(), entry.getValue());
+                }
+                tm.commitCurrentTransaction();
+            }
+            long single = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int t = 0; t < transactions; t++) {
+                tm.startTransaction();
+                tm.operateOnResourcesInCurrentTransaction(batch);
+                tm.commitCurrentTransaction();
+            }
+            long batched = System.nanoTime() - start;
+
+            long operations = (long) transactions * resourcesNum;
+            System.out.printf("Round %d: one by one %.1f ns/op, batch %.1f ns/op%n",
+                    round, single / (double) operations, batched / (double) operations);
+        }
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ResourceIdImpl implements ResourceId {
+        private final int value;
+
+        private ResourceIdImpl(int value) {
+            this.value = value;
+        }
+        @Override
+        public int compareTo(ResourceId other) {
+            return Integer.compare(this.value, ((ResourceIdImpl)other).value);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ResourceIdImpl && this.value == ((ResourceIdImpl)obj).value;
+        }
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(this.value);
+        }
+        @Override
+        public String toString() {
+            return "R" + this.value;
+        }
+    }
+
+    private static final class ResourceImpl extends Resource {
+        private long value = 0;
+        public ResourceImpl(ResourceId id) {
+            super(id);
+        }
+    }
+
+    private static final class ResourceOpImpl extends ResourceOperation {
+        private final static ResourceOpImpl singleton = new ResourceOpImpl();
+        public static ResourceOperation get() {
+            return singleton;
+        }
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).value++;
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).value--;
+        }
+    }
+}
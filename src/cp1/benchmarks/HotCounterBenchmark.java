@@ -0,0 +1,144 @@
+/* Measures throughput of transactions incrementing one hot counter. Each transaction increments
+ * the counter and then pauses for a while, holding its lock, like a transaction waiting for I/O
+ * or for other resources would. We compare increments declared as ordinary operations, which lock the
+ * counter exclusively, with ones declared commutative, which hold it together.
+ *
+ * Usage: java cp1.benchmarks.HotCounterBenchmark [threads] [seconds] [microseconds of pause]
+ */
+package cp1.benchmarks;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.Transaction;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class HotCounterBenchmark {
+
+    private final static int DEFAULT_THREADS = 4;
+    private final static int DEFAULT_SECONDS = 5;
+    private final static int DEFAULT_PAUSE = 50;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threadsNum = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+        long pause = TimeUnit.MICROSECONDS.toNanos(args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PAUSE);
+
+        for (int round = 0; round < 2; round++) { // First round warms up
+            int time = round == 0 ? 1 : seconds;
+            run("exclusive", new IncrementOpImpl(), threadsNum, time, pause);
+            run("commutative", new CommutativeIncrementOpImpl(), threadsNum, time, pause);
+        }
+    }
+
+    private static void run(String name, ResourceOperation increment, int threadsNum, int seconds, long pause)
+            throws InterruptedException {
+        ResourceImpl counter = new ResourceImpl(new ResourceIdImpl(0));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Collections.singletonList(counter), System::nanoTime);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        long[] commits = new long[threadsNum];
+
+        Thread[] threads = new Thread[threadsNum];
+        for (int t = 0; t < threadsNum; t++) {
+            int me = t;
+            threads[t] = new Thread(() -> {
+                while (!stop.get()) {
+                    Transaction transaction = null;
+                    try {
+                        transaction = tm.begin();
+                        transaction.operate(counter.getId(), increment);
+                        LockSupport.parkNanos(pause);
+                        transaction.commit();
+                        commits[me]++;
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    } finally {
+                        if (transaction != null) {
+                            transaction.rollback();
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long totalCommits = Arrays.stream(commits).sum();
+        if (counter.value.get() != totalCommits) {
+            throw new AssertionError("Counter is " + counter.value.get() + " after " + totalCommits + " commits");
+        }
+        System.out.printf("%-11s %3ds: %9.0f commits/s%n", name, seconds, totalCommits / (double) seconds);
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ResourceIdImpl implements ResourceId {
+        private final int value;
+
+        private ResourceIdImpl(int value) {
+            this.value = value;
+        }
+        @Override
+        public int compareTo(ResourceId other) {
+            return Integer.compare(this.value, ((ResourceIdImpl)other).value);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ResourceIdImpl && this.value == ((ResourceIdImpl)obj).value;
+        }
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(this.value);
+        }
+        @Override
+        public String toString() {
+            return "R" + this.value;
+        }
+    }
+
+    private static final class ResourceImpl extends Resource {
+        private final AtomicLong value = new AtomicLong(0); // Changed by concurrent commutative operations
+        public ResourceImpl(ResourceId id) {
+            super(id);
+        }
+    }
+
+    private static final class IncrementOpImpl extends ResourceOperation {
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).value.incrementAndGet();
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).value.decrementAndGet();
+        }
+    }
+
+    private static final class CommutativeIncrementOpImpl extends CommutativeResourceOperation {
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).value.incrementAndGet();
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).value.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/* Compares deadlock policies under contention. Every thread repeatedly runs short transactions
+ * that increment a few random resources in random order, retrying aborted ones. For each policy
+ * we print committed transactions per second, number of aborts and latency of committed transactions
+ * including their retries. With TIMEOUT policy we also print how many of the aborted transactions
+ * were not in a deadlock. Aborted transactions are retried either as new transactions or, with the last
+ * argument set to true, with restartTransaction(), which keeps their start time.
+ *
+ * Usage: java cp1.benchmarks.PolicyBenchmark [threads] [resources] [resources per transaction] [seconds per policy]
+ *        [keep start time]
+ */
+package cp1.benchmarks;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.ImplementedTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PolicyBenchmark {
+
+    private final static int DEFAULT_THREADS = 16;
+    private final static int DEFAULT_RESOURCES = 64;
+    private final static int DEFAULT_RESOURCES_PER_TRANSACTION = 4;
+    private final static int DEFAULT_SECONDS = 5;
+    private final static long WAIT_TIMEOUT_MICROS = 2000; // With TIMEOUT policy
+    private final static long TIMEOUT_CHECK_INTERVAL_MICROS = 500;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        int resources = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RESOURCES;
+        int perTransaction = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RESOURCES_PER_TRANSACTION;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_SECONDS;
+        boolean keepStartTime = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            run(policy, threads, resources, perTransaction, 1, keepStartTime); // Warm up
+            run(policy, threads, resources, perTransaction, seconds, keepStartTime);
+        }
+    }
+
+    private static void run(DeadlockPolicy policy, int threadsNum, int resourcesNum, int perTransaction, int seconds,
+                            boolean keepStartTime) throws InterruptedException {
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < resourcesNum; i++) {
+            resources.add(new ResourceImpl(new ResourceIdImpl(i)));
+        }
+        // Transactions start at System.nanoTime(), so the threshold of waiting is in nanoseconds
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(resources, System::nanoTime, policy,
+                TIMEOUT_CHECK_INTERVAL_MICROS, TimeUnit.MICROSECONDS, TimeUnit.MICROSECONDS.toNanos(WAIT_TIMEOUT_MICROS));
+        AtomicBoolean stop = new AtomicBoolean(false);
+        long[] commits = new long[threadsNum];
+        long[] aborts = new long[threadsNum];
+        int[] maxRetries = new int[threadsNum];
+        List<long[]> latencies = new ArrayList<>();
+
+        Thread[] threads = new Thread[threadsNum];
+        for (int t = 0; t < threadsNum; t++) {
+            int me = t;
+            long[] myLatencies = new long[1 << 18];
+            latencies.add(myLatencies);
+            threads[t] = new Thread(() -> {
+                while (!stop.get()) {
+                    long start = System.nanoTime();
+                    boolean committed = false;
+                    boolean retry = false;
+                    while (!committed && !stop.get()) {
+                        try {
+                            if (retry && keepStartTime) {
+                                tm.restartTransaction();
+                                maxRetries[me] = Math.max(maxRetries[me], tm.getCurrentTransactionRetryCount());
+                            } else {
+                                tm.startTransaction();
+                            }
+                            retry = true;
+                            for (int i = 0; i < perTransaction; i++) {
+                                ResourceId rid = resources.get(ThreadLocalRandom.current().nextInt(resourcesNum)).getId();
+                                tm.operateOnResourceInCurrentTransaction(rid, ResourceOpImpl.get());
+                            }
+                            tm.commitCurrentTransaction();
+                            committed = true;
+                        } catch (ActiveTransactionAborted | InterruptedException e) {
+                            aborts[me]++;
+                        } catch (Exception e) {
+                            throw new AssertionError(e);
+                        } finally {
+                            tm.rollbackCurrentTransaction();
+                            Thread.interrupted(); // Clears the interrupt that came with the abort
+                        }
+                    }
+                    if (committed && commits[me] < myLatencies.length) {
+                        myLatencies[(int) commits[me]] = System.nanoTime() - start;
+                    }
+                    if (committed) {
+                        commits[me]++;
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long totalCommits = Arrays.stream(commits).sum();
+        long totalAborts = Arrays.stream(aborts).sum();
+        long[] all = new long[(int) Math.min(totalCommits, Integer.MAX_VALUE)];
+        int filled = 0;
+        for (int t = 0; t < threadsNum; t++) {
+            int n = (int) Math.min(commits[t], latencies.get(t).length);
+            System.arraycopy(latencies.get(t), 0, all, filled, n);
+            filled += n;
+        }
+        all = Arrays.copyOf(all, filled);
+        Arrays.sort(all);
+        if (filled > 0) {
+            System.out.printf("%-20s %3ds: %9.0f commits/s, %8d aborts, latency [us]: median %8.1f, p99 %9.1f, p99.9 %9.1f%s%n",
+                    policy, seconds, totalCommits / (double) seconds, totalAborts,
+                    all[filled / 2] / 1000.0, all[(int) (filled * 0.99)] / 1000.0, all[(int) (filled * 0.999)] / 1000.0,
+                    keepStartTime ? ", most retries " + Arrays.stream(maxRetries).max().getAsInt() : "");
+        }
+        if (policy == DeadlockPolicy.TIMEOUT) {
+            System.out.printf("%-20s %3ds: %8d timeout aborts, %8d of them not in a deadlock%n",
+                    policy, seconds, tm.getTimeoutAborts(), tm.getFalseTimeoutAborts());
+        }
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ResourceIdImpl implements ResourceId {
+        private final int value;
+
+        private ResourceIdImpl(int value) {
+            this.value = value;
+        }
+        @Override
+        public int compareTo(ResourceId other) {
+            return Integer.compare(this.value, ((ResourceIdImpl)other).value);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ResourceIdImpl && this.value == ((ResourceIdImpl)obj).value;
+        }
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(this.value);
+        }
+        @Override
+        public String toString() {
+            return "R" + this.value;
+        }
+    }
+
+    private static final class ResourceImpl extends Resource {
+        private volatile long value = 0;
+        public ResourceImpl(ResourceId id) {
+            super(id);
+        }
+    }
+
+    private static final class ResourceOpImpl extends ResourceOperation {
+        private final static ResourceOpImpl singleton = new ResourceOpImpl();
+        public static ResourceOperation get() {
+            return singleton;
+        }
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).value++;
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).value--;
+        }
+    }
+}
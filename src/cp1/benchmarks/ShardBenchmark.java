@@ -0,0 +1,152 @@
+/* Compares throughput of the manager and the sharded manager with various numbers of shards.
+ * Every thread repeatedly runs short transactions that increment a few random resources in the order
+ * of their ids, so transactions wait for each other but don't deadlock. Transactions of a thread use
+ * resources of one shard only, unless the last argument is true, so threads mostly use different shards.
+ *
+ * Usage: java cp1.benchmarks.ShardBenchmark [threads] [resources] [resources per transaction] [seconds]
+ *        [spanning shards]
+ */
+package cp1.benchmarks;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.TransactionManagerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ShardBenchmark {
+
+    private final static int DEFAULT_THREADS = 16;
+    private final static int DEFAULT_RESOURCES = 256;
+    private final static int DEFAULT_RESOURCES_PER_TRANSACTION = 4;
+    private final static int DEFAULT_SECONDS = 5;
+    private final static int[] SHARDS = {1, 2, 4, 8, 16};
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        int resources = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RESOURCES;
+        int perTransaction = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RESOURCES_PER_TRANSACTION;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_SECONDS;
+        boolean spanning = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+        for (int shards : SHARDS) {
+            run(shards, threads, resources, perTransaction, 1, spanning); // Warm up
+            run(shards, threads, resources, perTransaction, seconds, spanning);
+        }
+    }
+
+    private static void run(int shards, int threadsNum, int resourcesNum, int perTransaction, int seconds,
+                            boolean spanning) throws InterruptedException {
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < resourcesNum; i++) {
+            resources.add(new ResourceImpl(new ResourceIdImpl(i)));
+        }
+        TransactionManager tm = shards == 1
+                ? TransactionManagerFactory.newTM(resources, System::nanoTime, DeadlockPolicy.DETECTION)
+                : TransactionManagerFactory.newShardedTM(resources, System::nanoTime, DeadlockPolicy.DETECTION, shards);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        long[] commits = new long[threadsNum];
+
+        Thread[] threads = new Thread[threadsNum];
+        for (int t = 0; t < threadsNum; t++) {
+            int me = t;
+            threads[t] = new Thread(() -> {
+                int[] chosen = new int[perTransaction];
+                while (!stop.get()) {
+                    for (int i = 0; i < perTransaction; i++) {
+                        int id = ThreadLocalRandom.current().nextInt(resourcesNum);
+                        // Ids with the same remainder are in the same shard
+                        chosen[i] = spanning ? id : id - id % shards + me % shards;
+                    }
+                    Arrays.sort(chosen);
+                    try {
+                        tm.startTransaction();
+                        for (int i = 0; i < perTransaction; i++) {
+                            if (chosen[i] < resourcesNum) {
+                                tm.operateOnResourceInCurrentTransaction(resources.get(chosen[i]).getId(),
+                                        ResourceOpImpl.get());
+                            }
+                        }
+                        tm.commitCurrentTransaction();
+                        commits[me]++;
+                    } catch (ActiveTransactionAborted | InterruptedException e) {
+                        // Counted as not committed
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    } finally {
+                        tm.rollbackCurrentTransaction();
+                        Thread.interrupted(); // Clears the interrupt that came with the abort
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        System.out.printf("%2d shards %3ds: %9.0f commits/s%n",
+                shards, seconds, Arrays.stream(commits).sum() / (double) seconds);
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ResourceIdImpl implements ResourceId {
+        private final int value;
+
+        private ResourceIdImpl(int value) {
+            this.value = value;
+        }
+        @Override
+        public int compareTo(ResourceId other) {
+            return Integer.compare(this.value, ((ResourceIdImpl)other).value);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ResourceIdImpl && this.value == ((ResourceIdImpl)obj).value;
+        }
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(this.value);
+        }
+        @Override
+        public String toString() {
+            return "R" + this.value;
+        }
+    }
+
+    private static final class ResourceImpl extends Resource {
+        private volatile long value = 0;
+        public ResourceImpl(ResourceId id) {
+            super(id);
+        }
+    }
+
+    private static final class ResourceOpImpl extends ResourceOperation {
+        private final static ResourceOpImpl singleton = new ResourceOpImpl();
+        public static ResourceOperation get() {
+            return singleton;
+        }
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).value++;
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).value--;
+        }
+    }
+}
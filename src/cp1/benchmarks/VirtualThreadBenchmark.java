@@ -0,0 +1,163 @@
+/* Runs a StressTest-like workload with one thread per request: every thread runs a few transactions
+ * that increment a window of consecutive resources starting at a random offset, retrying aborted ones.
+ * Threads waiting for resources park instead of blocking on monitors, so with virtual threads
+ * (Java 21 and later) thousands of waiting transactions don't pin the carrier threads.
+ * On older JVMs platform threads are used instead. At the end we check that every committed
+ * transaction incremented its resources exactly once.
+ *
+ * Usage: java cp1.benchmarks.VirtualThreadBenchmark [threads] [resources] [resources per transaction] [transactions per thread]
+ */
+package cp1.benchmarks;
+
+import cp1.base.*;
+import cp1.solution.TransactionManagerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class VirtualThreadBenchmark {
+
+    private final static int DEFAULT_THREADS = 10000;
+    private final static int DEFAULT_RESOURCES = 100;
+    private final static int DEFAULT_RESOURCES_PER_TRANSACTION = 4;
+    private final static int DEFAULT_TRANSACTIONS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int threadsNum = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        int resourcesNum = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RESOURCES;
+        int perTransaction = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RESOURCES_PER_TRANSACTION;
+        int transactions = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_TRANSACTIONS;
+
+        List<ResourceImpl> resources = new ArrayList<>();
+        for (int i = 0; i < resourcesNum; i++) {
+            resources.add(new ResourceImpl(new ResourceIdImpl(i)));
+        }
+        TransactionManager tm = TransactionManagerFactory.newTM(new ArrayList<>(resources), System::nanoTime);
+        AtomicLong commits = new AtomicLong(0);
+        AtomicLong aborts = new AtomicLong(0);
+
+        Runnable request = () -> {
+            for (int t = 0; t < transactions; t++) {
+                boolean committed = false;
+                while (!committed) {
+                    try {
+                        tm.startTransaction();
+                        int offset = ThreadLocalRandom.current().nextInt(resourcesNum);
+                        for (int j = 0; j < perTransaction; j++) {
+                            ResourceId rid = resources.get((offset + j) % resourcesNum).getId();
+                            tm.operateOnResourceInCurrentTransaction(rid, ResourceOpImpl.get());
+                        }
+                        tm.commitCurrentTransaction();
+                        committed = true;
+                    } catch (ActiveTransactionAborted | InterruptedException e) {
+                        aborts.incrementAndGet();
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    } finally {
+                        tm.rollbackCurrentTransaction();
+                        Thread.interrupted(); // Clears the interrupt that came with the abort
+                    }
+                }
+                commits.incrementAndGet();
+            }
+        };
+
+        Method unstarted = virtualThreadFactory();
+        Object builder = unstarted == null ? null : Thread.class.getMethod("ofVirtual").invoke(null);
+        System.out.printf("%d %s threads, %d resources, %d resources per transaction, %d transactions per thread%n",
+                threadsNum, unstarted == null ? "platform" : "virtual", resourcesNum, perTransaction, transactions);
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadsNum; i++) {
+            Thread thread = unstarted == null ? new Thread(request) : (Thread) unstarted.invoke(builder, request);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long total = 0;
+        for (ResourceImpl r : resources) {
+            total += r.getValue();
+        }
+        if (total != commits.get() * perTransaction) {
+            throw new AssertionError("Resources were incremented " + total + " times, expected "
+                    + commits.get() * perTransaction);
+        }
+        System.out.printf("%.0f ms, %.0f commits/s, %d aborts%n",
+                elapsed / 1e6, commits.get() / (elapsed / 1e9), aborts.get());
+    }
+
+    /**
+     * @return Method creating an unstarted virtual thread from a Thread.Builder,
+     * null if the JVM has no virtual threads.
+     */
+    private static Method virtualThreadFactory() {
+        try {
+            return Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ResourceIdImpl implements ResourceId {
+        private final int value;
+
+        private ResourceIdImpl(int value) {
+            this.value = value;
+        }
+        @Override
+        public int compareTo(ResourceId other) {
+            return Integer.compare(this.value, ((ResourceIdImpl)other).value);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ResourceIdImpl && this.value == ((ResourceIdImpl)obj).value;
+        }
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(this.value);
+        }
+        @Override
+        public String toString() {
+            return "R" + this.value;
+        }
+    }
+
+    private static final class ResourceImpl extends Resource {
+        private volatile long value = 0;
+        public ResourceImpl(ResourceId id) {
+            super(id);
+        }
+        public long getValue() {
+            return this.value;
+        }
+    }
+
+    private static final class ResourceOpImpl extends ResourceOperation {
+        private final static ResourceOpImpl singleton = new ResourceOpImpl();
+        public static ResourceOperation get() {
+            return singleton;
+        }
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).value++;
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).value--;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/* Measures memory allocated and time spent on the path of waiting for resources and resolving
+ * deadlocks. Pairs of threads repeatedly lock the same two resources in opposite orders, so
+ * transactions keep waiting for each other and deadlocks keep being found and broken. We print
+ * bytes allocated by the manager per transaction, read from the ThreadMXBean, and the latency
+ * of transactions including their retries.
+ *
+ * Usage: java cp1.benchmarks.WaitPathBenchmark [pairs of threads] [seconds]
+ */
+package cp1.benchmarks;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.Transaction;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class WaitPathBenchmark {
+
+    private final static int DEFAULT_PAIRS = 2;
+    private final static int DEFAULT_SECONDS = 5;
+
+    private final static com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws InterruptedException {
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PAIRS;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+
+        run(pairs, 1); // Warm up
+        run(pairs, seconds);
+    }
+
+    private static void run(int pairs, int seconds) throws InterruptedException {
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < 2 * pairs; i++) {
+            resources.add(new ResourceImpl(new ResourceIdImpl(i)));
+        }
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(resources, System::nanoTime);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        int threadsNum = 2 * pairs;
+        long[] commits = new long[threadsNum];
+        long[] aborts = new long[threadsNum];
+        long[] latency = new long[threadsNum]; // Sum of latencies of committed transactions
+        long[] allocated = new long[threadsNum];
+
+        Thread[] threads = new Thread[threadsNum];
+        for (int t = 0; t < threadsNum; t++) {
+            int me = t;
+            ResourceId first = resources.get(2 * (t / 2) + t % 2).getId();
+            ResourceId second = resources.get(2 * (t / 2) + 1 - t % 2).getId();
+            threads[t] = new Thread(() -> {
+                long threadId = Thread.currentThread().getId();
+                long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+                while (!stop.get()) {
+                    long start = System.nanoTime();
+                    boolean committed = false;
+                    while (!committed && !stop.get()) {
+                        Transaction transaction = null;
+                        try {
+                            transaction = tm.begin();
+                            transaction.operate(first, ResourceOpImpl.get());
+                            transaction.operate(second, ResourceOpImpl.get());
+                            transaction.commit();
+                            committed = true;
+                        } catch (ActiveTransactionAborted | InterruptedException e) {
+                            aborts[me]++;
+                        } catch (Exception e) {
+                            throw new AssertionError(e);
+                        } finally {
+                            if (transaction != null) {
+                                transaction.rollback();
+                            }
+                            Thread.interrupted(); // Clears the interrupt that came with the abort
+                        }
+                    }
+                    if (committed) {
+                        commits[me]++;
+                        latency[me] += System.nanoTime() - start;
+                    }
+                }
+                allocated[me] = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long totalCommits = Arrays.stream(commits).sum();
+        long totalAborts = Arrays.stream(aborts).sum();
+        System.out.printf("%3ds: %9.0f commits/s, %8d aborts, %.1f bytes per transaction, mean latency %.1f us%n",
+                seconds, totalCommits / (double) seconds, totalAborts,
+                Arrays.stream(allocated).sum() / (double) (totalCommits + totalAborts),
+                Arrays.stream(latency).sum() / (double) totalCommits / 1000.0);
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ResourceIdImpl implements ResourceId {
+        private final int value;
+
+        private ResourceIdImpl(int value) {
+            this.value = value;
+        }
+        @Override
+        public int compareTo(ResourceId other) {
+            return Integer.compare(this.value, ((ResourceIdImpl)other).value);
+        }
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ResourceIdImpl && this.value == ((ResourceIdImpl)obj).value;
+        }
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(this.value);
+        }
+        @Override
+        public String toString() {
+            return "R" + this.value;
+        }
+    }
+
+    private static final class ResourceImpl extends Resource {
+        private volatile long value = 0;
+        public ResourceImpl(ResourceId id) {
+            super(id);
+        }
+    }
+
+    private static final class ResourceOpImpl extends ResourceOperation {
+        private final static ResourceOpImpl singleton = new ResourceOpImpl();
+        public static ResourceOperation get() {
+            return singleton;
+        }
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).value++;
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).value--;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package cp1.solution;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Background thread of a manager with BACKGROUND_DETECTION policy, or of a sharded manager,
+ * which periodically breaks deadlocks. The interval between scans adapts to how often deadlocks are found:
+ * it is halved after a scan that found a deadlock, down to a fraction of the configured
+ * interval, and doubled after a scan that found none, up to the configured interval.
+ * The thread keeps only a weak reference to its manager and ends once the manager is gone.
+ */
+class DeadlockDetector<T> implements Runnable {
+    private static final long MIN_INTERVAL_FRACTION = 64; // Shortest interval is the configured one divided by it
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final WeakReference<T> manager;
+    private final ToIntFunction<T> scan; // Breaks deadlocks of the manager, returns the number of aborted transactions
+    private final long maxIntervalNanos;
+    private final long minIntervalNanos;
+
+    private DeadlockDetector(T manager, ToIntFunction<T> scan, long intervalNanos) {
+        this.manager = new WeakReference<>(manager);
+        this.scan = scan;
+        this.maxIntervalNanos = intervalNanos;
+        this.minIntervalNanos = Math.min(intervalNanos, Math.max(intervalNanos / MIN_INTERVAL_FRACTION,
+                MIN_INTERVAL_NANOS));
+    }
+
+    /**
+     * Starts a daemon thread breaking deadlocks of a manager.
+     *
+     * @param manager       Manager whose graph of waiting transactions is scanned.
+     * @param scan          Method of the manager breaking its deadlocks.
+     * @param intervalNanos Longest interval between scans.
+     */
+    static <T> void start(T manager, ToIntFunction<T> scan, long intervalNanos) {
+        Thread thread = new Thread(new DeadlockDetector<>(manager, scan, intervalNanos), "deadlock-detector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long intervalNanos = maxIntervalNanos;
+        while (true) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+            T current = manager.get();
+            if (current == null) {
+                return;
+            }
+            if (scan.applyAsInt(current) > 0) {
+                intervalNanos = Math.max(intervalNanos / 2, minIntervalNanos);
+            } else {
+                intervalNanos = Math.min(intervalNanos * 2, maxIntervalNanos);
+            }
+        }
+    }
+}
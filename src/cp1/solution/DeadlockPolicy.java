@@ -0,0 +1,40 @@
+package cp1.solution;
+
+/**
+ * Way in which a transaction manager deals with deadlocks. Transactions
+ * are ordered by their start time, ties are broken by ids of their threads.
+ */
+public enum DeadlockPolicy {
+    /**
+     * Every new wait is checked for creating a cycle in the graph of waiting
+     * transactions. The transaction in a cycle chosen by the VictimSelector,
+     * the youngest one by default, is aborted.
+     */
+    DETECTION,
+
+    /**
+     * A transaction waits only for younger transactions. A transaction that
+     * would have to wait for an older one is aborted instead.
+     */
+    WAIT_DIE,
+
+    /**
+     * A transaction waits only for older transactions. Younger transactions
+     * that hold a resource needed by an older one are aborted.
+     */
+    WOUND_WAIT,
+
+    /**
+     * Transactions start waiting without any check. A background thread
+     * periodically looks for cycles in the graph of waiting transactions
+     * and aborts a transaction chosen by the VictimSelector in each of them.
+     */
+    BACKGROUND_DETECTION,
+
+    /**
+     * The graph of waiting transactions is not kept. A transaction that
+     * has waited for a resource longer than a threshold, measured with
+     * the local time provider, is aborted, whether it is in a deadlock or not.
+     */
+    TIMEOUT
+}
@@ -0,0 +1,157 @@
+package cp1.solution;
+
+import cp1.base.ActiveTransactionAborted;
+import cp1.base.AnotherTransactionActiveException;
+import cp1.base.NoActiveTransactionException;
+import cp1.base.ResourceId;
+import cp1.base.ResourceOperation;
+import cp1.base.ResourceOperationException;
+import cp1.base.UnknownResourceIdException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handle of a transaction started with {@link TransactionCoordinator#begin()}, made of parts begun
+ * in managers it enlists. It commits with two-phase commit: first every part is prepared, which fails
+ * if any of them was aborted, and only then every part commits. A prepared part is never aborted,
+ * so the transaction commits in all managers or in none of them. Only the thread that began
+ * the transaction may use the handle.
+ */
+public final class DistributedTransaction {
+    private final TransactionCoordinator coordinator;
+    private final Thread thread; // Thread that began the transaction, also of all its parts
+    private final long startTime; // Start time of every part
+    private final int priority; // Priority of every part
+    private final List<Transaction> parts = new ArrayList<>(); // Parts in the order of enlisting, one per manager
+    private boolean active = true; // Used only by the owner thread
+
+    DistributedTransaction(TransactionCoordinator coordinator, Thread thread, long startTime, int priority) {
+        this.coordinator = coordinator;
+        this.thread = thread;
+        this.startTime = startTime;
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the part of the transaction in the given manager, beginning it if the manager
+     * isn't enlisted yet.
+     *
+     * @param manager Manager coordinated by the coordinator of the transaction.
+     * @return Part of the transaction in the manager.
+     * @throws AnotherTransactionActiveException If the thread has another transaction in the manager.
+     */
+    public Transaction enlist(ImplementedTransactionManager manager) throws NoActiveTransactionException,
+            AnotherTransactionActiveException {
+        checkActive();
+        if (!coordinator.coordinates(manager)) {
+            throw new IllegalArgumentException("Manager not coordinated by the coordinator of the transaction");
+        }
+        for (Transaction part : parts) {
+            if (part.getManager() == manager) {
+                return part;
+            }
+        }
+        Transaction part = manager.begin(startTime, priority, 0);
+        parts.add(part);
+        return part;
+    }
+
+    /**
+     * Operates on a resource of the given manager, enlisting it if needed. Waits like
+     * {@link cp1.base.TransactionManager#operateOnResourceInCurrentTransaction(ResourceId, ResourceOperation)}
+     * and reports an abort of any part of the transaction with ActiveTransactionAborted.
+     *
+     * @param manager   Manager controlling the resource.
+     * @param rid       Id of the resource.
+     * @param operation Operation to perform.
+     */
+    public void operate(ImplementedTransactionManager manager, ResourceId rid, ResourceOperation operation) throws
+            NoActiveTransactionException, AnotherTransactionActiveException, UnknownResourceIdException,
+            ActiveTransactionAborted, ResourceOperationException, InterruptedException {
+        if (isAborted()) {
+            throw new ActiveTransactionAborted();
+        }
+        Transaction part = enlist(manager);
+        try {
+            part.operate(rid, operation);
+        } catch (InterruptedException e) {
+            if (isAborted()) { // Another part was aborted, possibly while this one was waiting
+                throw new ActiveTransactionAborted();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Commits the transaction in all enlisted managers. If any part can't be prepared, the whole
+     * transaction is rolled back and ends.
+     *
+     * @throws ActiveTransactionAborted If a part was aborted, the transaction is rolled back then.
+     */
+    public void commit() throws NoActiveTransactionException, ActiveTransactionAborted {
+        checkActive();
+        try {
+            for (Transaction part : parts) {
+                part.getManager().prepare(part);
+            }
+        } catch (ActiveTransactionAborted e) {
+            rollback();
+            throw e;
+        }
+        for (Transaction part : parts) {
+            part.getManager().commitPrepared(part);
+        }
+        active = false;
+    }
+
+    /**
+     * Rolls the transaction back in all enlisted managers. Does nothing if it has ended.
+     */
+    public void rollback() {
+        checkOwner();
+        if (!active) {
+            return;
+        }
+        for (Transaction part : parts) {
+            part.rollback();
+        }
+        active = false;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return True if the transaction is active and any of its parts was aborted.
+     */
+    public boolean isAborted() {
+        if (!active) {
+            return false;
+        }
+        for (Transaction part : parts) {
+            if (part.isAborted()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    private void checkOwner() {
+        if (thread != Thread.currentThread()) {
+            throw new IllegalStateException("Transaction used outside of the thread that began it");
+        }
+    }
+
+    private void checkActive() throws NoActiveTransactionException {
+        checkOwner();
+        if (!active) {
+            throw new NoActiveTransactionException();
+        }
+    }
+}
@@ -11,301 +11,1101 @@ import cp1.base.ResourceOperationException;
 import cp1.base.TransactionManager;
 import cp1.base.UnknownResourceIdException;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Deque;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ImplementedTransactionManager implements TransactionManager {
-    private static class SuccessfulOperation {
-        private ResourceId resourceId;
-        private ResourceOperation operation;
+    static final long NO_TIMEOUT = Long.MAX_VALUE;
+    private static final long DEFAULT_DETECTION_INTERVAL_MILLIS = 100; // With BACKGROUND_DETECTION and TIMEOUT policies
+    private static final long DEFAULT_WAIT_TIMEOUT = 1000; // With TIMEOUT policy, in units of the time provider
+    private static final int DEFAULT_MAX_ATTEMPTS = 100; // Of the default RetryPolicy
+    private static final long DEFAULT_INITIAL_BACKOFF_MICROS = 20;
+    private static final long DEFAULT_MAX_BACKOFF_MICROS = 10000;
 
-        private SuccessfulOperation(ResourceId rid, ResourceOperation operation) {
-            this.resourceId = rid;
-            this.operation = operation;
-        }
+    private LocalTimeProvider timeProvider;
+    private DeadlockPolicy deadlockPolicy;
+    private volatile VictimSelector victimSelector = VictimSelector.YOUNGEST; // Chooses transactions aborted in cycles
+    private final RetryPolicy defaultRetryPolicy = new RetryPolicy(DEFAULT_MAX_ATTEMPTS,
+            DEFAULT_INITIAL_BACKOFF_MICROS, DEFAULT_MAX_BACKOFF_MICROS, TimeUnit.MICROSECONDS);
+    private long detectionIntervalNanos; // How often deadlocks are looked for, or waits are checked with TIMEOUT policy
+    private long waitTimeout; // Longest wait with TIMEOUT policy, in units of the time provider
+    private final AtomicLong timeoutAborts = new AtomicLong(0); // Transactions aborted with TIMEOUT policy
+    private final AtomicLong falseTimeoutAborts = new AtomicLong(0); // Those of them that were not in a deadlock
+    private Map<ResourceId, ResourceLock> locks; // Lock guarding Resource with resourceId = key()
+    private final ReentrantLock waitsForGraph = new ReentrantLock(); // Guards modifications and traversals of the graph of waiting threads
+    private Transaction firstWaiting; // First of the waiting transactions linked in a list, guarded by waitsForGraph
+    private long searchNumber = 0; // Number of the last search for a cycle, marks visited transactions, guarded by waitsForGraph
+    private final List<Transaction> toVisit = new ArrayList<>(); // Stack of the search for a cycle, guarded by waitsForGraph
+    private final List<Transaction> waited = new ArrayList<>(); // Holders waited for by a visited transaction, as above
+    private final ThreadLocal<Transaction> lastTransaction = new ThreadLocal<>(); // Last transaction begun by each thread
+    private final ThreadLocal<Transaction> currentTransaction = new ThreadLocal<>(); // Transaction started with startTransaction()
+    private final ThreadLocal<UndoLog> undoLogs = ThreadLocal.withInitial(UndoLog::new); // Reused by transactions of each thread
+    private final ThreadLocal<List<ResourceLock>> lockLists = ThreadLocal.withInitial(ArrayList::new); // As above
+    private final ThreadLocal<List<Transaction>> holderLists = ThreadLocal.withInitial(ArrayList::new); // As above
+
+    private static final AtomicLong nextId = new AtomicLong(0);
 
-        private ResourceId getResourceId() {
-            return resourceId;
+    private final long id = nextId.getAndIncrement(); // Orders managers whose graphs are locked together
+
+    public ImplementedTransactionManager(Collection<Resource> resources, LocalTimeProvider timeProvider) {
+        this(resources, timeProvider, DeadlockPolicy.DETECTION);
+    }
+
+    public ImplementedTransactionManager(Collection<Resource> resources, LocalTimeProvider timeProvider,
+                                         DeadlockPolicy deadlockPolicy) {
+        this(resources, timeProvider, deadlockPolicy, DEFAULT_DETECTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a manager which, with BACKGROUND_DETECTION policy, scans the graph of waiting transactions
+     * at most every given interval, more often while deadlocks keep being found.
+     * The interval doesn't matter for other policies.
+     *
+     * @param resources         Resources controlled by the manager.
+     * @param timeProvider      Provider of the start time of transactions.
+     * @param deadlockPolicy    Way of dealing with deadlocks.
+     * @param detectionInterval Longest interval between scans for deadlocks.
+     * @param unit              Unit of the interval.
+     */
+    public ImplementedTransactionManager(Collection<Resource> resources, LocalTimeProvider timeProvider,
+                                         DeadlockPolicy deadlockPolicy, long detectionInterval, TimeUnit unit) {
+        this(resources, timeProvider, deadlockPolicy, detectionInterval, unit, DEFAULT_WAIT_TIMEOUT);
+    }
+
+    /**
+     * Creates a manager like the above one which, with TIMEOUT policy, aborts transactions waiting
+     * for a resource longer than a given threshold. Waiting transactions check how long they have waited
+     * every detection interval and whenever they are woken up. The threshold doesn't matter for other policies.
+     *
+     * @param resources         Resources controlled by the manager.
+     * @param timeProvider      Provider of the start time of transactions and of the time of waiting.
+     * @param deadlockPolicy    Way of dealing with deadlocks.
+     * @param detectionInterval Longest interval between scans for deadlocks or checks of waiting time.
+     * @param unit              Unit of the interval.
+     * @param waitTimeout       Longest wait for a resource with TIMEOUT policy, in units of the time provider.
+     */
+    public ImplementedTransactionManager(Collection<Resource> resources, LocalTimeProvider timeProvider,
+                                         DeadlockPolicy deadlockPolicy, long detectionInterval, TimeUnit unit,
+                                         long waitTimeout) {
+        this.timeProvider = timeProvider;
+        this.deadlockPolicy = deadlockPolicy;
+        this.detectionIntervalNanos = unit.toNanos(detectionInterval);
+        this.waitTimeout = waitTimeout;
+        this.locks = new HashMap<>();
+        List<Resource> ordered = new ArrayList<>(resources);
+        ordered.sort(Comparator.comparing(Resource::getId)); // Ordinals of resources follow the order of their ids
+        LockTable table = new LockTable(ordered.size());
+        for (int ordinal = 0; ordinal < ordered.size(); ordinal++) {
+            Resource resource = ordered.get(ordinal);
+            this.locks.put(resource.getId(), new ResourceLock(resource, ordinal, table));
         }
 
-        private ResourceOperation getOperation() {
-            return operation;
+        if (deadlockPolicy == DeadlockPolicy.BACKGROUND_DETECTION) {
+            DeadlockDetector.start(this, ImplementedTransactionManager::breakDeadlocks, detectionIntervalNanos);
         }
     }
 
-    private static class TransactionStartTime implements Comparable<TransactionStartTime> {
-        private long startTime;
-        private long threadId;
+    /**
+     * Sets the way of choosing which transaction of a deadlock is aborted with detection policies.
+     * Takes effect for deadlocks found afterwards.
+     *
+     * @param victimSelector Selector of transactions to abort, VictimSelector.YOUNGEST by default.
+     */
+    public void setVictimSelector(VictimSelector victimSelector) {
+        this.victimSelector = victimSelector;
+    }
+
+    /**
+     * Starts a transaction in the current thread and returns its handle. Operating on the handle
+     * doesn't look up the transaction of the current thread, so it is faster than the TransactionManager
+     * methods, which are an adapter over handles. A thread may have only one active transaction
+     * in a manager, no matter how it was started. The transaction gets the priority of the current thread.
+     *
+     * @return Handle of the new transaction.
+     */
+    public Transaction begin() throws AnotherTransactionActiveException {
+        return begin(Thread.currentThread().getPriority());
+    }
+
+    /**
+     * Starts a transaction like {@link #begin()} with a given priority, used by VictimSelector.LOWEST_PRIORITY.
+     *
+     * @param priority Priority of the transaction, higher means less likely to be aborted.
+     * @return Handle of the new transaction.
+     */
+    public Transaction begin(int priority) throws AnotherTransactionActiveException {
+        return begin(timeProvider.getTime(), priority, 0);
+    }
 
-        private TransactionStartTime(long startTime, long threadId) {
-            this.startTime = startTime;
-            this.threadId = threadId;
+    /**
+     * Starts a retry of an ended transaction, usually an aborted one. The new transaction keeps the start time
+     * and the priority of the previous one, so it gets older with every retry and eventually stops being
+     * chosen as the victim of deadlocks, which bounds the number of its retries.
+     *
+     * @param previous Ended transaction of this manager, begun by any thread.
+     * @return Handle of the new transaction.
+     */
+    public Transaction begin(Transaction previous) throws AnotherTransactionActiveException {
+        if (previous.getManager() != this || previous.isActive()) {
+            throw new IllegalArgumentException("Only an ended transaction of this manager can be retried");
         }
+        return begin(previous.getStartTime(), previous.getPriority(), previous.getRetryCount() + 1);
+    }
 
-        private long getThreadId() {
-            return threadId;
+    /**
+     * Starts a transaction in the current thread. Parts of a transaction spanning many managers
+     * are begun with the start time of the whole transaction, so that all managers order them the same way.
+     *
+     * @param startTime  Start time of the transaction.
+     * @param priority   Priority of the transaction.
+     * @param retryCount Number of transactions retried before this one.
+     * @return Handle of the new transaction.
+     */
+    Transaction begin(long startTime, int priority, int retryCount) throws AnotherTransactionActiveException {
+        Transaction last = lastTransaction.get();
+        if (last != null && last.isActive()) {
+            throw new AnotherTransactionActiveException();
         }
+        // Logs of the thread were left empty by its last transaction
+        Transaction transaction = new Transaction(this, Thread.currentThread(), startTime, priority, retryCount,
+                undoLogs.get(), lockLists.get());
+        lastTransaction.set(transaction);
+        return transaction;
+    }
 
-        @Override
-        public int compareTo(TransactionStartTime other) {
-            if (other.startTime > startTime) { // Other older than this
-                return 1;
-            } else if (other.startTime < startTime) { // Other younger than this
-                return -1;
+    /**
+     * @return Policy of retries used by {@link #runInTransaction(TransactionBody)}, with its metrics.
+     */
+    public RetryPolicy getDefaultRetryPolicy() {
+        return defaultRetryPolicy;
+    }
+
+    /**
+     * Runs a transaction like {@link #runInTransaction(RetryPolicy, TransactionBody)} with the default RetryPolicy.
+     */
+    public <T> T runInTransaction(TransactionBody<T> body) throws AnotherTransactionActiveException,
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        return runInTransaction(defaultRetryPolicy, body);
+    }
+
+    /**
+     * Runs the body in a transaction of the current thread and commits it. An aborted transaction is rolled
+     * back and retried after a backoff, as a retry keeping its start time. Any other exception rolls
+     * the transaction back and is thrown, as is ActiveTransactionAborted of the last allowed attempt.
+     *
+     * @param retryPolicy Policy of retries, which records their metrics.
+     * @param body        Work done in the transaction.
+     * @return Result of the body in the committed attempt.
+     */
+    public <T> T runInTransaction(RetryPolicy retryPolicy, TransactionBody<T> body)
+            throws AnotherTransactionActiveException, NoActiveTransactionException, UnknownResourceIdException,
+            ActiveTransactionAborted, ResourceOperationException, InterruptedException {
+        Transaction transaction = begin();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                T result = body.run(transaction);
+                commit(transaction);
+                retryPolicy.recordAttempt(false);
+                return result;
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                if (!transaction.isAborted()) {
+                    throw e; // Interrupted for another reason
+                }
+                retryPolicy.recordAttempt(true);
+                if (attempt == retryPolicy.getMaxAttempts()) {
+                    retryPolicy.recordFailure();
+                    throw new ActiveTransactionAborted();
+                }
+            } finally {
+                rollback(transaction); // Does nothing if committed
+                // The abort may interrupt us until now, later interrupts come from the caller
+                if (transaction.stopAbortInterrupts()) {
+                    Thread.interrupted(); // Clears the interrupt that came with the abort
+                }
+            }
+            retryPolicy.backOff(attempt);
+            transaction = begin(transaction);
+        }
+    }
+
+    @Override
+    public void startTransaction() throws AnotherTransactionActiveException {
+        currentTransaction.set(begin());
+    }
+
+    /**
+     * Starts a retry of the last transaction begun by the current thread, like {@link #begin(Transaction)},
+     * or a new transaction if the thread hasn't begun any.
+     */
+    public void restartTransaction() throws AnotherTransactionActiveException {
+        Transaction last = lastTransaction.get();
+        currentTransaction.set(last == null || last.isActive() ? begin() : begin(last));
+    }
+
+    /**
+     * @return Number of retries of the transaction of the current thread, -1 if there is none.
+     */
+    public int getCurrentTransactionRetryCount() {
+        Transaction transaction = current();
+        return transaction == null ? -1 : transaction.getRetryCount();
+    }
+
+    /**
+     * @return Active transaction started in the current thread with startTransaction() or startNestedTransaction(),
+     * the innermost one if they are nested, null if there is none.
+     */
+    private Transaction current() {
+        Transaction transaction = currentTransaction.get();
+        if (transaction != null && !transaction.isActive()) { // Ended through its handle
+            while (transaction != null && !transaction.isActive()) {
+                transaction = transaction.getEnclosing();
+            }
+            if (transaction == null) {
+                currentTransaction.remove();
             } else {
-                if (other.threadId > threadId) { // Same start time, we compare threadIds
-                    return 1;
-                } else {
-                    return -1;
+                currentTransaction.set(transaction);
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * Finds a cycle in a directed graph of waiting threads that goes through the given transaction.
+     * Transaction waiting for a resource waits for every holder of the resource whose mode conflicts
+     * with the requested one, so it may wait for many transactions. We search the graph starting from
+     * the current transaction, marking visited transactions and their parents in the search, so the
+     * search doesn't allocate. Cycles not going through the current transaction were broken when
+     * they were created, so it is enough to look for paths back to the current transaction.
+     * Must be called while holding the waitsForGraph lock.
+     *
+     * @param transaction Waiting transaction of the current thread.
+     * @return Last transaction of the cycle, whose parents lead back to the given one, null if there is no cycle.
+     */
+    private Transaction findCycle(Transaction transaction) {
+        searchNumber++;
+        transaction.visit(searchNumber, null);
+        toVisit.add(transaction);
+
+        while (!toVisit.isEmpty()) {
+            Transaction visited = toVisit.remove(toVisit.size() - 1);
+            ResourceLock waitedLock = visited.getWaitsForResource(); // May change concurrently with TIMEOUT policy
+            if (waitedLock == null) {
+                continue;
+            }
+            waitedLock.getConflictingHolders(visited, visited.getWaitsForMode(), waited);
+            for (int i = 0; i < waited.size(); i++) {
+                Transaction holder = waited.get(i);
+                if (holder == transaction) {
+                    waited.clear();
+                    toVisit.clear();
+                    return visited;
+                }
+                // Aborted transactions don't wait for resources, they can't create cycles
+                if (!holder.isAborted() && holder.getWaitsForResource() != null && !holder.isVisited(searchNumber)) {
+                    holder.visit(searchNumber, visited);
+                    toVisit.add(holder);
                 }
             }
+            waited.clear();
+        }
 
+        return null; // No cycle found
+    }
+
+    /**
+     * Finds and breaks all deadlocks by aborting a transaction chosen by the VictimSelector in every cycle.
+     * Called periodically by the DeadlockDetector with BACKGROUND_DETECTION policy.
+     *
+     * @return Number of aborted transactions.
+     */
+    int breakDeadlocks() {
+        int aborted = 0;
+        waitsForGraph.lock();
+        try {
+            for (Transaction waiting = firstWaiting; waiting != null; waiting = waiting.getNextWaiting()) {
+                if (waiting.isAborted()) { // Its edge will be removed soon
+                    continue;
+                }
+                Transaction cycle = findCycle(waiting);
+                // With SHARED holders there may be many cycles going through this transaction
+                while (cycle != null && !waiting.isAborted()) {
+                    abortVictim(cycle);
+                    aborted++;
+                    cycle = findCycle(waiting);
+                }
+            }
+        } finally {
+            waitsForGraph.unlock();
         }
+        return aborted;
     }
 
-    private LocalTimeProvider timeProvider;
-    private Map<ResourceId, Resource> resources;
-    private Map<ResourceId, Long> resourceLockedBy; // Thread with id = value() is in control of Resource with resourceId = key()
-    private Map<Long, ResourceId> waitsForResource; // Thread with id = key() waits for access to Resource with resourceId = value()
-    private Map<Long, TransactionStartTime> startTime; // TransactionStartTime object associated with Thread with id = value()
-    private Map<Long, Boolean> isAborted; // True if Thread with if = key() is aborted, false otherwise
+    long getId() {
+        return id;
+    }
 
-    // Map local for each thread, keeps track of successful operations in TransactionManager = key()
-    private static ThreadLocal<Map<ImplementedTransactionManager, Deque<SuccessfulOperation>>> transactionOperations = ThreadLocal.withInitial(HashMap::new);
+    void lockWaitsForGraph() {
+        waitsForGraph.lock();
+    }
 
-    public ImplementedTransactionManager(Collection<Resource> resources, LocalTimeProvider timeProvider) {
-        this.timeProvider = timeProvider;
-        this.resources = new ConcurrentHashMap<>();
-        for (Resource resource : resources) {
-            this.resources.put(resource.getId(), resource);
+    void unlockWaitsForGraph() {
+        waitsForGraph.unlock();
+    }
+
+    /**
+     * @return First of the waiting transactions, linked with getNextWaiting(). Must be called while holding
+     * the waitsForGraph lock, with detection policies only.
+     */
+    Transaction getFirstWaiting() {
+        return firstWaiting;
+    }
+
+    /**
+     * @return Number of transactions aborted with TIMEOUT policy because they waited too long.
+     */
+    public long getTimeoutAborts() {
+        return timeoutAborts.get();
+    }
+
+    /**
+     * Returns the number of transactions aborted with TIMEOUT policy that were not in a deadlock
+     * when they were aborted. A high ratio of these to all timeout aborts means the threshold is too low.
+     *
+     * @return Number of needlessly aborted transactions.
+     */
+    public long getFalseTimeoutAborts() {
+        return falseTimeoutAborts.get();
+    }
+
+    /**
+     * Aborts a transaction that has waited too long with TIMEOUT policy. To count false positives
+     * we check if the transaction is in a cycle, following the edges waiting transactions record
+     * without locking. The check is only approximate, but it happens only when a transaction is aborted.
+     *
+     * @param transaction Waiting transaction of the current thread.
+     */
+    private void abortTimedOut(Transaction transaction) {
+        waitsForGraph.lock(); // Guards the search itself
+        try {
+            if (findCycle(transaction) == null) {
+                falseTimeoutAborts.incrementAndGet();
+            }
+        } finally {
+            waitsForGraph.unlock();
         }
+        timeoutAborts.incrementAndGet();
+        transaction.abort();
+    }
 
-        this.resourceLockedBy = new ConcurrentHashMap<>();
-        this.waitsForResource = new ConcurrentHashMap<>();
-        this.startTime = new ConcurrentHashMap<>();
-        this.isAborted = new ConcurrentHashMap<>();
+    /**
+     * @return True if we keep the graph of waiting threads, which happens with detection policies.
+     */
+    boolean detectsDeadlocks() {
+        return deadlockPolicy == DeadlockPolicy.DETECTION || deadlockPolicy == DeadlockPolicy.BACKGROUND_DETECTION;
     }
 
-    @Override
-    public void startTransaction() throws AnotherTransactionActiveException {
-        if (transactionOperations.get().containsKey(this)) {
-            throw new AnotherTransactionActiveException();
+    /**
+     * Adds an edge going from the given transaction to the graph of waiting threads
+     * and links the transaction to the list of waiting ones.
+     * Must be called while holding the waitsForGraph lock.
+     *
+     * @param transaction Transaction of the current thread.
+     * @param lock        Lock guarding the Resource we wait for.
+     * @param mode        Mode in which we wait for the Resource.
+     */
+    private void addEdge(Transaction transaction, ResourceLock lock, LockMode mode) {
+        transaction.setWaitsFor(lock, mode);
+        transaction.setWaitingLinks(null, firstWaiting);
+        if (firstWaiting != null) {
+            firstWaiting.setWaitingLinks(transaction, firstWaiting.getNextWaiting());
         }
-        long myThreadId = Thread.currentThread().getId();
-        startTime.put(myThreadId, new TransactionStartTime(timeProvider.getTime(), myThreadId));
-        transactionOperations.get().put(this, new ArrayDeque<>());
-        isAborted.put(Thread.currentThread().getId(), false);
+        firstWaiting = transaction;
     }
 
     /**
-     * Checks if a resource with a given Id is locked and tries
-     * to lock it, if it isn't.
+     * Removes the edge going from the given transaction, if there is one,
+     * and unlinks the transaction from the list of waiting ones.
+     * Must be called while holding the waitsForGraph lock.
      *
-     * @param rid Id of the resource we want to lock.
-     * @return True if we locked the resource, false if we didn't.
+     * @param transaction Transaction of the current thread.
      */
-    private synchronized boolean lockResource(ResourceId rid) {
-        if (!resourceLockedBy.containsKey(rid)) {
-            resourceLockedBy.put(rid, Thread.currentThread().getId());
-            waitsForResource.remove(Thread.currentThread().getId());
-            return true;
+    private void removeEdge(Transaction transaction) {
+        if (transaction.getWaitsForResource() == null) {
+            return;
+        }
+        Transaction previous = transaction.getPreviousWaiting();
+        Transaction next = transaction.getNextWaiting();
+        if (previous == null) {
+            firstWaiting = next;
         } else {
-            return false;
+            previous.setWaitingLinks(previous.getPreviousWaiting(), next);
         }
+        if (next != null) {
+            next.setWaitingLinks(previous, next.getNextWaiting());
+        }
+        transaction.setWaitingLinks(null, null);
+        transaction.setWaitsFor(null, null);
     }
 
     /**
-     * Finds a cycle in a directed graph of waiting threads. Each thread can wait only
-     * for one resource, so each node has at most one edge going from it. There is only one
-     * path to check starting from the current thread.
+     * Aborts a transaction and interrupts its thread.
      *
-     * @return Collection of ThreadIds that are part of the cycle, empty if there
-     * is no cycle.
+     * @param transaction Active transaction.
      */
-    private Collection<Long> findCycle() {
-        List<Long> cycle = new ArrayList<>();
-        boolean endOfPath = false;
-        long start = Thread.currentThread().getId();
-        cycle.add(start);
-        ResourceId waitingFor = waitsForResource.get(start);
-        long next = resourceLockedBy.get(waitingFor);
-
-        // Aborted threads don't wait for resources, they can't create cycles
-        while (!isAborted.get(next) && !endOfPath) {
-            cycle.add(next);
-            if (start == next || !waitsForResource.containsKey(next)) {
-                endOfPath = true;
-            } else {
-                ResourceId nextWaitingFor = waitsForResource.get(next);
-                if (!resourceLockedBy.containsKey(nextWaitingFor)) {
-                    endOfPath = true;
-                } else {
-                    next = resourceLockedBy.get(nextWaitingFor);
+    void abort(Transaction transaction) {
+        transaction.abort();
+        transaction.interruptAborted();
+    }
 
-                }
+    /**
+     * Aborts the transaction in a cycle chosen by the VictimSelector and interrupts its thread.
+     * Must be called while holding the waitsForGraph lock, right after findCycle().
+     *
+     * @param last Last transaction of the cycle found by findCycle().
+     */
+    private void abortVictim(Transaction last) {
+        VictimSelector selector = victimSelector;
+        Transaction victim = last;
+        for (Transaction candidate = last.getParent(); candidate != null; candidate = candidate.getParent()) {
+            if (selector.isBetterVictim(candidate, victim)) {
+                victim = candidate;
             }
+        }
+        abort(victim); // Every transaction in a cycle is waiting, so it is active
+    }
 
+    /**
+     * Applies WAIT_DIE or WOUND_WAIT policy before the current thread waits for a resource.
+     * An owner of the resource may release it concurrently and end its transaction, we don't wound such owners.
+     *
+     * @param transaction Transaction of the current thread.
+     * @param lock        Lock guarding the Resource we wait for.
+     * @param mode        Mode in which we wait for the Resource.
+     */
+    private void preventDeadlock(Transaction transaction, ResourceLock lock, LockMode mode) {
+        List<Transaction> holders = holderLists.get();
+        lock.getConflictingHolders(transaction, mode, holders);
+        for (int i = 0; i < holders.size(); i++) {
+            Transaction holder = holders.get(i);
+            boolean holderOlder = holder.isOlderThan(transaction);
+            if (deadlockPolicy == DeadlockPolicy.WAIT_DIE && holderOlder) {
+                abort(transaction); // We die instead of waiting for an older transaction
+                break;
+            } else if (deadlockPolicy == DeadlockPolicy.WOUND_WAIT && !holderOlder && holder.isActive()
+                    && !holder.isAborted() && !holder.isPrepared()) {
+                abort(holder); // We wound the younger transaction, it will release the resource
+            }
         }
+        holders.clear();
+    }
 
-        // Thread can't wait for itself, cycle must be of length > 1, we check equality of first and last thread
-        if (cycle.size() != 1 && cycle.get(0).equals(cycle.get(cycle.size() - 1))) {
-            return cycle;
-        } else { // No cycle found
-            return new ArrayDeque<>();
+    /**
+     * Removes the edge going from the given transaction from the graph of waiting threads.
+     * The graph is maintained only with detection policies, with TIMEOUT policy
+     * the edge is only recorded in the transaction.
+     *
+     * @param transaction Transaction of the current thread.
+     */
+    private void stopWaiting(Transaction transaction) {
+        if (detectsDeadlocks()) {
+            waitsForGraph.lock();
+            try {
+                removeEdge(transaction);
+            } finally {
+                waitsForGraph.unlock();
+            }
+        } else {
+            transaction.setWaitsFor(null, null);
         }
     }
 
     /**
-     * Aborts the youngest thread in a cycle.
+     * Adds an edge going from the given transaction to the graph of waiting threads. With DETECTION
+     * policy also aborts victims of cycles it creates, with BACKGROUND_DETECTION
+     * policy this is left to the DeadlockDetector.
      *
-     * @param cycle Collection of ThreadIds that are part of the cycle, empty if there
-     * is no cycle.
+     * @param transaction Transaction of the current thread.
+     * @param lock        Lock guarding the Resource we wait for.
+     * @param mode        Mode in which we wait for the Resource.
      */
-    private void abortYoungest(Collection<Long> cycle) {
-        if (cycle.size() != 0) {
-            List<TransactionStartTime> candidates = new ArrayList<>();
-            for (long threadId : cycle) {
-                candidates.add(startTime.get(threadId));
+    private void startWaiting(Transaction transaction, ResourceLock lock, LockMode mode) {
+        waitsForGraph.lock();
+        try {
+            addEdge(transaction, lock, mode);
+            if (deadlockPolicy == DeadlockPolicy.BACKGROUND_DETECTION) {
+                return;
             }
-            Collections.sort(candidates); // Sorting by age and threadId
-            long toAbort = candidates.get(0).getThreadId(); // Youngest is first
-
-            isAborted.put(toAbort, true);
-            for (Thread t : Thread.getAllStackTraces().keySet()) { // We find the thread to interrupt
-                if (t.getId() == toAbort) {
-                    t.interrupt();
-                    break;
-                }
+            Transaction cycle = findCycle(transaction);
+            // With SHARED holders there may be many cycles going through the current thread
+            while (cycle != null && !transaction.isAborted()) {
+                abortVictim(cycle);
+                cycle = findCycle(transaction);
             }
-
+        } finally {
+            waitsForGraph.unlock();
         }
+    }
 
+    /**
+     * Tries to lock a resource while waiting for it. With detection policies locking and
+     * removing the edge from the graph of waiting threads must be atomic for findCycle().
+     * Other policies check if we still may wait, as holders of the resource may have changed.
+     *
+     * @param transaction Transaction of the current thread.
+     * @param lock        Lock guarding the Resource we wait for.
+     * @param mode        Mode in which we wait for the Resource.
+     * @return True if we locked the resource.
+     */
+    private boolean tryLockWaiting(Transaction transaction, ResourceLock lock, LockMode mode) {
+        if (detectsDeadlocks()) {
+            waitsForGraph.lock();
+            try {
+                if (lock.tryLock(transaction, mode)) {
+                    removeEdge(transaction);
+                    return true;
+                }
+            } finally {
+                waitsForGraph.unlock();
+            }
+        } else if (lock.tryLock(transaction, mode)) {
+            transaction.setWaitsFor(null, null); // Recorded only with TIMEOUT policy
+            return true;
+        } else if (deadlockPolicy != DeadlockPolicy.TIMEOUT) {
+            preventDeadlock(transaction, lock, mode);
+        }
+        return false;
     }
+
     /**
      * Tries to acquire a permission to use given Resource. If the resource is controlled
-     * by other transaction, we wait for it to be free. If we add a new edge to the graph of
-     * waiting, we need to check for cycle and potentially abort a transaction.
+     * by other transaction in a conflicting mode, we wait for it on the lock's own condition, so we are woken
+     * up only when this resource is released. Depending on the DeadlockPolicy, before we wait we either
+     * add a new edge to the graph of waiting and check it for cycles, or we check if we may wait at all.
+     * With TIMEOUT policy we wake up every detection interval to check how long we have waited.
      *
-     * @param rid Id of the Resource we want to acquire.
+     * @param transaction  Transaction of the current thread.
+     * @param lock         Lock guarding the Resource we want to acquire.
+     * @param mode         Mode in which we want to acquire the Resource.
+     * @param timeoutNanos Maximum time to wait, NO_TIMEOUT if we wait until we get the Resource.
+     * @return True if we acquired the Resource, false if the time to wait has elapsed.
      */
-    private synchronized void waitForResource(ResourceId rid) throws InterruptedException, ActiveTransactionAborted {
-        long myThreadId = Thread.currentThread().getId();
+    private boolean waitForResource(Transaction transaction, ResourceLock lock, LockMode mode, long timeoutNanos)
+            throws InterruptedException, ActiveTransactionAborted {
+        long deadline = System.nanoTime() + timeoutNanos;
+        long waitStart = deadlockPolicy == DeadlockPolicy.TIMEOUT ? timeProvider.getTime() : 0;
 
-        while (!lockResource(rid)) {
-            if (!waitsForResource.containsKey(myThreadId)) {
-                waitsForResource.put(myThreadId, rid);
-                Collection<Long> cycle = findCycle();
-                abortYoungest(cycle); // Does nothing if there is no cycle
-                if (isTransactionAborted()) {
-                    throw new ActiveTransactionAborted();
-                } else if (Thread.interrupted()) {
-                    throw new InterruptedException();
-                }
+        lock.lockQueue(); // Wakeups of waiting threads can't be missed while we register as waiting
+        try {
+            if (lock.tryLock(transaction, mode)) {
+                return true;
             }
+            if (detectsDeadlocks()) {
+                startWaiting(transaction, lock, mode);
+            } else if (deadlockPolicy == DeadlockPolicy.TIMEOUT) {
+                transaction.setWaitsFor(lock, mode); // Only for counting false positives
+            }
+
+            lock.addWaiter(transaction, mode);
             try {
-                wait();
-            } catch (InterruptedException interrupted) {
-                if (isTransactionAborted()) {
-                    throw new ActiveTransactionAborted();
-                } else {
-                    throw interrupted;
+                while (!tryLockWaiting(transaction, lock, mode)) {
+                    if (deadlockPolicy == DeadlockPolicy.TIMEOUT && !transaction.isAborted()
+                            && timeProvider.getTime() - waitStart >= waitTimeout) {
+                        abortTimedOut(transaction);
+                    }
+                    if (transaction.isAborted()) {
+                        stopWaiting(transaction);
+                        throw new ActiveTransactionAborted();
+                    }
+                    try {
+                        long awaitNanos = deadlockPolicy == DeadlockPolicy.TIMEOUT ? detectionIntervalNanos : NO_TIMEOUT;
+                        if (timeoutNanos != NO_TIMEOUT) {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                stopWaiting(transaction);
+                                return false;
+                            }
+                            awaitNanos = Math.min(awaitNanos, remaining);
+                        }
+                        if (awaitNanos == NO_TIMEOUT) {
+                            lock.await();
+                        } else {
+                            lock.awaitNanos(awaitNanos);
+                        }
+                    } catch (InterruptedException interrupted) {
+                        stopWaiting(transaction);
+                        if (transaction.isAborted()) {
+                            throw new ActiveTransactionAborted();
+                        } else {
+                            throw interrupted;
+                        }
+                    }
                 }
+            } finally {
+                lock.removeWaiter(transaction);
             }
+        } finally {
+            lock.unlockQueue();
         }
 
+        return true;
     }
 
-    @Override
-    public void operateOnResourceInCurrentTransaction(ResourceId rid, ResourceOperation operation) throws
-            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
-            ResourceOperationException, InterruptedException {
-        if (!isTransactionActive()) {
+    /**
+     * Checks if the transaction is used by its own thread.
+     *
+     * @param transaction Handle of a transaction.
+     */
+    private void checkOwner(Transaction transaction) {
+        if (transaction.getThread() != Thread.currentThread()) {
+            throw new IllegalStateException("Transaction used outside of the thread that began it");
+        }
+    }
+
+    /**
+     * Checks if the current thread may operate in the given transaction.
+     * A transaction can't be used while a transaction nested in it is active.
+     *
+     * @param transaction Handle of a transaction.
+     */
+    private void checkCanOperate(Transaction transaction) throws NoActiveTransactionException,
+            ActiveTransactionAborted {
+        checkOwner(transaction);
+        if (!transaction.isActive()) {
             throw new NoActiveTransactionException();
-        } else if (isTransactionAborted()) {
+        } else if (transaction.isAborted()) {
             throw new ActiveTransactionAborted();
-        } else if (!resources.containsKey(rid)) {
+        } else if (transaction.getNested() != null) {
+            throw new IllegalStateException("Transaction used while a transaction nested in it is active");
+        } else if (transaction.isPrepared()) {
+            throw new IllegalStateException("Transaction used after it was prepared to commit");
+        }
+    }
+
+    /**
+     * Acquires a permission to use a resource in the given mode in the current transaction,
+     * waiting for it at most a given time.
+     *
+     * @param transaction  Active transaction of the current thread.
+     * @param lock         Lock guarding the Resource we want to acquire.
+     * @param mode         Mode in which we want to acquire the Resource.
+     * @param timeoutNanos Maximum time to wait, NO_TIMEOUT if we wait until we get the Resource,
+     *                     0 if we don't wait at all.
+     * @return True if we hold the Resource, false if we didn't get it in time.
+     */
+    private boolean acquire(Transaction transaction, ResourceLock lock, LockMode mode, long timeoutNanos)
+            throws InterruptedException, ActiveTransactionAborted {
+        // We don't enter if we have previously locked the resource in a sufficient mode
+        if (!lock.isHeldBy(transaction, mode)) {
+            boolean upgrading = lock.isSharedBy(transaction); // Resource already on our list
+            if (upgrading) {
+                mode = LockMode.EXCLUSIVE; // A shared holder needing another mode has to become the only holder
+            }
+            if (!lock.tryLock(transaction, mode)) {
+                if (timeoutNanos <= 0 || !waitForResource(transaction, lock, mode, timeoutNanos)) {
+                    return false; // Transaction is left as it was
+                }
+            }
+            if (!upgrading) {
+                transaction.getLockedResources().add(lock);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Performs an operation on a resource in the given transaction, waiting for the resource
+     * at most a given time.
+     *
+     * @param transaction  Handle of a transaction of the current thread.
+     * @param rid          Id of the Resource to operate on.
+     * @param operation    Operation to perform.
+     * @param timeoutNanos Maximum time to wait, NO_TIMEOUT if we wait until we get the Resource,
+     *                     0 if we don't wait at all.
+     * @return True if the operation was performed, false if we didn't get the Resource in time.
+     */
+    boolean operate(Transaction transaction, ResourceId rid, ResourceOperation operation, long timeoutNanos) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        checkCanOperate(transaction);
+        ResourceLock lock = locks.get(rid);
+        if (lock == null) {
             throw new UnknownResourceIdException(rid);
         }
 
-        long myThreadId = Thread.currentThread().getId();
-        long differentId = myThreadId + 1; // Always different from myThreadId
+        if (!acquire(transaction.getRoot(), lock, LockMode.of(operation), timeoutNanos)) {
+            return false;
+        }
 
-        // We don't enter if we have previously locked the resource
-        if (resourceLockedBy.getOrDefault(rid, differentId) != myThreadId) {
-            if (!lockResource(rid)) {
-                waitForResource(rid);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        operation.execute(lock.getResource()); // Can throw ResourceOperationException, below code won't be executed
+
+        transaction.getUndoLog().add(lock.getResource(), operation);
+        return true;
+    }
+
+    /**
+     * Performs a batch of operations in the current transaction. First all needed resources are
+     * acquired in the order of their ids, which can't lead to a deadlock within the batch, then the
+     * operations are performed in the given order. If an operation fails, the following ones are not
+     * performed and the preceding ones stay in the transaction, as if they were performed one by one.
+     *
+     * @param operations Pairs of ids of Resources and operations to perform on them.
+     */
+    public void operateOnResourcesInCurrentTransaction(
+            Collection<? extends Map.Entry<ResourceId, ResourceOperation>> operations) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        operateAll(activeCurrent(), operations);
+    }
+
+    /**
+     * Performs a batch of operations in the given transaction like operateOnResourcesInCurrentTransaction.
+     *
+     * @param transaction Handle of a transaction of the current thread.
+     * @param operations  Pairs of ids of Resources and operations to perform on them.
+     */
+    void operateAll(Transaction transaction, Collection<? extends Map.Entry<ResourceId, ResourceOperation>> operations)
+            throws NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        checkCanOperate(transaction);
+
+        int size = operations.size();
+        ResourceLock[] batchLocks = new ResourceLock[size];
+        ResourceOperation[] batchOperations = new ResourceOperation[size];
+        long[] order = new long[size]; // Ordinal of the resource in high bits, position in the batch in low bits
+        int i = 0;
+        for (Map.Entry<ResourceId, ResourceOperation> entry : operations) {
+            ResourceLock lock = locks.get(entry.getKey());
+            if (lock == null) {
+                throw new UnknownResourceIdException(entry.getKey());
             }
+            batchLocks[i] = lock;
+            batchOperations[i] = entry.getValue();
+            order[i] = ((long) lock.getOrdinal() << 32) | i;
+            i++;
+        }
+        Arrays.sort(order);
+
+        int first = 0;
+        while (first < size) { // Each resource is acquired once, in a mode all its operations allow
+            ResourceLock lock = batchLocks[(int) order[first]];
+            LockMode mode = LockMode.of(batchOperations[(int) order[first]]);
+            int next = first + 1;
+            while (next < size && batchLocks[(int) order[next]] == lock) {
+                mode = mode.with(LockMode.of(batchOperations[(int) order[next]]));
+                next++;
+            }
+            acquire(transaction.getRoot(), lock, mode, NO_TIMEOUT);
+            first = next;
         }
 
         if (Thread.interrupted()) {
             throw new InterruptedException();
         }
 
-        operation.execute(resources.get(rid)); // Can throw ResourceOperationException, below code won't be executed
+        for (i = 0; i < size; i++) {
+            batchOperations[i].execute(batchLocks[i].getResource()); // Can throw ResourceOperationException
+            transaction.getUndoLog().add(batchLocks[i].getResource(), batchOperations[i]);
+        }
+    }
+
+    @Override
+    public void operateOnResourceInCurrentTransaction(ResourceId rid, ResourceOperation operation) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        operate(activeCurrent(), rid, operation, NO_TIMEOUT);
+    }
+
+    /**
+     * Performs an operation on a resource in the current transaction like
+     * operateOnResourceInCurrentTransaction, but fails fast instead of waiting
+     * if the resource is controlled by other transaction in a conflicting mode.
+     *
+     * @param rid       Id of the Resource to operate on.
+     * @param operation Operation to perform.
+     * @return True if the operation was performed, false if the Resource is not available.
+     * The transaction is left unchanged in the latter case.
+     */
+    public boolean tryOperateOnResourceInCurrentTransaction(ResourceId rid, ResourceOperation operation) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        return operate(activeCurrent(), rid, operation, 0);
+    }
+
+    /**
+     * Performs an operation on a resource in the current transaction like
+     * operateOnResourceInCurrentTransaction, but waits for the resource at most a given time.
+     *
+     * @param rid       Id of the Resource to operate on.
+     * @param operation Operation to perform.
+     * @param timeout   Maximum time to wait for the Resource.
+     * @param unit      Unit of the timeout.
+     * @return True if the operation was performed, false if the time to wait has elapsed.
+     * The transaction is left unchanged in the latter case.
+     */
+    public boolean tryOperateOnResourceInCurrentTransaction(ResourceId rid, ResourceOperation operation,
+                                                            long timeout, TimeUnit unit) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        return operate(activeCurrent(), rid, operation, unit.toNanos(timeout)); // Saturates to NO_TIMEOUT for huge timeouts
+    }
+
 
-        SuccessfulOperation op = new SuccessfulOperation(rid, operation);
-        transactionOperations.get().get(this).addFirst(op);
+    /**
+     * Cleans up after a transaction is ended. Removes information that is no longer necessary
+     * and wakes up threads waiting for the released resources. Only the resources locked
+     * by the transaction are visited. Logs of the transaction are left empty for the next one.
+     *
+     * @param transaction Transaction of the current thread that is ending.
+     */
+    private void cleanup(Transaction transaction) {
+        List<ResourceLock> lockedResources = transaction.getLockedResources();
+        for (int i = 0; i < lockedResources.size(); i++) {
+            lockedResources.get(i).unlock(transaction); // Unlocks resources that were in control of this transaction
+        }
+        lockedResources.clear();
+        transaction.getUndoLog().clear();
+        transaction.end(); // Edge of the graph of waiting threads was removed when we stopped waiting
     }
 
+    /**
+     * Commits the given transaction. A nested transaction leaves its operations and resources
+     * to the enclosing transaction.
+     *
+     * @param transaction Handle of a transaction of the current thread.
+     */
+    void commit(Transaction transaction) throws NoActiveTransactionException, ActiveTransactionAborted {
+        checkCanOperate(transaction);
+        if (transaction.getEnclosing() == null) {
+            if (transaction.stopAbortInterrupts()) {
+                Thread.interrupted(); // An abort that came after the check is ignored, with its interrupt
+            }
+            cleanup(transaction);
+        } else {
+            transaction.end();
+            transaction.getEnclosing().setNested(null);
+        }
+    }
 
     /**
-     * Cleans up after a transaction is ended. Removes information that is no longer necessary.
+     * First phase of committing a top-level transaction spanning many managers. Checks that the part
+     * of the transaction in this manager may commit and makes sure it stays so: a prepared transaction
+     * can't be used any more and isn't wounded. A waiting transaction can't be prepared, so it's never
+     * chosen as the victim of a deadlock either. Preparing again, when committing is retried after
+     * another part failed to prepare, only checks the transaction.
+     *
+     * @param transaction Handle of a top-level transaction of the current thread.
      */
-    private synchronized void cleanup() {
-        long myThreadId = Thread.currentThread().getId();
-        for (Map.Entry<ResourceId, Long> entry : resourceLockedBy.entrySet()) {
-            if (entry.getValue() == myThreadId) {
-                resourceLockedBy.remove(entry.getKey()); // Unlocks resources that were in control of this thread
+    void prepare(Transaction transaction) throws NoActiveTransactionException, ActiveTransactionAborted {
+        if (!transaction.isPrepared()) {
+            checkCanOperate(transaction);
+            transaction.prepare();
+        } else {
+            checkOwner(transaction);
+            if (!transaction.isActive()) {
+                throw new NoActiveTransactionException();
             }
         }
-        waitsForResource.remove(myThreadId);
-        isAborted.remove(myThreadId);
-        transactionOperations.get().remove(this);
-        startTime.remove(myThreadId);
-        notifyAll(); // Wakes up other threads, they can lock the released resources
+        if (transaction.isAborted()) { // Aborted before it was marked
+            throw new ActiveTransactionAborted();
+        }
     }
 
-    @Override
-    public void commitCurrentTransaction() throws NoActiveTransactionException, ActiveTransactionAborted {
-        if (!isTransactionActive()) {
+    /**
+     * Second phase of committing a transaction spanning many managers, once all its parts are prepared.
+     * Aborts that came after preparing are ignored, like those that come after the check in commit().
+     *
+     * @param transaction Prepared transaction of the current thread.
+     */
+    void commitPrepared(Transaction transaction) {
+        checkOwner(transaction);
+        if (transaction.isActive()) {
+            if (transaction.stopAbortInterrupts()) {
+                Thread.interrupted(); // Aborts after preparing are ignored, with their interrupts
+            }
+            cleanup(transaction);
+        }
+    }
+
+    /**
+     * Begins a transaction nested in the given one.
+     *
+     * @param enclosing Handle of a transaction of the current thread.
+     * @return Handle of the nested transaction.
+     */
+    Transaction beginNested(Transaction enclosing) throws NoActiveTransactionException, ActiveTransactionAborted {
+        checkCanOperate(enclosing);
+        Transaction nested = new Transaction(enclosing);
+        enclosing.setNested(nested);
+        return nested;
+    }
+
+    /**
+     * Sets a savepoint in the given transaction.
+     *
+     * @param transaction Handle of a transaction of the current thread.
+     * @return Savepoint at the current position of the transaction.
+     */
+    Savepoint setSavepoint(Transaction transaction) throws NoActiveTransactionException, ActiveTransactionAborted {
+        checkCanOperate(transaction);
+        return new Savepoint(transaction, transaction.getUndoLog().size(), transaction.getLockedResources().size(),
+                transaction.addSavepoint(), transaction.getRollbackEpoch());
+    }
+
+    /**
+     * Undoes operations performed in the given transaction after a savepoint, the most recent one first,
+     * and releases resources first used after it, which have their values from before the transaction again.
+     * Resources used before the savepoint stay in control of the transaction, in their current modes.
+     *
+     * @param transaction Handle of a transaction of the current thread.
+     * @param savepoint   Savepoint set in the transaction and not rolled back past.
+     */
+    void rollbackTo(Transaction transaction, Savepoint savepoint)
+            throws NoActiveTransactionException, ActiveTransactionAborted {
+        checkCanOperate(transaction);
+        if (savepoint.getTransaction() != transaction || !transaction.isValid(savepoint)) {
+            throw new IllegalArgumentException("Savepoint is not valid in this transaction");
+        }
+        undoTo(transaction, savepoint.getOperations(), savepoint.getLocks());
+        transaction.rolledBackTo(savepoint);
+    }
+
+    /**
+     * Undoes operations of the given transaction after a position in its logs and releases
+     * resources first used after it.
+     *
+     * @param transaction Transaction of the current thread.
+     * @param operations  Number of operations that stay in the undo log.
+     * @param locks       Number of resources that stay in control of the transaction.
+     */
+    private void undoTo(Transaction transaction, int operations, int locks) {
+        List<ResourceLock> lockedResources = transaction.getLockedResources();
+        transaction.getUndoLog().undoTo(operations);
+        for (int i = lockedResources.size() - 1; i >= locks; i--) {
+            lockedResources.remove(i).unlock(transaction.getRoot()); // Top-level transaction holds the resources
+        }
+    }
+
+    /**
+     * Rolls back the given transaction, if it is active, with transactions nested in it.
+     * A nested transaction undoes only its own operations and releases only resources it used first.
+     *
+     * @param transaction Handle of a transaction of the current thread.
+     */
+    void rollback(Transaction transaction) {
+        checkOwner(transaction);
+        if (!transaction.isActive()) {
+            return;
+        }
+        for (Transaction nested = transaction.getNested(); nested != null; nested = nested.getNested()) {
+            nested.end();
+        }
+        transaction.setNested(null);
+        transaction.rolledBack();
+        if (transaction.getEnclosing() == null) {
+            transaction.getUndoLog().undoAll(); // We reverse every successful operation that we did
+            cleanup(transaction);
+        } else {
+            undoTo(transaction, transaction.getFirstOperation(), transaction.getFirstLock());
+            transaction.end();
+            transaction.getEnclosing().setNested(null);
+        }
+    }
+
+    /**
+     * @return Active transaction started in the current thread with startTransaction().
+     */
+    private Transaction activeCurrent() throws NoActiveTransactionException {
+        Transaction transaction = current();
+        if (transaction == null) {
             throw new NoActiveTransactionException();
-        } else if (isTransactionAborted()) {
-            throw new ActiveTransactionAborted();
         }
-        cleanup();
+        return transaction;
+    }
 
+    /**
+     * Sets a savepoint in the transaction of the current thread. Rolling back to the savepoint undoes
+     * only operations performed after it, so the transaction can recover from a failed step without
+     * redoing earlier operations and locking their resources again.
+     *
+     * @return Savepoint at the current position of the transaction.
+     */
+    public Savepoint setSavepointInCurrentTransaction() throws NoActiveTransactionException, ActiveTransactionAborted {
+        return setSavepoint(activeCurrent());
+    }
+
+    /**
+     * Rolls the transaction of the current thread back to a savepoint set in it. The transaction stays active,
+     * keeps resources it used before the savepoint and releases those it first used after it.
+     *
+     * @param savepoint Savepoint set in the transaction, not invalidated by rolling back to an earlier one.
+     */
+    public void rollbackCurrentTransactionTo(Savepoint savepoint)
+            throws NoActiveTransactionException, ActiveTransactionAborted {
+        rollbackTo(activeCurrent(), savepoint);
+    }
+
+    /**
+     * Starts a transaction nested in the transaction of the current thread, which becomes the current one
+     * until it ends. The nested transaction uses resources of the enclosing one and its resources are
+     * inherited by the enclosing one on commit, so library code can run its own transactions within
+     * transactions of its callers. Rolling back the nested transaction undoes only its own operations.
+     * Aborting a transaction aborts transactions nested in it and those it is nested in, as they share
+     * resources. The enclosing transaction can't be used until the nested one ends.
+     */
+    public void startNestedTransaction() throws NoActiveTransactionException, ActiveTransactionAborted {
+        currentTransaction.set(beginNested(activeCurrent()));
+    }
+
+    @Override
+    public void commitCurrentTransaction() throws NoActiveTransactionException, ActiveTransactionAborted {
+        Transaction transaction = activeCurrent();
+        commit(transaction);
+        endCurrent(transaction);
     }
 
     @Override
     public void rollbackCurrentTransaction() {
-        if (!isTransactionActive()) {
-            return;
+        Transaction transaction = current();
+        if (transaction != null) {
+            rollback(transaction);
+            endCurrent(transaction);
         }
-        Deque<SuccessfulOperation> toReverse = transactionOperations.get().get(this);
+    }
 
-        while (!toReverse.isEmpty()) { // We reverse every successful operation that we did
-            SuccessfulOperation op = toReverse.pollFirst();
-            ResourceOperation operationToReverse = op.getOperation();
-            ResourceId rid = op.getResourceId();
-            operationToReverse.undo(resources.get(rid));
+    /**
+     * Makes the transaction enclosing the ended current transaction the current one, if there is any.
+     *
+     * @param transaction Current transaction that has ended.
+     */
+    private void endCurrent(Transaction transaction) {
+        if (transaction.getEnclosing() == null) {
+            currentTransaction.remove();
+        } else {
+            currentTransaction.set(transaction.getEnclosing());
         }
-        cleanup();
     }
 
     @Override
     public boolean isTransactionActive() {
-        return transactionOperations.get().containsKey(this);
+        return current() != null;
     }
 
     @Override
     public boolean isTransactionAborted() {
-        return isTransactionActive() && isAborted.get(Thread.currentThread().getId());
+        Transaction transaction = current();
+        return transaction != null && transaction.isAborted();
     }
 }
@@ -0,0 +1,138 @@
+package cp1.solution;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Breaks deadlocks spanning many managers, found in a graph of waiting threads built from the graphs
+ * of all of them. Nodes of the joint graph are threads, as a thread has at most one transaction
+ * in a manager and waits in at most one manager at a time. Used by sharded managers and by coordinators
+ * of distributed transactions, called periodically by their DeadlockDetector, so it may allocate.
+ */
+final class JointWaitsForGraph {
+
+    private JointWaitsForGraph() {
+    }
+
+    /**
+     * Finds and breaks deadlocks spanning the given managers, while holding locks of their graphs.
+     * Locks are taken in the order of ids of managers, so scans of sets of managers sharing some
+     * of them don't deadlock each other. Only managers with detection policies keep their graphs,
+     * others are skipped. Only waiting transactions can be in a cycle and they can't stop waiting
+     * while graphs are locked, so every found cycle exists.
+     *
+     * @param managers       Managers whose graphs are joined.
+     * @param victimSelector Way of choosing which transaction of a deadlock is aborted.
+     * @return Number of aborted transactions.
+     */
+    static int breakDeadlocks(Collection<ImplementedTransactionManager> managers, VictimSelector victimSelector) {
+        List<ImplementedTransactionManager> locked = new ArrayList<>();
+        for (ImplementedTransactionManager manager : managers) {
+            if (manager.detectsDeadlocks()) {
+                locked.add(manager);
+            }
+        }
+        locked.sort(Comparator.comparingLong(ImplementedTransactionManager::getId));
+        for (ImplementedTransactionManager manager : locked) {
+            manager.lockWaitsForGraph();
+        }
+        try {
+            Map<Long, Transaction> waiting = new HashMap<>(); // Waiting part of each waiting thread
+            for (ImplementedTransactionManager manager : locked) {
+                for (Transaction part = manager.getFirstWaiting(); part != null; part = part.getNextWaiting()) {
+                    if (!part.isAborted()) {
+                        waiting.put(part.getThreadId(), part);
+                    }
+                }
+            }
+            Map<Long, List<Long>> waitsFor = new HashMap<>(); // Waiting threads for which each waiting thread waits
+            List<Transaction> holders = new ArrayList<>();
+            for (Transaction part : waiting.values()) {
+                part.getWaitsForResource().getConflictingHolders(part, part.getWaitsForMode(), holders);
+                List<Long> waited = new ArrayList<>();
+                for (Transaction holder : holders) {
+                    if (waiting.containsKey(holder.getThreadId())) {
+                        waited.add(holder.getThreadId());
+                    }
+                }
+                holders.clear();
+                waitsFor.put(part.getThreadId(), waited);
+            }
+
+            int aborted = 0;
+            for (List<Long> cycle = findCycle(waitsFor); cycle != null; cycle = findCycle(waitsFor)) {
+                Transaction victim = waiting.get(cycle.get(0));
+                for (int i = 1; i < cycle.size(); i++) {
+                    Transaction candidate = waiting.get(cycle.get(i));
+                    if (victimSelector.isBetterVictim(candidate, victim)) {
+                        victim = candidate;
+                    }
+                }
+                victim.getManager().abort(victim);
+                waitsFor.remove(victim.getThreadId()); // It stops waiting
+                aborted++;
+            }
+            return aborted;
+        } finally {
+            for (int i = locked.size() - 1; i >= 0; i--) {
+                locked.get(i).unlockWaitsForGraph();
+            }
+        }
+    }
+
+    /**
+     * Finds a cycle in a graph of waiting threads with a depth-first search.
+     *
+     * @param waitsFor Threads for which each waiting thread waits, only threads that are keys wait.
+     * @return Threads of a cycle, null if there is none.
+     */
+    private static List<Long> findCycle(Map<Long, List<Long>> waitsFor) {
+        Set<Long> finished = new HashSet<>(); // Threads from which no cycle can be reached
+        Set<Long> onPath = new HashSet<>();
+        Deque<Long> path = new ArrayDeque<>();
+        Map<Long, Integer> nextEdge = new HashMap<>(); // Index of the next edge to follow from a thread on the path
+        for (Long start : waitsFor.keySet()) {
+            if (finished.contains(start)) {
+                continue;
+            }
+            path.push(start);
+            onPath.add(start);
+            while (!path.isEmpty()) {
+                Long thread = path.peek();
+                List<Long> edges = waitsFor.getOrDefault(thread, Collections.emptyList());
+                int edge = nextEdge.getOrDefault(thread, 0);
+                if (edge == edges.size()) {
+                    path.pop();
+                    onPath.remove(thread);
+                    finished.add(thread);
+                    continue;
+                }
+                nextEdge.put(thread, edge + 1);
+                Long next = edges.get(edge);
+                if (onPath.contains(next)) {
+                    List<Long> cycle = new ArrayList<>();
+                    for (Long onCycle : path) { // From the top of the path down to the repeated thread
+                        cycle.add(onCycle);
+                        if (onCycle.equals(next)) {
+                            break;
+                        }
+                    }
+                    return cycle;
+                } else if (waitsFor.containsKey(next) && !finished.contains(next)) {
+                    path.push(next);
+                    onPath.add(next);
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,167 @@
+package cp1.solution;
+
+import cp1.base.CommutativeResourceOperation;
+import cp1.base.ReadOnlyResourceOperation;
+import cp1.base.ResourceOperation;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mode in which a transaction controls a Resource. Any number of transactions
+ * can hold a resource in SHARED mode at once, EXCLUSIVE mode excludes every other holder.
+ * Each class of commutative operations has its own mode, in which any number of transactions
+ * can hold a resource at once, like in SHARED mode. Users may register further modes and tie them
+ * to classes of operations. A new mode is compatible with itself or not, and with chosen modes
+ * registered before it, which together make up the compatibility matrix of all modes. Compatibility
+ * of existing modes never changes, so transactions holding a resource never start conflicting.
+ */
+public final class LockMode {
+    private static final AtomicInteger modesNum = new AtomicInteger(0); // Gives modes their indexes in the matrix
+
+    public static final LockMode SHARED = new LockMode("SHARED", true);
+    public static final LockMode EXCLUSIVE = new LockMode("EXCLUSIVE", false);
+
+    // Mode of commutative operations of a class, created once per class
+    private static final ClassValue<LockMode> commutative = new ClassValue<>() {
+        @Override
+        protected LockMode computeValue(Class<?> type) {
+            return new LockMode("COMMUTATIVE " + type.getName(), true);
+        }
+    };
+
+    private static final Map<Class<?>, LockMode> tied = new ConcurrentHashMap<>(); // Modes tied to classes by users
+    private static volatile int tiesNum = 0; // Number of classes tied so far, tells if a found Binding is stale
+
+    // Mode of operations of a class, found once per class and found again after a class is tied
+    private static final ClassValue<Binding> bindings = new ClassValue<>() {
+        @Override
+        protected Binding computeValue(Class<?> type) {
+            int ties = tiesNum; // Read before the map, a class tied later makes the binding stale
+            for (Class<?> c = type; c != ResourceOperation.class; c = c.getSuperclass()) {
+                LockMode mode = tied.get(c);
+                if (mode != null) {
+                    return new Binding(mode, ties);
+                }
+            }
+            if (ReadOnlyResourceOperation.class.isAssignableFrom(type)) {
+                return new Binding(SHARED, ties);
+            } else if (CommutativeResourceOperation.class.isAssignableFrom(type)) {
+                return new Binding(commutative.get(type), ties);
+            } else {
+                return new Binding(EXCLUSIVE, ties);
+            }
+        }
+    };
+
+    private final String name;
+    private final int index; // Row and column of the mode in the compatibility matrix
+    private final BitSet compatible; // Indexes of compatible modes, among this one and the ones created before it
+
+    private LockMode(String name, boolean selfCompatible, LockMode... compatibleModes) {
+        this.name = name;
+        this.index = modesNum.getAndIncrement();
+        this.compatible = new BitSet(index + 1);
+        if (selfCompatible) {
+            compatible.set(index);
+        }
+        for (LockMode mode : compatibleModes) {
+            compatible.set(mode.index);
+        }
+    }
+
+    /**
+     * Registers a new mode and ties it to a class of operations, like {@link #tie(Class)}.
+     * Operations of the class lock resources in the new mode. Matrix of compatibility is symmetric,
+     * so given modes become compatible with the new one.
+     *
+     * @param name            Name of the mode.
+     * @param operations      Class of operations that lock resources in the new mode.
+     * @param selfCompatible  True if many transactions may hold a resource in the new mode at once.
+     * @param compatibleModes Modes in which other transactions may hold a resource together with the new one.
+     * @return The new mode.
+     */
+    public static LockMode register(String name, Class<? extends ResourceOperation> operations,
+                                    boolean selfCompatible, LockMode... compatibleModes) {
+        for (LockMode mode : compatibleModes) {
+            if (mode == EXCLUSIVE) {
+                throw new IllegalArgumentException("EXCLUSIVE mode is compatible with no mode");
+            }
+        }
+        LockMode mode = new LockMode(name, selfCompatible, compatibleModes);
+        mode.tie(operations);
+        return mode;
+    }
+
+    /**
+     * Ties a class of operations to this mode. Operations of the class and of its subclasses
+     * lock resources in this mode, unless a subclass is tied to another mode. Tying a class decides
+     * the mode of operations performed afterwards, so it should be done before transactions use them.
+     * A class can be tied to one mode only, and base classes of operations keep their modes.
+     *
+     * @param operations Class of operations that lock resources in this mode.
+     */
+    public void tie(Class<? extends ResourceOperation> operations) {
+        if (operations == ResourceOperation.class || operations == ReadOnlyResourceOperation.class
+                || operations == CommutativeResourceOperation.class) {
+            throw new IllegalArgumentException("Mode of " + operations.getName() + " can't be changed");
+        }
+        synchronized (tied) {
+            if (tied.putIfAbsent(operations, this) != null) {
+                throw new IllegalArgumentException(operations.getName() + " is already tied to a mode");
+            }
+            tiesNum++; // After the class is in the map
+        }
+    }
+
+    /**
+     * @param operation Operation we want to perform.
+     * @return Mode in which the resource has to be locked to perform the operation.
+     */
+    public static LockMode of(ResourceOperation operation) {
+        Class<? extends ResourceOperation> type = operation.getClass();
+        Binding binding = bindings.get(type);
+        while (binding.ties != tiesNum) { // A class was tied since, maybe a superclass of this one
+            bindings.remove(type);
+            binding = bindings.get(type);
+        }
+        return binding.mode;
+    }
+
+    /**
+     * @param other Mode of another holder of a resource.
+     * @return True if one transaction may hold the resource in this mode while another holds it in the other one.
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        // The later created of the two modes knows if they are compatible
+        return index >= other.index ? compatible.get(other.index) : other.compatible.get(index);
+    }
+
+    /**
+     * @param other Another mode needed by the same transaction.
+     * @return Weakest mode allowing operations of both modes, EXCLUSIVE unless the modes are the same.
+     */
+    LockMode with(LockMode other) {
+        return this == other ? this : EXCLUSIVE;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Mode of operations of a class, with the number of classes tied when it was found.
+     */
+    private static final class Binding {
+        private final LockMode mode;
+        private final int ties;
+
+        private Binding(LockMode mode, int ties) {
+            this.mode = mode;
+            this.ties = ties;
+        }
+    }
+}
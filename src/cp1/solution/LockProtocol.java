@@ -0,0 +1,123 @@
+package cp1.solution;
+
+import cp1.base.ReadOnlyResourceOperation;
+import cp1.base.Resource;
+import cp1.base.ResourceId;
+import cp1.base.ResourceOperation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format shared by the LockServer and RemoteTransactionManager. Every message is a frame of the same
+ * fixed size, so frames of many transactions are pipelined over one connection without length prefixes:
+ * type of the message, id of the request, id of the session of a remote transaction, ordinal of a resource
+ * and a one-byte argument, the mode of the lock in requests and the status in responses.
+ * Resources are identified by their positions in the list given to every client, in the same order.
+ */
+final class LockProtocol {
+    static final int FRAME_SIZE = 1 + 8 + 8 + 4 + 1;
+
+    // Requests of clients, sent for the session of a transaction
+    static final byte BEGIN = 1;
+    static final byte OPERATE = 2; // Locks the resource of the given ordinal in the given mode
+    static final byte COMMIT = 3;
+    static final byte ROLLBACK = 4;
+    static final byte IS_ABORTED = 5;
+    static final byte INTERRUPT = 6; // Interrupts the request of the given id if it waits, no response
+    // Messages of the server
+    static final byte RESPONSE = 7; // Status of the request of the given id
+    static final byte ABORTED = 8; // Transaction of the session was aborted while its client wasn't waiting for it
+
+    // Modes of locks
+    static final byte SHARED = 0;
+    static final byte EXCLUSIVE = 1;
+
+    // Statuses of responses, all but OK and TRUE stand for exceptions thrown on the server
+    static final byte OK = 0;
+    static final byte TRUE = 1; // Answer to IS_ABORTED
+    static final byte TRANSACTION_ABORTED = 2;
+    static final byte INTERRUPTED = 3;
+    static final byte UNKNOWN_RESOURCE = 4;
+    static final byte NO_ACTIVE_TRANSACTION = 5;
+
+    /**
+     * Operation that only locks a stand-in for a resource in EXCLUSIVE mode, the real operation
+     * is performed by the client once the lock is granted.
+     */
+    static final ResourceOperation LOCK_EXCLUSIVE = new ResourceOperation() {
+        @Override
+        public void execute(Resource r) {
+        }
+
+        @Override
+        public void undo(Resource r) {
+        }
+    };
+
+    /**
+     * Operation that only locks a stand-in for a resource in SHARED mode.
+     */
+    static final ResourceOperation LOCK_SHARED = new ReadOnlyResourceOperation() {
+        @Override
+        public void execute(Resource r) {
+        }
+    };
+
+    private LockProtocol() {
+    }
+
+    /**
+     * Appends a frame to the buffer.
+     *
+     * @param buffer    Buffer with at least FRAME_SIZE bytes remaining.
+     * @param type      Type of the message.
+     * @param requestId Id of the request, unique in the connection, 0 for ABORTED.
+     * @param session   Id of the session of the transaction, unique in the connection.
+     * @param ordinal   Ordinal of the resource of OPERATE, 0 for other messages.
+     * @param argument  Mode of the lock of OPERATE, status of RESPONSE, 0 for other messages.
+     */
+    static void put(ByteBuffer buffer, byte type, long requestId, long session, int ordinal, byte argument) {
+        buffer.put(type).putLong(requestId).putLong(session).putInt(ordinal).put(argument);
+    }
+
+    /**
+     * @param operation Operation to perform on a resource.
+     * @return Mode of the lock needed by the operation, like {@link LockMode#of(ResourceOperation)},
+     * EXCLUSIVE for operations in any other mode, such as commutative or registered ones, which aren't sent.
+     */
+    static byte modeOf(ResourceOperation operation) {
+        return LockMode.of(operation) == LockMode.SHARED ? SHARED : EXCLUSIVE;
+    }
+
+    /**
+     * Id of the stand-in for a resource on the server, which orders resources like their ordinals.
+     */
+    static final class OrdinalId implements ResourceId {
+        private final int ordinal;
+
+        OrdinalId(int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public int compareTo(ResourceId other) {
+            return Integer.compare(ordinal, ((OrdinalId) other).ordinal);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof OrdinalId && ordinal == ((OrdinalId) obj).ordinal;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(ordinal);
+        }
+
+        @Override
+        public String toString() {
+            return "R#" + ordinal;
+        }
+    }
+
+}
@@ -0,0 +1,470 @@
+package cp1.solution;
+
+import cp1.base.ActiveTransactionAborted;
+import cp1.base.AnotherTransactionActiveException;
+import cp1.base.LocalTimeProvider;
+import cp1.base.NoActiveTransactionException;
+import cp1.base.Resource;
+import cp1.base.ResourceOperationException;
+import cp1.base.UnknownResourceIdException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server sharing locks of a set of resources between processes, which use them through
+ * RemoteTransactionManager. Locks are controlled by an ImplementedTransactionManager over stand-ins
+ * for the resources, with its deadlock policy, and clients perform operations on their own copies
+ * of the resources once they get the locks.
+ * A single thread serves all connections with a non-blocking Selector. Each remote transaction
+ * is a session served by a pooled worker thread for as long as the transaction is active, as locks
+ * of the manager are held by threads and acquiring them blocks. Requests of a session are executed
+ * in order, while requests of different sessions of a connection are pipelined.
+ * The pool has a bounded number of workers. Sessions begun while all of them are busy wait in a queue,
+ * holding no locks, and their transactions begin once a worker is free, so a client waiting for
+ * a transaction to begin while its other transactions hold workers may wait until one of them ends.
+ * A transaction aborted while its client doesn't wait for a response is reported to the client,
+ * which interrupts the thread of the transaction, like the manager interrupts its own threads.
+ * Transactions of a closed connection are rolled back.
+ */
+public class LockServer implements Closeable {
+    private static final long NONE = 0; // No request, ids of requests are positive
+    private static final Request CLOSE = new Request((byte) 0, NONE, 0, (byte) 0); // Ends the session
+    private static final int DEFAULT_MAX_WORKERS = 64;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60; // Idle workers end after this time
+
+    private final ImplementedTransactionManager manager;
+    private final LockProtocol.OrdinalId[] ids; // Id of the stand-in for the resource of the given ordinal
+    private final ThreadPoolExecutor workers; // Serves sessions, queues them while all workers are busy
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Queue<Connection> toFlush = new ConcurrentLinkedQueue<>(); // Connections with new responses
+    private final List<Connection> connections = new ArrayList<>(); // Used only by the selector thread
+    private Thread selectorThread; // Null until the server is bound
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a server of locks of the given number of resources, serving at most 64 transactions
+     * at once. It doesn't accept connections until it is bound.
+     *
+     * @param resourcesNum   Number of resources, clients refer to them by positions in their lists.
+     * @param timeProvider   Provider of the start time of transactions.
+     * @param deadlockPolicy Way of dealing with deadlocks.
+     */
+    public LockServer(int resourcesNum, LocalTimeProvider timeProvider, DeadlockPolicy deadlockPolicy)
+            throws IOException {
+        this(resourcesNum, timeProvider, deadlockPolicy, DEFAULT_MAX_WORKERS);
+    }
+
+    /**
+     * Creates a server of locks of the given number of resources, serving at most the given number
+     * of transactions at once. It doesn't accept connections until it is bound.
+     *
+     * @param resourcesNum   Number of resources, clients refer to them by positions in their lists.
+     * @param timeProvider   Provider of the start time of transactions.
+     * @param deadlockPolicy Way of dealing with deadlocks.
+     * @param maxWorkers     Maximum number of worker threads, each serving one active transaction.
+     */
+    public LockServer(int resourcesNum, LocalTimeProvider timeProvider, DeadlockPolicy deadlockPolicy,
+                      int maxWorkers) throws IOException {
+        if (maxWorkers <= 0) {
+            throw new IllegalArgumentException("Server needs at least one worker");
+        }
+        this.workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "lock-server-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        workers.allowCoreThreadTimeOut(true);
+        List<Resource> standIns = new ArrayList<>();
+        this.ids = new LockProtocol.OrdinalId[resourcesNum];
+        for (int i = 0; i < resourcesNum; i++) {
+            ids[i] = new LockProtocol.OrdinalId(i);
+            standIns.add(new Resource(ids[i]));
+        }
+        this.manager = new ImplementedTransactionManager(standIns, timeProvider, deadlockPolicy);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+    }
+
+    /**
+     * Binds the server to an address and starts serving connections in a new thread.
+     *
+     * @param address Address to bind to, with port 0 for any free port.
+     * @return Address the server is bound to.
+     */
+    public InetSocketAddress bind(InetSocketAddress address) throws IOException {
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        selectorThread = new Thread(this::serve, "lock-server");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * @param victimSelector Way of choosing which transaction of a deadlock is aborted.
+     */
+    public void setVictimSelector(VictimSelector victimSelector) {
+        manager.setVictimSelector(victimSelector);
+    }
+
+    /**
+     * Stops the server, closing all connections. Returns once they are closed, while their transactions
+     * are still being rolled back.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (selectorThread == null) {
+            closeChannels();
+            return;
+        }
+        selector.wakeup(); // The selector thread closes everything it uses
+        boolean interrupted = false;
+        while (true) {
+            try {
+                selectorThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeChannels() throws IOException {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        workers.shutdown();
+        serverChannel.close();
+        selector.close();
+    }
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+                for (Connection connection = toFlush.poll(); connection != null; connection = toFlush.poll()) {
+                    connection.flush();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The selector failed, nothing more can be served
+        } finally {
+            try {
+                closeChannels();
+            } catch (IOException e) {
+                // Nothing more to do with the server
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+    }
+
+    /**
+     * Connection of a client, read and written only by the selector thread.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer input = ByteBuffer.allocate(64 * LockProtocol.FRAME_SIZE);
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>(); // Frames waiting to be written
+        private final Map<Long, Session> sessions = new ConcurrentHashMap<>(); // Active sessions by their ids
+        private volatile boolean open = true;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void read() {
+            try {
+                if (channel.read(input) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            input.flip();
+            while (input.remaining() >= LockProtocol.FRAME_SIZE) {
+                handle(input.get(), input.getLong(), input.getLong(), input.getInt(), input.get());
+            }
+            input.compact();
+        }
+
+        private void handle(byte type, long requestId, long sessionId, int ordinal, byte argument) {
+            Session session = sessions.get(sessionId);
+            if (type == LockProtocol.BEGIN) {
+                session = new Session(this, sessionId, requestId);
+                sessions.put(sessionId, session);
+                workers.execute(session);
+            } else if (type == LockProtocol.INTERRUPT) {
+                if (session != null) {
+                    session.interrupt(requestId);
+                }
+            } else if (type == LockProtocol.IS_ABORTED) { // Answered at once, even if the session waits
+                boolean aborted = session != null && session.transaction != null && session.transaction.isAborted();
+                send(LockProtocol.RESPONSE, requestId, sessionId,
+                        aborted ? LockProtocol.TRUE : LockProtocol.OK);
+            } else if (session == null) {
+                send(LockProtocol.RESPONSE, requestId, sessionId, LockProtocol.NO_ACTIVE_TRANSACTION);
+            } else {
+                session.requests.add(new Request(type, requestId, ordinal, argument));
+            }
+        }
+
+        /**
+         * Queues a frame to be written by the selector thread. Called by any thread.
+         */
+        private void send(byte type, long requestId, long sessionId, byte argument) {
+            if (!open) {
+                return;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(LockProtocol.FRAME_SIZE);
+            LockProtocol.put(frame, type, requestId, sessionId, 0, argument);
+            frame.flip();
+            output.add(frame);
+            toFlush.add(this);
+            selector.wakeup();
+        }
+
+        private void flush() {
+            if (!open) {
+                return;
+            }
+            try {
+                for (ByteBuffer frame = output.peek(); frame != null; frame = output.peek()) {
+                    channel.write(frame);
+                    if (frame.hasRemaining()) {
+                        break;
+                    }
+                    output.poll();
+                }
+                // Frames queued after the loop come with the connection in toFlush
+                key.interestOps(output.isEmpty() ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more to do with the connection
+            }
+            for (Session session : sessions.values()) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Request of a client queued for the worker of its session.
+     */
+    private static final class Request {
+        private final byte type;
+        private final long id;
+        private final int ordinal;
+        private final byte mode;
+
+        private Request(byte type, long id, int ordinal, byte mode) {
+            this.type = type;
+            this.id = id;
+            this.ordinal = ordinal;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * Remote transaction, served by a worker thread from its beginning to its end.
+     */
+    private final class Session implements Runnable {
+        private final Connection connection;
+        private final long id;
+        private final long beginRequest; // Id of the request that began the session
+        private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+        private volatile Transaction transaction; // Null until the worker begins it
+        private Thread worker; // Thread serving the session, null before it starts and after it ends, guarded by this
+        private long running = NONE; // Id of the request being executed, guarded by this
+        private long interruptRequested = NONE; // Id of the last request the client interrupted, guarded by this
+        private boolean abortReported = false; // Used only by the worker
+
+        private Session(Connection connection, long id, long beginRequest) {
+            this.connection = connection;
+            this.id = id;
+            this.beginRequest = beginRequest;
+        }
+
+        @Override
+        public void run() {
+            if (!connection.open) { // Closed while the session waited for a worker
+                connection.sessions.remove(id);
+                return;
+            }
+            synchronized (this) {
+                worker = Thread.currentThread();
+            }
+            try {
+                transaction = manager.begin(); // The last transaction of a pooled thread has ended
+            } catch (AnotherTransactionActiveException e) {
+                throw new AssertionError(e);
+            }
+            try {
+                connection.send(LockProtocol.RESPONSE, beginRequest, id, LockProtocol.OK);
+                serve();
+            } finally {
+                transaction.rollback(); // Does nothing if the transaction has ended
+                connection.sessions.remove(id);
+                synchronized (this) {
+                    worker = null;
+                }
+                Thread.interrupted(); // The pooled thread shouldn't carry interrupts of the session
+            }
+        }
+
+        private void serve() {
+            while (true) {
+                Request request;
+                try {
+                    request = requests.take();
+                } catch (InterruptedException e) { // Aborted while the client doesn't wait, or a late interrupt
+                    if (transaction.isAborted() && !abortReported && connection.open) {
+                        abortReported = true;
+                        connection.send(LockProtocol.ABORTED, NONE, id, (byte) 0);
+                    }
+                    continue;
+                }
+                if (request == CLOSE) {
+                    return;
+                }
+                Thread.interrupted(); // An abort is remembered by the transaction anyway
+                synchronized (this) {
+                    running = request.id;
+                    if (interruptRequested == request.id) { // The client was interrupted before we began
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                byte status = execute(request);
+                synchronized (this) {
+                    running = NONE; // No interrupts of the request come after this
+                }
+                if (status == LockProtocol.TRANSACTION_ABORTED) {
+                    abortReported = true; // A late interrupt of the abort isn't reported again
+                }
+                connection.send(LockProtocol.RESPONSE, request.id, id, status);
+                if (!transaction.isActive()) {
+                    return;
+                }
+            }
+        }
+
+        private byte execute(Request request) {
+            try {
+                if (request.type == LockProtocol.OPERATE) {
+                    if (request.ordinal < 0 || request.ordinal >= ids.length) {
+                        return LockProtocol.UNKNOWN_RESOURCE;
+                    }
+                    transaction.operate(ids[request.ordinal], request.mode == LockProtocol.SHARED
+                            ? LockProtocol.LOCK_SHARED : LockProtocol.LOCK_EXCLUSIVE);
+                } else if (request.type == LockProtocol.COMMIT) {
+                    transaction.commit();
+                } else if (request.type == LockProtocol.ROLLBACK) {
+                    transaction.rollback();
+                }
+                return LockProtocol.OK;
+            } catch (ActiveTransactionAborted e) {
+                return LockProtocol.TRANSACTION_ABORTED;
+            } catch (InterruptedException e) { // Maybe by an abort that came after the lock was granted
+                return transaction.isAborted() ? LockProtocol.TRANSACTION_ABORTED : LockProtocol.INTERRUPTED;
+            } catch (NoActiveTransactionException e) {
+                return LockProtocol.NO_ACTIVE_TRANSACTION;
+            } catch (UnknownResourceIdException | ResourceOperationException e) {
+                throw new AssertionError(e); // Stand-ins exist for all ordinals and operations on them never fail
+            }
+        }
+
+        /**
+         * Interrupts the request of the given id if it is being executed, or makes it interrupted
+         * as soon as it begins. Called by the selector thread.
+         *
+         * @param requestId Id of the request.
+         */
+        private synchronized void interrupt(long requestId) {
+            interruptRequested = requestId;
+            if (running == requestId && worker != null) {
+                worker.interrupt();
+            }
+        }
+
+        /**
+         * Ends the session, rolling back its transaction. Called by the selector thread.
+         */
+        private void close() {
+            requests.add(CLOSE);
+            synchronized (this) {
+                if (worker != null) {
+                    worker.interrupt(); // Stops waiting for a resource
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package cp1.solution;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * State of all locks of a manager kept in one primitive array, indexed by dense ordinals of resources.
+ * The state of a lock is 0 if the resource is free, id of the owner if it is held in EXCLUSIVE mode
+ * and minus the number of holders if it is held in other modes. Thread ids are always positive.
+ * Each lock gets a whole cache line, so threads using different resources don't slow each other down.
+ */
+class LockTable {
+    static final long FREE = 0;
+
+    private static final int STRIDE = 8; // Longs in a cache line
+    private static final int STATE = 0; // Offset of the state of a lock in its cache line
+    private static final int WAITERS = 1; // Offset of the number of threads waiting for the resource
+
+    private final AtomicLongArray table;
+
+    LockTable(int size) {
+        this.table = new AtomicLongArray(size * STRIDE);
+    }
+
+    long getState(int ordinal) {
+        return table.get(ordinal * STRIDE + STATE);
+    }
+
+    void setState(int ordinal, long state) {
+        table.set(ordinal * STRIDE + STATE, state);
+    }
+
+    boolean compareAndSetState(int ordinal, long expected, long state) {
+        return table.compareAndSet(ordinal * STRIDE + STATE, expected, state);
+    }
+
+    long getWaiters(int ordinal) {
+        return table.get(ordinal * STRIDE + WAITERS);
+    }
+
+    void setWaiters(int ordinal, long waiters) {
+        table.set(ordinal * STRIDE + WAITERS, waiters);
+    }
+}
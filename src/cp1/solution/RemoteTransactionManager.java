@@ -0,0 +1,331 @@
+package cp1.solution;
+
+import cp1.base.ActiveTransactionAborted;
+import cp1.base.AnotherTransactionActiveException;
+import cp1.base.NoActiveTransactionException;
+import cp1.base.Resource;
+import cp1.base.ResourceId;
+import cp1.base.ResourceOperation;
+import cp1.base.ResourceOperationException;
+import cp1.base.TransactionManager;
+import cp1.base.UnknownResourceIdException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manager whose resources are locked by a LockServer, shared with managers of other processes.
+ * Operations are performed on the resources of this manager, in the calling thread, once the server
+ * grants the lock, and are undone here on rollback before the locks are released. Resources are
+ * identified on the server by their positions in the list given to the manager, so all clients
+ * of a server have to list the same resources in the same order.
+ * Transactions of all threads share one connection. Each thread sends its requests and waits
+ * for the responses, while a reader thread hands responses out and a writer thread sends queued
+ * requests, so that interrupting a waiting thread doesn't close the channel. An interrupted thread
+ * asks the server to interrupt its request, and a transaction aborted by the server while its thread
+ * doesn't wait for a response has the thread interrupted, as in ImplementedTransactionManager.
+ * Once the connection is lost, active transactions are treated as aborted, as the server rolls them back.
+ */
+public class RemoteTransactionManager implements TransactionManager, Closeable {
+    private final Map<ResourceId, Resource> resources = new HashMap<>();
+    private final Map<ResourceId, Integer> ordinals = new HashMap<>(); // Position of the Resource in the list
+    private final SocketChannel channel;
+    private final BlockingQueue<ByteBuffer> output = new LinkedBlockingQueue<>(); // Frames waiting for the writer
+    private final Map<Long, CompletableFuture<Byte>> pending = new ConcurrentHashMap<>(); // Responses by requests
+    private final Map<Long, RemoteTransaction> sessions = new ConcurrentHashMap<>(); // Active transactions
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final AtomicLong nextSession = new AtomicLong(1);
+    private final Thread reader;
+    private final Thread writer;
+    private volatile boolean connected = true;
+    private final ThreadLocal<RemoteTransaction> currentTransaction = new ThreadLocal<>();
+    private final ThreadLocal<UndoLog> undoLogs = ThreadLocal.withInitial(UndoLog::new);
+
+    /**
+     * Connects to a LockServer.
+     *
+     * @param resources Resources of the manager, in the order shared with all clients of the server.
+     * @param server    Address of the server.
+     */
+    public RemoteTransactionManager(List<Resource> resources, InetSocketAddress server) throws IOException {
+        for (int i = 0; i < resources.size(); i++) {
+            this.resources.put(resources.get(i).getId(), resources.get(i));
+            this.ordinals.put(resources.get(i).getId(), i);
+        }
+        this.channel = SocketChannel.open(server);
+        channel.socket().setTcpNoDelay(true);
+        this.reader = new Thread(this::readResponses, "lock-client-reader");
+        this.writer = new Thread(this::writeRequests, "lock-client-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /**
+     * Closes the connection, the server rolls back transactions still active.
+     */
+    @Override
+    public void close() throws IOException {
+        disconnect();
+    }
+
+    @Override
+    public void startTransaction() throws AnotherTransactionActiveException {
+        if (currentTransaction.get() != null) {
+            throw new AnotherTransactionActiveException();
+        }
+        // The log was left empty by the last transaction of the thread
+        RemoteTransaction transaction = new RemoteTransaction(nextSession.getAndIncrement(), Thread.currentThread(),
+                undoLogs.get());
+        sessions.put(transaction.session, transaction);
+        if (call(transaction, LockProtocol.BEGIN, 0, (byte) 0, false) != LockProtocol.OK) {
+            transaction.aborted = true; // Disconnected
+        }
+        currentTransaction.set(transaction);
+    }
+
+    @Override
+    public void operateOnResourceInCurrentTransaction(ResourceId rid, ResourceOperation operation) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        RemoteTransaction transaction = activeCurrent();
+        Integer ordinal = ordinals.get(rid);
+        if (ordinal == null) {
+            throw new UnknownResourceIdException(rid);
+        }
+        if (transaction.aborted) {
+            throw new ActiveTransactionAborted();
+        }
+
+        byte status = call(transaction, LockProtocol.OPERATE, ordinal, LockProtocol.modeOf(operation), true);
+        if (status == LockProtocol.TRANSACTION_ABORTED) {
+            transaction.aborted = true;
+            throw new ActiveTransactionAborted();
+        } else if (status == LockProtocol.INTERRUPTED) {
+            throw new InterruptedException();
+        } else if (status != LockProtocol.OK) {
+            throw new UnknownResourceIdException(rid); // The server has fewer resources than the client
+        }
+
+        if (Thread.interrupted()) { // Interrupted after the server granted the lock
+            throw new InterruptedException();
+        }
+
+        Resource resource = resources.get(rid);
+        operation.execute(resource); // Can throw ResourceOperationException, the lock stays held
+        transaction.undoLog.add(resource, operation);
+    }
+
+    @Override
+    public void commitCurrentTransaction() throws NoActiveTransactionException, ActiveTransactionAborted {
+        RemoteTransaction transaction = activeCurrent();
+        if (call(transaction, LockProtocol.COMMIT, 0, (byte) 0, false) != LockProtocol.OK) {
+            transaction.aborted = true;
+            throw new ActiveTransactionAborted();
+        }
+        transaction.undoLog.clear();
+        end(transaction);
+    }
+
+    @Override
+    public void rollbackCurrentTransaction() {
+        RemoteTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            return;
+        }
+        transaction.undoLog.undoAll(); // Resources are still locked
+        call(transaction, LockProtocol.ROLLBACK, 0, (byte) 0, false);
+        end(transaction);
+    }
+
+    @Override
+    public boolean isTransactionActive() {
+        return currentTransaction.get() != null;
+    }
+
+    @Override
+    public boolean isTransactionAborted() {
+        RemoteTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            return false;
+        }
+        if (!transaction.aborted && call(transaction, LockProtocol.IS_ABORTED, 0, (byte) 0, false) != LockProtocol.OK) {
+            transaction.aborted = true; // Aborts are final, so the answer is remembered
+        }
+        return transaction.aborted;
+    }
+
+    private RemoteTransaction activeCurrent() throws NoActiveTransactionException {
+        RemoteTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            throw new NoActiveTransactionException();
+        }
+        return transaction;
+    }
+
+    private void end(RemoteTransaction transaction) {
+        sessions.remove(transaction.session);
+        currentTransaction.remove();
+    }
+
+    /**
+     * Sends a request of the transaction and waits for the response. If the thread is interrupted while
+     * waiting, the server is asked to interrupt the request and we keep waiting, as the request might
+     * have been executed anyway. The interrupt is kept unless it ended the request or came with an abort.
+     *
+     * @param transaction   Transaction of the current thread.
+     * @param type          Type of the request.
+     * @param ordinal       Ordinal of the resource of OPERATE.
+     * @param mode          Mode of the lock of OPERATE.
+     * @param interruptible True if the server should interrupt the request when we are interrupted.
+     * @return Status of the response, TRANSACTION_ABORTED if the connection is lost.
+     */
+    private byte call(RemoteTransaction transaction, byte type, int ordinal, byte mode, boolean interruptible) {
+        long requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<Byte> response = new CompletableFuture<>();
+        pending.put(requestId, response);
+        if (!connected) { // Otherwise disconnect() sees the response pending and completes it
+            pending.remove(requestId);
+            return LockProtocol.TRANSACTION_ABORTED;
+        }
+        send(type, requestId, transaction.session, ordinal, mode);
+
+        boolean interrupted = false;
+        byte status;
+        while (true) {
+            try {
+                status = response.get();
+                break;
+            } catch (InterruptedException e) {
+                if (interruptible && !interrupted) {
+                    send(LockProtocol.INTERRUPT, requestId, transaction.session, 0, (byte) 0);
+                }
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new AssertionError(e); // Responses are never completed exceptionally
+            }
+        }
+        if (interrupted && (status == LockProtocol.OK || !interruptible)) {
+            Thread.currentThread().interrupt();
+        }
+        return status;
+    }
+
+    private void send(byte type, long requestId, long session, int ordinal, byte argument) {
+        ByteBuffer frame = ByteBuffer.allocate(LockProtocol.FRAME_SIZE);
+        LockProtocol.put(frame, type, requestId, session, ordinal, argument);
+        frame.flip();
+        output.add(frame);
+    }
+
+    /**
+     * Writes queued requests, as many as are ready in one write, until the connection is closed.
+     */
+    private void writeRequests() {
+        ByteBuffer batch = ByteBuffer.allocate(64 * LockProtocol.FRAME_SIZE);
+        try {
+            while (connected) {
+                batch.put(output.take());
+                while (!output.isEmpty() && batch.remaining() >= LockProtocol.FRAME_SIZE) {
+                    batch.put(output.poll()); // Only the writer takes frames
+                }
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException | IOException e) {
+            // Disconnected
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Hands responses out to waiting threads and interrupts threads of aborted transactions.
+     */
+    private void readResponses() {
+        ByteBuffer input = ByteBuffer.allocate(64 * LockProtocol.FRAME_SIZE);
+        try {
+            while (channel.read(input) >= 0) {
+                input.flip();
+                while (input.remaining() >= LockProtocol.FRAME_SIZE) {
+                    byte type = input.get();
+                    long requestId = input.getLong();
+                    long session = input.getLong();
+                    input.getInt();
+                    byte argument = input.get();
+                    if (type == LockProtocol.RESPONSE) {
+                        CompletableFuture<Byte> response = pending.remove(requestId);
+                        if (response != null) {
+                            response.complete(argument);
+                        }
+                    } else if (type == LockProtocol.ABORTED) {
+                        RemoteTransaction transaction = sessions.get(session);
+                        if (transaction != null) {
+                            transaction.aborted = true;
+                            transaction.thread.interrupt();
+                        }
+                    }
+                }
+                input.compact();
+            }
+        } catch (IOException e) {
+            // Disconnected
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Closes the connection and completes pending requests as if their transactions were aborted.
+     */
+    private void disconnect() {
+        connected = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more to do with the connection
+        }
+        writer.interrupt();
+        for (RemoteTransaction transaction : sessions.values()) {
+            transaction.aborted = true;
+        }
+        for (Long requestId : pending.keySet()) {
+            CompletableFuture<Byte> response = pending.remove(requestId);
+            if (response != null) {
+                response.complete(LockProtocol.TRANSACTION_ABORTED);
+            }
+        }
+    }
+
+    /**
+     * Transaction of a thread, known to the server as a session of the connection.
+     */
+    private static final class RemoteTransaction {
+        private final long session;
+        private final Thread thread;
+        private final UndoLog undoLog; // Operations performed by this manager, undone here on rollback
+        private volatile boolean aborted = false; // Set once the server reports an abort
+
+        private RemoteTransaction(long session, Thread thread, UndoLog undoLog) {
+            this.session = session;
+            this.thread = thread;
+            this.undoLog = undoLog;
+        }
+    }
+}
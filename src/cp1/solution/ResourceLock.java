@@ -0,0 +1,362 @@
+package cp1.solution;
+
+import cp1.base.Resource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock guarding access to a single Resource. Holders of the resource are kept in the LockTable
+ * of the manager under the ordinal of the resource, so taking a free resource in EXCLUSIVE mode
+ * and releasing it is a single atomic operation on a primitive array. Each ResourceLock has its own
+ * internal lock with a condition that serves as the wait queue of threads waiting for that resource,
+ * so releasing it wakes up only threads interested in this very resource. Unlike a monitor,
+ * waiting on the condition parks the thread, so virtual threads don't pin their carriers.
+ * A thread holds the resource either in EXCLUSIVE mode, as its owner,
+ * or in any other mode, as one of its shared holders, never in both. Every two shared holders
+ * hold the resource in compatible modes, so a mode that isn't compatible with itself has one holder at most.
+ * A new shared holder doesn't pass transactions that have waited longer for a conflicting mode,
+ * so a stream of readers can't starve a writer.
+ */
+class ResourceLock {
+    private static final int INITIAL_MODES = 1; // Shared holders usually hold the resource in the same mode
+
+    private final Resource resource;
+    private final int ordinal; // Position of the resource among all resources of the manager ordered by their ids
+    private final LockTable table; // Holds the state of the lock and the number of waiting threads
+    private volatile Transaction owner; // Transaction holding the resource in EXCLUSIVE mode, set after its thread locks the resource
+    private final Map<Transaction, LockMode> sharedHolders = new ConcurrentHashMap<>(); // Transactions holding the resource in other modes than EXCLUSIVE
+    private LockMode[] heldModes = new LockMode[INITIAL_MODES]; // Distinct modes of shared holders, guarded by queueLock
+    private int[] holdersInMode = new int[INITIAL_MODES]; // Number of shared holders in the i-th of them, as above
+    private int heldModesNum = 0; // As above
+    private final Map<Transaction, LockMode> waiters = new ConcurrentHashMap<>(); // Waiting transactions with their modes, changed under queueLock
+    private long nextTicket = 0; // Orders waiting transactions by the time they started waiting, guarded by queueLock
+    private final ReentrantLock queueLock = new ReentrantLock(); // Guards changes of shared holders and the wait queue
+    private final Condition released = queueLock.newCondition(); // Threads waiting for the resource await on it
+
+    ResourceLock(Resource resource, int ordinal, LockTable table) {
+        this.resource = resource;
+        this.ordinal = ordinal;
+        this.table = table;
+    }
+
+    Resource getResource() {
+        return resource;
+    }
+
+    int getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * Acquires the internal lock. While it is held, shared holders of the resource can't change
+     * and no thread can start waiting for the resource.
+     */
+    void lockQueue() {
+        queueLock.lock();
+    }
+
+    /**
+     * Releases the internal lock acquired with lockQueue().
+     */
+    void unlockQueue() {
+        queueLock.unlock();
+    }
+
+    /**
+     * Waits until the resource may have been released.
+     * Must be called while holding the internal lock.
+     */
+    void await() throws InterruptedException {
+        released.await();
+    }
+
+    /**
+     * Waits until the resource may have been released, at most a given time.
+     * Must be called while holding the internal lock.
+     *
+     * @param nanos Maximum time to wait.
+     */
+    void awaitNanos(long nanos) throws InterruptedException {
+        released.awaitNanos(nanos);
+    }
+
+    /**
+     * @param transaction Transaction we check.
+     * @param mode        Mode we need.
+     * @return True if the transaction holds the resource in a mode that is sufficient for the given mode.
+     */
+    boolean isHeldBy(Transaction transaction, LockMode mode) {
+        long state = table.getState(ordinal);
+        if (state == transaction.getThreadId()) {
+            return true;
+        } else {
+            // Set of shared holders is searched only if there are any
+            return mode != LockMode.EXCLUSIVE && state < 0 && sharedHolders.get(transaction) == mode;
+        }
+    }
+
+    /**
+     * @param transaction Transaction we check.
+     * @return True if the transaction is a shared holder of the resource, in any mode but EXCLUSIVE.
+     */
+    boolean isSharedBy(Transaction transaction) {
+        return table.getState(ordinal) < 0 && sharedHolders.containsKey(transaction);
+    }
+
+    /**
+     * Locks the resource if the given mode is compatible with modes of all other holders,
+     * according to the compatibility matrix of modes.
+     * A free resource is taken in EXCLUSIVE mode without the internal lock. A shared holder
+     * that asks for EXCLUSIVE mode gets its lock upgraded, a shared holder can't ask for
+     * another mode. A request for another mode than EXCLUSIVE waits while a transaction queued before it
+     * waits for a conflicting mode. Waiting threads are woken up when a new holder joins,
+     * as they may have to reconsider waiting.
+     *
+     * @param transaction Transaction that wants to lock the resource.
+     * @param mode        Mode in which we want to lock the resource.
+     * @return True if we locked the resource, false if other holders prevent it.
+     */
+    boolean tryLock(Transaction transaction, LockMode mode) {
+        long threadId = transaction.getThreadId();
+        long state = table.getState(ordinal);
+        if (state == threadId) {
+            return true;
+        } else if (state > 0) { // Other owner
+            return false;
+        } else if (mode == LockMode.EXCLUSIVE && state == LockTable.FREE) {
+            if (table.compareAndSetState(ordinal, LockTable.FREE, threadId)) {
+                owner = transaction;
+                return true;
+            }
+            return false;
+        } else if (mode == LockMode.EXCLUSIVE && state != -1) { // Many shared holders
+            return false;
+        }
+
+        queueLock.lock();
+        try {
+            if (mode == LockMode.EXCLUSIVE) { // We may be the only shared holder
+                if (sharedHolders.containsKey(transaction) && table.compareAndSetState(ordinal, -1, threadId)) {
+                    removeHeldMode(sharedHolders.remove(transaction));
+                    owner = transaction;
+                    return true;
+                }
+                return false;
+            }
+            if (sharedHolders.containsKey(transaction)) {
+                return true;
+            }
+            if (getQueuedBefore(transaction, mode, null)) {
+                return false;
+            }
+            do { // Only a new owner can change the state concurrently
+                state = table.getState(ordinal);
+                if (state > 0 || !isCompatibleWithHolders(mode)) {
+                    return false;
+                }
+            } while (!table.compareAndSetState(ordinal, state, state - 1));
+            sharedHolders.put(transaction, mode);
+            addHeldMode(mode);
+            if (table.getWaiters(ordinal) > 0) {
+                released.signalAll();
+            }
+            return true;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Checks the given mode against the compatibility matrix. Must be called while holding the internal lock.
+     *
+     * @param mode Mode in which we want to lock the resource.
+     * @return True if the mode is compatible with modes of all shared holders.
+     */
+    private boolean isCompatibleWithHolders(LockMode mode) {
+        for (int i = 0; i < heldModesNum; i++) {
+            if (!mode.isCompatibleWith(heldModes[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts a new shared holder in its mode. Must be called while holding the internal lock.
+     *
+     * @param mode Mode of the new shared holder.
+     */
+    private void addHeldMode(LockMode mode) {
+        for (int i = 0; i < heldModesNum; i++) {
+            if (heldModes[i] == mode) {
+                holdersInMode[i]++;
+                return;
+            }
+        }
+        if (heldModesNum == heldModes.length) {
+            heldModes = Arrays.copyOf(heldModes, 2 * heldModesNum);
+            holdersInMode = Arrays.copyOf(holdersInMode, 2 * heldModesNum);
+        }
+        heldModes[heldModesNum] = mode;
+        holdersInMode[heldModesNum] = 1;
+        heldModesNum++;
+    }
+
+    /**
+     * Stops counting a leaving shared holder in its mode. Must be called while holding the internal lock.
+     *
+     * @param mode Mode of the leaving shared holder.
+     * @return True if no shared holder is left in the mode.
+     */
+    private boolean removeHeldMode(LockMode mode) {
+        for (int i = 0; i < heldModesNum; i++) {
+            if (heldModes[i] == mode) {
+                if (--holdersInMode[i] > 0) {
+                    return false;
+                }
+                heldModesNum--;
+                heldModes[i] = heldModes[heldModesNum];
+                holdersInMode[i] = holdersInMode[heldModesNum];
+                heldModes[heldModesNum] = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds transactions that wait for the resource in a mode conflicting with the given one
+     * and started waiting before the given transaction, or at all if it doesn't wait.
+     * Transactions that need the resource in other modes than EXCLUSIVE wait for them.
+     *
+     * @param transaction Transaction that wants to lock the resource.
+     * @param mode        Mode in which it wants to lock the resource.
+     * @param queued      List to which found transactions are appended, null if we only check if there are any.
+     * @return True if any transaction was found.
+     */
+    private boolean getQueuedBefore(Transaction transaction, LockMode mode, List<Transaction> queued) {
+        if (mode == LockMode.EXCLUSIVE || table.getWaiters(ordinal) == 0) {
+            return false;
+        }
+        boolean waiting = waiters.containsKey(transaction);
+        long ticket = transaction.getWaitTicket();
+        boolean found = false;
+        for (Transaction waiter : waiters.keySet()) {
+            LockMode waitedMode = waiters.get(waiter); // Null if the waiter has just stopped waiting
+            if (waiter != transaction && waitedMode != null && !mode.isCompatibleWith(waitedMode)
+                    && (!waiting || waiter.getWaitTicket() < ticket)) {
+                if (queued == null) {
+                    return true;
+                }
+                queued.add(waiter);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Registers the current thread as waiting for the resource. It has to try to lock
+     * the resource afterwards, as the resource may have been released in the meantime.
+     * Must be called while holding the internal lock.
+     *
+     * @param transaction Transaction of the current thread.
+     * @param mode        Mode in which it waits for the resource.
+     */
+    void addWaiter(Transaction transaction, LockMode mode) {
+        transaction.setWaitTicket(nextTicket++);
+        waiters.put(transaction, mode);
+        table.setWaiters(ordinal, table.getWaiters(ordinal) + 1);
+    }
+
+    /**
+     * Unregisters the current thread as waiting for the resource. Requests queued behind it
+     * are woken up, unless it took the resource in EXCLUSIVE mode, in which case its release will wake them.
+     * Must be called while holding the internal lock.
+     *
+     * @param transaction Transaction of the current thread.
+     */
+    void removeWaiter(Transaction transaction) {
+        waiters.remove(transaction);
+        long waitersNum = table.getWaiters(ordinal) - 1;
+        table.setWaiters(ordinal, waitersNum);
+        if (waitersNum > 0 && table.getState(ordinal) <= 0) {
+            released.signalAll();
+        }
+    }
+
+    /**
+     * Appends transactions that prevent the given one from locking the resource in the given mode
+     * to a list. Used for finding cycles in the graph of waiting threads and for preventing them.
+     * An owner can't be missed, or a policy could let a transaction wait in a deadlock. Transactions
+     * queued before the given one in a conflicting mode are appended too, as it waits for them as well.
+     *
+     * @param waiting Waiting transaction.
+     * @param mode    Mode in which the transaction waits for the resource.
+     * @param holders List to which transactions holding the resource, or queued for it, in a conflicting mode are appended.
+     */
+    void getConflictingHolders(Transaction waiting, LockMode mode, List<Transaction> holders) {
+        Transaction currentOwner = owner;
+        // A new owner sets the field right after it locks the resource, a leaving one clears it before
+        while (currentOwner == null && table.getState(ordinal) > 0) {
+            Thread.yield();
+            currentOwner = owner;
+        }
+        if (currentOwner != null && currentOwner != waiting) {
+            holders.add(currentOwner);
+        }
+        if (table.getState(ordinal) < 0) {
+            for (Transaction holder : sharedHolders.keySet()) {
+                LockMode heldMode = sharedHolders.get(holder); // Null if the holder has just left
+                if (holder != waiting && heldMode != null && !mode.isCompatibleWith(heldMode)) {
+                    holders.add(holder);
+                }
+            }
+        }
+        getQueuedBefore(waiting, mode, holders);
+    }
+
+    /**
+     * Unlocks the resource and wakes up threads waiting for it. The owner releases the resource
+     * without the internal lock, which it takes only if there are waiting threads. Threads register
+     * as waiting before they check the state for the last time, so none of them misses the release.
+     *
+     * @param transaction Transaction that holds the resource.
+     */
+    void unlock(Transaction transaction) {
+        if (table.getState(ordinal) == transaction.getThreadId()) {
+            owner = null; // Before the release, so that we don't clear the field of the next owner
+            table.setState(ordinal, LockTable.FREE); // Nobody else changes the state of an owned resource
+            if (table.getWaiters(ordinal) > 0) {
+                queueLock.lock();
+                try {
+                    released.signalAll();
+                } finally {
+                    queueLock.unlock();
+                }
+            }
+            return;
+        }
+
+        queueLock.lock();
+        try {
+            LockMode heldMode = sharedHolders.remove(transaction);
+            if (heldMode != null) {
+                long state = table.getState(ordinal) + 1; // Shared holders change only under the internal lock
+                table.setState(ordinal, state);
+                boolean modeReleased = removeHeldMode(heldMode);
+                // Only now a thread can get EXCLUSIVE mode, possibly by upgrading, or a mode conflicting with the released one
+                if ((state >= -1 || modeReleased) && table.getWaiters(ordinal) > 0) {
+                    released.signalAll();
+                }
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package cp1.solution;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how transactions run by {@link ImplementedTransactionManager#runInTransaction(RetryPolicy, TransactionBody)}
+ * are retried after being aborted, and collects metrics of these retries. Before the n-th retry a transaction
+ * sleeps for up to the initial backoff times 2^(n-1), but not longer than the maximal backoff. The backoff
+ * grows with the average abort rate of transactions using the policy, so threads contending for the same
+ * resources back off further when they keep aborting each other. A random half of the backoff, the jitter,
+ * spreads out retries of transactions aborted at the same time. A policy may be shared by many threads.
+ */
+public final class RetryPolicy {
+    private static final double ABORT_RATE_WEIGHT = 1.0 / 16; // Weight of the last attempt in the average abort rate
+    private static final double ABORT_RATE_SCALE = 4; // With every attempt aborted backoff is this many times longer
+
+    private final int maxAttempts; // Attempts of a transaction, including the first one, before giving up
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final AtomicLong abortRate = new AtomicLong(Double.doubleToLongBits(0)); // Moving average, bits of a double
+    private final AtomicLong attempts = new AtomicLong(0); // Metrics of transactions run with the policy
+    private final AtomicLong aborts = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0); // Transactions still aborted after maxAttempts attempts
+    private final AtomicLong backoffNanos = new AtomicLong(0); // Total time spent backing off
+
+    /**
+     * @param maxAttempts    Number of attempts of a transaction, including the first one, before giving up.
+     * @param initialBackoff Longest backoff before the first retry at no aborts.
+     * @param maxBackoff     Longest backoff before any retry.
+     * @param unit           Unit of the backoffs.
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        if (maxAttempts < 1 || initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return Moving average of the fraction of aborted attempts.
+     */
+    public double getAbortRate() {
+        return Double.longBitsToDouble(abortRate.get());
+    }
+
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    public long getAborts() {
+        return aborts.get();
+    }
+
+    /**
+     * @return Number of transactions that were aborted maxAttempts times and weren't retried any more.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return Number of retries, that is aborted attempts followed by another one.
+     */
+    public long getRetries() {
+        return aborts.get() - failures.get();
+    }
+
+    public long getBackoff(TimeUnit unit) {
+        return unit.convert(backoffNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the outcome of an attempt of a transaction.
+     *
+     * @param aborted True if the attempt was aborted, false if it was committed.
+     */
+    void recordAttempt(boolean aborted) {
+        attempts.incrementAndGet();
+        if (aborted) {
+            aborts.incrementAndGet();
+        }
+        long bits;
+        double updated;
+        do {
+            bits = abortRate.get();
+            updated = (1 - ABORT_RATE_WEIGHT) * Double.longBitsToDouble(bits) + (aborted ? ABORT_RATE_WEIGHT : 0);
+        } while (!abortRate.compareAndSet(bits, Double.doubleToLongBits(updated)));
+    }
+
+    void recordFailure() {
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Sleeps before a retry of a transaction.
+     *
+     * @param retry Number of the retry, starting from 1.
+     */
+    void backOff(int retry) throws InterruptedException {
+        double exponential = initialBackoffNanos * Math.pow(2, Math.min(retry - 1, 62));
+        long ceiling = (long) Math.min(maxBackoffNanos, exponential * (1 + ABORT_RATE_SCALE * getAbortRate()));
+        long backoff = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        backoffNanos.addAndGet(backoff);
+        TimeUnit.NANOSECONDS.sleep(backoff);
+    }
+}
@@ -0,0 +1,41 @@
+package cp1.solution;
+
+/**
+ * Position in a transaction, to which the transaction can be rolled back without ending it.
+ * Rolling back to a savepoint makes savepoints set after it invalid.
+ */
+public final class Savepoint {
+    private final Transaction transaction; // Transaction in which the savepoint was set
+    private final int operations; // Number of operations performed before the savepoint
+    private final int locks; // Number of resources held at the savepoint
+    private final int number; // Position among savepoints of the transaction not rolled back past
+    private final long epoch; // Rollback epoch of the transaction when the savepoint was set
+
+    Savepoint(Transaction transaction, int operations, int locks, int number, long epoch) {
+        this.transaction = transaction;
+        this.operations = operations;
+        this.locks = locks;
+        this.number = number;
+        this.epoch = epoch;
+    }
+
+    Transaction getTransaction() {
+        return transaction;
+    }
+
+    int getOperations() {
+        return operations;
+    }
+
+    int getLocks() {
+        return locks;
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+}
@@ -0,0 +1,222 @@
+package cp1.solution;
+
+import cp1.base.ActiveTransactionAborted;
+import cp1.base.AnotherTransactionActiveException;
+import cp1.base.LocalTimeProvider;
+import cp1.base.NoActiveTransactionException;
+import cp1.base.Resource;
+import cp1.base.ResourceId;
+import cp1.base.ResourceOperation;
+import cp1.base.ResourceOperationException;
+import cp1.base.TransactionManager;
+import cp1.base.UnknownResourceIdException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manager splitting its resources into shards, each controlled by its own ImplementedTransactionManager,
+ * so transactions using different shards never wait on the same locks, including the lock of the graph
+ * of waiting transactions. A transaction of the sharded manager begins a part in every shard it uses.
+ * All parts get the start time of the whole transaction, so WAIT_DIE and WOUND_WAIT order transactions
+ * the same way in every shard and no deadlock can span shards. With detection policies each shard breaks
+ * its own deadlocks, and a background thread periodically breaks deadlocks spanning shards, found in
+ * a graph of waiting threads built from the graphs of all shards. With TIMEOUT policy waits time out
+ * in each shard, which also ends deadlocks spanning shards.
+ */
+public class ShardedTransactionManager implements TransactionManager {
+    private static final long DEFAULT_DETECTION_INTERVAL_MILLIS = 10; // Of deadlocks spanning shards
+
+    private final LocalTimeProvider timeProvider;
+    private final DeadlockPolicy deadlockPolicy;
+    private final ImplementedTransactionManager[] shards;
+    private final Map<ResourceId, Integer> shardOf = new HashMap<>(); // Index of the shard controlling the Resource
+    private volatile VictimSelector victimSelector = VictimSelector.YOUNGEST; // Also for deadlocks spanning shards
+    private final ThreadLocal<ShardedTransaction> currentTransaction = new ThreadLocal<>();
+
+    public ShardedTransactionManager(Collection<Resource> resources, LocalTimeProvider timeProvider,
+                                     DeadlockPolicy deadlockPolicy, int shardsNum) {
+        this(resources, timeProvider, deadlockPolicy, shardsNum, DEFAULT_DETECTION_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a manager splitting resources into shards by hash codes of their ids.
+     *
+     * @param resources         Resources controlled by the manager.
+     * @param timeProvider      Provider of the start time of transactions.
+     * @param deadlockPolicy    Way of dealing with deadlocks, used by every shard.
+     * @param shardsNum         Number of shards.
+     * @param detectionInterval Longest interval between scans for deadlocks spanning shards,
+     *                          with detection policies.
+     * @param unit              Unit of the interval.
+     */
+    public ShardedTransactionManager(Collection<Resource> resources, LocalTimeProvider timeProvider,
+                                     DeadlockPolicy deadlockPolicy, int shardsNum, long detectionInterval,
+                                     TimeUnit unit) {
+        if (shardsNum < 1) {
+            throw new IllegalArgumentException("Unsupported sharding");
+        }
+        this.timeProvider = timeProvider;
+        this.deadlockPolicy = deadlockPolicy;
+        List<List<Resource>> split = new ArrayList<>();
+        for (int i = 0; i < shardsNum; i++) {
+            split.add(new ArrayList<>());
+        }
+        for (Resource resource : resources) {
+            int shard = Math.floorMod(resource.getId().hashCode(), shardsNum);
+            split.get(shard).add(resource);
+            shardOf.put(resource.getId(), shard);
+        }
+        this.shards = new ImplementedTransactionManager[shardsNum];
+        for (int i = 0; i < shardsNum; i++) {
+            shards[i] = new ImplementedTransactionManager(split.get(i), timeProvider, deadlockPolicy);
+        }
+
+        if (deadlockPolicy == DeadlockPolicy.DETECTION || deadlockPolicy == DeadlockPolicy.BACKGROUND_DETECTION) {
+            DeadlockDetector.start(this, ShardedTransactionManager::breakDeadlocks, unit.toNanos(detectionInterval));
+        }
+    }
+
+    /**
+     * Sets the way of choosing which transaction of a deadlock is aborted, in every shard
+     * and for deadlocks spanning shards.
+     *
+     * @param victimSelector Selector of transactions to abort, VictimSelector.YOUNGEST by default.
+     */
+    public void setVictimSelector(VictimSelector victimSelector) {
+        this.victimSelector = victimSelector;
+        for (ImplementedTransactionManager shard : shards) {
+            shard.setVictimSelector(victimSelector);
+        }
+    }
+
+    /**
+     * @return Active transaction of the current thread.
+     */
+    private ShardedTransaction activeCurrent() throws NoActiveTransactionException {
+        ShardedTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            throw new NoActiveTransactionException();
+        }
+        return transaction;
+    }
+
+    @Override
+    public void startTransaction() throws AnotherTransactionActiveException {
+        if (currentTransaction.get() != null) {
+            throw new AnotherTransactionActiveException();
+        }
+        currentTransaction.set(new ShardedTransaction(timeProvider.getTime(), shards.length));
+    }
+
+    @Override
+    public void operateOnResourceInCurrentTransaction(ResourceId rid, ResourceOperation operation) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        ShardedTransaction transaction = activeCurrent();
+        if (transaction.isAborted()) {
+            throw new ActiveTransactionAborted();
+        }
+        Integer shard = shardOf.get(rid);
+        if (shard == null) {
+            throw new UnknownResourceIdException(rid);
+        }
+        Transaction part = transaction.parts[shard];
+        if (part == null) {
+            try {
+                // Parts of a transaction start at the start time of the whole transaction
+                part = shards[shard].begin(transaction.startTime, Thread.currentThread().getPriority(), 0);
+            } catch (AnotherTransactionActiveException e) {
+                throw new AssertionError(e); // Parts of the previous transaction have ended
+            }
+            transaction.parts[shard] = part;
+        }
+        try {
+            part.operate(rid, operation);
+        } catch (InterruptedException e) {
+            if (transaction.isAborted()) { // Another part was aborted, possibly while this one was waiting
+                throw new ActiveTransactionAborted();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void commitCurrentTransaction() throws NoActiveTransactionException, ActiveTransactionAborted {
+        ShardedTransaction transaction = activeCurrent();
+        for (Transaction part : transaction.parts) {
+            if (part != null) {
+                part.getManager().prepare(part);
+            }
+        }
+        for (Transaction part : transaction.parts) {
+            if (part != null) {
+                part.getManager().commitPrepared(part);
+            }
+        }
+        currentTransaction.remove();
+    }
+
+    @Override
+    public void rollbackCurrentTransaction() {
+        ShardedTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            return;
+        }
+        for (Transaction part : transaction.parts) {
+            if (part != null) {
+                part.rollback();
+            }
+        }
+        currentTransaction.remove();
+    }
+
+    @Override
+    public boolean isTransactionActive() {
+        return currentTransaction.get() != null;
+    }
+
+    @Override
+    public boolean isTransactionAborted() {
+        ShardedTransaction transaction = currentTransaction.get();
+        return transaction != null && transaction.isAborted();
+    }
+
+    /**
+     * Finds and breaks deadlocks spanning shards. Called periodically by the DeadlockDetector.
+     *
+     * @return Number of aborted transactions.
+     */
+    int breakDeadlocks() {
+        return JointWaitsForGraph.breakDeadlocks(Arrays.asList(shards), victimSelector);
+    }
+
+    /**
+     * Transaction of the sharded manager, made of parts begun in shards it uses.
+     * Used only by the thread that started it.
+     */
+    private static final class ShardedTransaction {
+        private final long startTime; // Start time of every part
+        private final Transaction[] parts; // Part begun in the shard of the given index, null if the shard isn't used
+
+        private ShardedTransaction(long startTime, int shardsNum) {
+            this.startTime = startTime;
+            this.parts = new Transaction[shardsNum];
+        }
+
+        private boolean isAborted() {
+            for (Transaction part : parts) {
+                if (part != null && part.isAborted()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
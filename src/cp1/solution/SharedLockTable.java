@@ -0,0 +1,301 @@
+package cp1.solution;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * State of locks of resources shared by processes on one host, kept in a memory-mapped file.
+ * A file of zeros is an empty table, so processes don't have to agree on who initializes it.
+ * Transactions of all processes occupy participant slots, at most PARTICIPANTS at once. The state
+ * of a lock is the set of its holders as a bitmap of participants, with the EXCLUSIVE bit set
+ * if the only holder holds it in EXCLUSIVE mode, so taking and releasing a lock is a single CAS.
+ * A participant slot keeps the process of the transaction, to find holders whose process crashed,
+ * the start time and the abort flag of the transaction, and the resource it waits for,
+ * which together form the graph of waiting transactions of all processes. Each transaction taking
+ * a slot increments its generation, and an occupant, a slot with its generation, names one transaction,
+ * so an abort aimed at a transaction that has ended meanwhile doesn't hit the next one in its slot.
+ * Like in LockTable, each lock and each participant gets a whole cache line.
+ */
+class SharedLockTable {
+    static final int PARTICIPANTS = 63; // Bits of a long but the EXCLUSIVE bit
+    static final long EXCLUSIVE = 1L << 63;
+    static final long FREE = 0;
+    static final int NOT_WAITING = -1;
+    static final long NO_OCCUPANT = -1;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final int LINE = 64; // Bytes of a cache line
+    private static final long CLEANING = -1; // Process of a slot of a crashed process being cleaned up
+    private static final int SLOT_BITS = 6; // Low bits of an occupant, holding its slot
+    private static final long INITIALISING = 1L << 62; // Set with the process of a slot until its fields are set
+
+    // Offsets in the header
+    private static final int RESOURCES_NUM = 0;
+    // Offsets in a participant slot
+    private static final int PID = 0; // Process of the transaction, 0 if free, CLEANING while cleaned up
+    private static final int PROCESS_START = 8; // Start of the process, to tell it from a later one with the same pid
+    private static final int START_TIME = 16; // Start time of the transaction
+    private static final int ABORTED = 24; // Generation of the last transaction of the slot that was aborted
+    private static final int WAITS_FOR = 32; // Ordinal of the resource the transaction waits for, NOT_WAITING if none
+    private static final int WAITS_MODE = 40; // 1 if it waits for the resource in EXCLUSIVE mode
+    private static final int GENERATION = 48; // Number of transactions that took the slot
+    // Offsets in a lock
+    private static final int STATE = 0;
+
+    private final MappedByteBuffer buffer;
+    private final int resourcesNum;
+
+    /**
+     * Maps the table from a file, creating the file if it doesn't exist.
+     *
+     * @param file         File of the table, shared by all processes.
+     * @param resourcesNum Number of resources, the same in all processes.
+     */
+    SharedLockTable(Path file, int resourcesNum) throws IOException {
+        this.resourcesNum = resourcesNum;
+        long size = LINE + (long) (PARTICIPANTS + resourcesNum) * LINE;
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size); // Grows the file with zeros
+        }
+        long expected = 0;
+        if (!LONGS.compareAndSet(buffer, RESOURCES_NUM, expected, (long) resourcesNum)
+                && get(RESOURCES_NUM) != resourcesNum) {
+            throw new IllegalArgumentException("File used for a different number of resources");
+        }
+    }
+
+    int getResourcesNum() {
+        return resourcesNum;
+    }
+
+    private long get(int index) {
+        return (long) LONGS.getVolatile(buffer, index);
+    }
+
+    private void set(int index, long value) {
+        LONGS.setVolatile(buffer, index, value);
+    }
+
+    private boolean compareAndSet(int index, long expected, long value) {
+        return LONGS.compareAndSet(buffer, index, expected, value);
+    }
+
+    private static int participant(int participant, int offset) {
+        return LINE + participant * LINE + offset;
+    }
+
+    private int lock(int ordinal) {
+        return LINE + PARTICIPANTS * LINE + ordinal * LINE + STATE;
+    }
+
+    // Participants
+
+    /**
+     * Takes a free participant slot for a new transaction. The process is written together with
+     * the INITIALISING bit by the CAS taking the slot, so a slot whose claimant crashed before
+     * setting its fields can be cleaned up like any other.
+     *
+     * @param pid          Process of the transaction.
+     * @param processStart Start of the process.
+     * @param startTime    Start time of the transaction.
+     * @return Index of the slot, -1 if all slots are taken.
+     */
+    int claim(long pid, long processStart, long startTime) {
+        for (int p = 0; p < PARTICIPANTS; p++) {
+            if (get(participant(p, PID)) == 0 && compareAndSet(participant(p, PID), 0, pid | INITIALISING)) {
+                set(participant(p, PROCESS_START), processStart);
+                set(participant(p, START_TIME), startTime);
+                // Aborts of earlier transactions, marked with their generations, don't apply any more
+                set(participant(p, GENERATION), get(participant(p, GENERATION)) + 1);
+                set(participant(p, WAITS_FOR), NOT_WAITING);
+                set(participant(p, PID), pid); // Other processes use the slot from now on
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Frees the slot of an ended transaction, which doesn't hold any lock any more.
+     */
+    void free(int participant) {
+        set(participant(participant, WAITS_FOR), NOT_WAITING);
+        set(participant(participant, PID), 0);
+    }
+
+    /**
+     * @return Process of the transaction in the slot, also while it is being taken, 0 or negative
+     * if there is no transaction.
+     */
+    long getPid(int participant) {
+        long pid = get(participant(participant, PID));
+        return pid > 0 ? pid & ~INITIALISING : pid;
+    }
+
+    private boolean isInitialising(int participant) {
+        long pid = get(participant(participant, PID));
+        return pid > 0 && (pid & INITIALISING) != 0;
+    }
+
+    /**
+     * @return Start of the process of the transaction in the slot, 0 if unknown as the slot is being taken.
+     */
+    long getProcessStart(int participant) {
+        // Read after the process, which is set after the start, so it isn't left by an earlier transaction
+        return isInitialising(participant) ? 0 : get(participant(participant, PROCESS_START));
+    }
+
+    long getStartTime(int participant) {
+        return get(participant(participant, START_TIME));
+    }
+
+    /**
+     * @return Occupant naming the transaction in the slot, which may have ended since, and may be
+     * the previous one if the slot is being taken.
+     */
+    long getOccupant(int participant) {
+        return get(participant(participant, GENERATION)) << SLOT_BITS | participant;
+    }
+
+    static int slotOf(long occupant) {
+        return (int) (occupant & ((1L << SLOT_BITS) - 1));
+    }
+
+    /**
+     * @return True if the transaction in the slot was aborted, meaningless if the slot is free.
+     */
+    boolean isAborted(int participant) {
+        return get(participant(participant, ABORTED)) == get(participant(participant, GENERATION));
+    }
+
+    /**
+     * @return True if the transaction was aborted, false if it wasn't or has ended and its slot was taken again.
+     */
+    boolean isAborted(long occupant) {
+        return get(participant(slotOf(occupant), ABORTED)) == occupant >>> SLOT_BITS;
+    }
+
+    /**
+     * Aborts a transaction. Does nothing to the next transaction in its slot, if it has ended.
+     */
+    void abort(long occupant) {
+        set(participant(slotOf(occupant), ABORTED), occupant >>> SLOT_BITS);
+    }
+
+    /**
+     * @param ordinal Ordinal of the resource we wait for, NOT_WAITING if we stopped waiting.
+     */
+    void setWaitsFor(int participant, int ordinal, boolean exclusive) {
+        set(participant(participant, WAITS_MODE), exclusive ? 1 : 0);
+        set(participant(participant, WAITS_FOR), ordinal);
+    }
+
+    /**
+     * @return Holders of a resource for which the participant waits, in conflict with the mode it waits in,
+     * as a bitmap, 0 if it doesn't wait or was aborted.
+     */
+    long getWaitedHolders(int participant) {
+        int ordinal = (int) get(participant(participant, WAITS_FOR));
+        if (ordinal == NOT_WAITING || isAborted(participant) || getPid(participant) <= 0
+                || isInitialising(participant)) {
+            return 0;
+        }
+        return conflicting(get(lock(ordinal)), participant, get(participant(participant, WAITS_MODE)) != 0);
+    }
+
+    /**
+     * Compares transactions by their start time, and by their slots if they started at the same time.
+     *
+     * @return True if the first participant is older than the second one.
+     */
+    boolean isOlder(int participant, int other) {
+        long startTime = getStartTime(participant);
+        long otherStartTime = getStartTime(other);
+        return startTime != otherStartTime ? startTime < otherStartTime : participant < other;
+    }
+
+    /**
+     * Releases locks and the slot of a participant whose process crashed, also if it crashed while
+     * taking the slot. Only one process cleans up a slot, the slot can't be taken again before it is done.
+     *
+     * @param participant Slot of a transaction of a crashed process.
+     * @param pid         Crashed process.
+     * @return True if we cleaned up the slot.
+     */
+    boolean cleanUp(int participant, long pid) {
+        if (!compareAndSet(participant(participant, PID), pid, CLEANING)
+                && !compareAndSet(participant(participant, PID), pid | INITIALISING, CLEANING)) {
+            return false;
+        }
+        for (int ordinal = 0; ordinal < resourcesNum; ordinal++) {
+            unlock(ordinal, participant);
+        }
+        free(participant);
+        return true;
+    }
+
+    // Locks
+
+    /**
+     * Holders of a lock in the given state in conflict with a participant wanting the resource.
+     *
+     * @param state     State of the lock.
+     * @param exclusive True if the participant wants the resource in EXCLUSIVE mode.
+     * @return Bitmap of holders other than the participant which keep it from getting the resource.
+     */
+    static long conflicting(long state, int participant, boolean exclusive) {
+        long others = state & ~EXCLUSIVE & ~(1L << participant);
+        return exclusive || (state & EXCLUSIVE) != 0 ? others : 0;
+    }
+
+    long getHolders(int ordinal) {
+        return get(lock(ordinal)) & ~EXCLUSIVE;
+    }
+
+    /**
+     * Takes a resource in a given mode if it isn't held in a conflicting one. A shared holder
+     * that is the only holder upgrades its lock to EXCLUSIVE mode.
+     *
+     * @return True if the participant holds the resource in the given or a stronger mode.
+     */
+    boolean tryLock(int ordinal, int participant, boolean exclusive) {
+        long bit = 1L << participant;
+        while (true) {
+            long state = get(lock(ordinal));
+            if ((state & bit) != 0 && (!exclusive || (state & EXCLUSIVE) != 0)) {
+                return true;
+            }
+            if (conflicting(state, participant, exclusive) != 0) {
+                return false;
+            }
+            long next = exclusive ? EXCLUSIVE | bit : state | bit;
+            if (compareAndSet(lock(ordinal), state, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a resource held by the participant, does nothing if it doesn't hold it.
+     */
+    void unlock(int ordinal, int participant) {
+        long bit = 1L << participant;
+        while (true) {
+            long state = get(lock(ordinal));
+            if ((state & bit) == 0) {
+                return;
+            }
+            long next = (state & EXCLUSIVE) != 0 ? FREE : state & ~bit;
+            if (compareAndSet(lock(ordinal), state, next)) {
+                return;
+            }
+        }
+    }
+}
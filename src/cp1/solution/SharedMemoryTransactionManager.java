@@ -0,0 +1,487 @@
+package cp1.solution;
+
+import cp1.base.ActiveTransactionAborted;
+import cp1.base.AnotherTransactionActiveException;
+import cp1.base.LocalTimeProvider;
+import cp1.base.NoActiveTransactionException;
+import cp1.base.Resource;
+import cp1.base.ResourceId;
+import cp1.base.ResourceOperation;
+import cp1.base.ResourceOperationException;
+import cp1.base.TransactionManager;
+import cp1.base.UnknownResourceIdException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Manager sharing locks of resources with managers of other processes on the same host through
+ * a SharedLockTable in a memory-mapped file, without a network hop per lock. Operations are performed
+ * on the resources of this manager, identified in the table by their positions in the list given
+ * to the manager, so all processes have to list the same resources in the same order.
+ * At most SharedLockTable.PARTICIPANTS transactions of all processes are active at once, one that
+ * begins while all of them are taken waits until a transaction ends or its crashed process is cleaned up.
+ * Deadlocks are dealt with by the same policies as in ImplementedTransactionManager, over the graph
+ * of waiting transactions of all processes kept in the table. There is no wait queue shared by processes,
+ * so a waiting transaction polls the lock with exponential backoff, and with detection policies looks
+ * for a cycle it is in each time, which makes BACKGROUND_DETECTION the same as DETECTION. The youngest
+ * transaction of a cycle is aborted. The graph is read while other processes change it, so rarely
+ * a transaction is aborted for a deadlock that has just ended. Start times of transactions
+ * of all processes have to be comparable. Commutative operations, and ones tied to registered modes,
+ * lock resources in EXCLUSIVE mode, as the table keeps no modes other than SHARED and EXCLUSIVE.
+ * A transaction of another process is aborted by a flag in the table, and a background thread
+ * of its process interrupts its thread, like ImplementedTransactionManager does. The same thread
+ * releases locks of transactions whose process has crashed. Operations of such transactions are
+ * not undone, as their undo logs were lost with the process.
+ */
+public class SharedMemoryTransactionManager implements TransactionManager, Closeable {
+    private static final long DEFAULT_WAIT_TIMEOUT = 1000; // With TIMEOUT policy, in units of the time provider
+    private static final long MIN_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long REAPER_INTERVAL_MILLIS = 20; // How often aborts and crashed processes are looked for
+
+    private final SharedLockTable table;
+    private final LocalTimeProvider timeProvider;
+    private final DeadlockPolicy deadlockPolicy;
+    private final long waitTimeout; // Longest wait with TIMEOUT policy, in units of the time provider
+    private final Map<ResourceId, Resource> resources = new HashMap<>();
+    private final Map<ResourceId, Integer> ordinals = new HashMap<>(); // Position of the Resource in the list
+    private final long pid = ProcessHandle.current().pid();
+    private final long processStart = startOf(ProcessHandle.current());
+    // Transactions of this manager by their participant slots, read by the reaper
+    private final AtomicReferenceArray<SharedTransaction> local =
+            new AtomicReferenceArray<>(SharedLockTable.PARTICIPANTS);
+    private final AtomicLong cleanedUp = new AtomicLong(0); // Transactions of crashed processes cleaned up
+    private final Thread reaper;
+    private volatile boolean closed = false;
+    private final ThreadLocal<SharedTransaction> currentTransaction = new ThreadLocal<>();
+    private final ThreadLocal<UndoLog> undoLogs = ThreadLocal.withInitial(UndoLog::new);
+
+    public SharedMemoryTransactionManager(List<Resource> resources, Path file, LocalTimeProvider timeProvider,
+                                          DeadlockPolicy deadlockPolicy) throws IOException {
+        this(resources, file, timeProvider, deadlockPolicy, DEFAULT_WAIT_TIMEOUT);
+    }
+
+    /**
+     * Creates a manager using the lock table in the given file, creating the file if needed.
+     *
+     * @param resources      Resources of the manager, in the order shared with all processes using the file.
+     * @param file           File of the lock table.
+     * @param timeProvider   Provider of the start time of transactions, comparable between processes.
+     * @param deadlockPolicy Way of dealing with deadlocks, should be the same in all processes.
+     * @param waitTimeout    Longest wait for a resource with TIMEOUT policy, in units of the time provider.
+     */
+    public SharedMemoryTransactionManager(List<Resource> resources, Path file, LocalTimeProvider timeProvider,
+                                          DeadlockPolicy deadlockPolicy, long waitTimeout) throws IOException {
+        for (int i = 0; i < resources.size(); i++) {
+            this.resources.put(resources.get(i).getId(), resources.get(i));
+            this.ordinals.put(resources.get(i).getId(), i);
+        }
+        this.table = new SharedLockTable(file, resources.size());
+        this.timeProvider = timeProvider;
+        this.deadlockPolicy = deadlockPolicy;
+        this.waitTimeout = waitTimeout;
+        this.reaper = new Thread(this::reap, "shared-lock-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Stops the background thread of the manager. Transactions still active keep their locks.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        reaper.interrupt();
+    }
+
+    /**
+     * @return Number of transactions of crashed processes whose locks this manager released.
+     */
+    public long getCleanedUpTransactions() {
+        return cleanedUp.get();
+    }
+
+    /**
+     * Begins a transaction, waiting for a free participant slot if all of them are taken.
+     * An interrupt doesn't stop the wait, but is kept, so the first operation of the transaction
+     * throws InterruptedException.
+     */
+    @Override
+    public void startTransaction() throws AnotherTransactionActiveException {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                startTransactionInterruptibly();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Begins a transaction like {@link #startTransaction()}, but stops waiting for a free participant slot
+     * when the thread is interrupted.
+     *
+     * @throws InterruptedException If the thread was interrupted while waiting for a slot.
+     */
+    public void startTransactionInterruptibly() throws AnotherTransactionActiveException, InterruptedException {
+        if (currentTransaction.get() != null) {
+            throw new AnotherTransactionActiveException();
+        }
+        int participant = table.claim(pid, processStart, timeProvider.getTime());
+        long pollNanos = MIN_POLL_NANOS;
+        while (participant < 0) { // Slots are freed by other processes too, so we poll
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(pollNanos);
+            pollNanos = Math.min(2 * pollNanos, MAX_POLL_NANOS);
+            participant = table.claim(pid, processStart, timeProvider.getTime());
+        }
+        // The log was left empty by the last transaction of the thread
+        SharedTransaction transaction = new SharedTransaction(participant, table.getOccupant(participant),
+                Thread.currentThread(), undoLogs.get());
+        local.set(participant, transaction);
+        currentTransaction.set(transaction);
+    }
+
+    @Override
+    public void operateOnResourceInCurrentTransaction(ResourceId rid, ResourceOperation operation) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        SharedTransaction transaction = activeCurrent();
+        Integer ordinal = ordinals.get(rid);
+        if (ordinal == null) {
+            throw new UnknownResourceIdException(rid);
+        }
+        if (table.isAborted(transaction.occupant)) {
+            throw new ActiveTransactionAborted();
+        }
+
+        boolean held = (table.getHolders(ordinal) & (1L << transaction.participant)) != 0;
+        acquire(transaction, ordinal, LockMode.of(operation) != LockMode.SHARED);
+        if (!held) {
+            transaction.addLocked(ordinal);
+        }
+
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        Resource resource = resources.get(rid);
+        operation.execute(resource); // Can throw ResourceOperationException, below code won't be executed
+        transaction.undoLog.add(resource, operation);
+    }
+
+    @Override
+    public void commitCurrentTransaction() throws NoActiveTransactionException, ActiveTransactionAborted {
+        SharedTransaction transaction = activeCurrent();
+        if (table.isAborted(transaction.occupant)) {
+            throw new ActiveTransactionAborted();
+        }
+        if (transaction.stopAbortInterrupts()) {
+            Thread.interrupted(); // An abort that came after the check is ignored, with its interrupt
+        }
+        transaction.undoLog.clear();
+        end(transaction);
+    }
+
+    @Override
+    public void rollbackCurrentTransaction() {
+        SharedTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            return;
+        }
+        transaction.undoLog.undoAll(); // Resources are still locked
+        end(transaction);
+    }
+
+    @Override
+    public boolean isTransactionActive() {
+        return currentTransaction.get() != null;
+    }
+
+    @Override
+    public boolean isTransactionAborted() {
+        SharedTransaction transaction = currentTransaction.get();
+        return transaction != null && table.isAborted(transaction.occupant);
+    }
+
+    private SharedTransaction activeCurrent() throws NoActiveTransactionException {
+        SharedTransaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            throw new NoActiveTransactionException();
+        }
+        return transaction;
+    }
+
+    private void end(SharedTransaction transaction) {
+        transaction.stopAbortInterrupts(); // Aborts aimed at the transaction afterwards don't interrupt the thread
+        for (int i = 0; i < transaction.lockedCount; i++) {
+            table.unlock(transaction.locked[i], transaction.participant);
+        }
+        local.set(transaction.participant, null);
+        table.free(transaction.participant);
+        currentTransaction.remove();
+    }
+
+    /**
+     * Acquires a resource in the given mode, polling its lock until it is granted.
+     *
+     * @param transaction Active transaction of the current thread.
+     * @param ordinal     Ordinal of the Resource.
+     * @param exclusive   True if the Resource is needed in EXCLUSIVE mode.
+     */
+    private void acquire(SharedTransaction transaction, int ordinal, boolean exclusive) throws
+            ActiveTransactionAborted, InterruptedException {
+        int participant = transaction.participant;
+        if (table.tryLock(ordinal, participant, exclusive)) {
+            return;
+        }
+        table.setWaitsFor(participant, ordinal, exclusive);
+        long waitStart = timeProvider.getTime();
+        long pollNanos = MIN_POLL_NANOS;
+        try {
+            while (!table.tryLock(ordinal, participant, exclusive)) {
+                if (table.isAborted(transaction.occupant)) {
+                    throw new ActiveTransactionAborted();
+                }
+                preventDeadlock(transaction, waitStart);
+                if (Thread.interrupted()) {
+                    if (table.isAborted(transaction.occupant)) {
+                        throw new ActiveTransactionAborted();
+                    }
+                    throw new InterruptedException();
+                }
+                LockSupport.parkNanos(pollNanos);
+                pollNanos = Math.min(2 * pollNanos, MAX_POLL_NANOS);
+            }
+        } finally {
+            table.setWaitsFor(participant, SharedLockTable.NOT_WAITING, false);
+        }
+    }
+
+    /**
+     * Applies the deadlock policy to a waiting transaction of the current thread.
+     * Other transactions are named by occupants read before they are found in the graph, so that
+     * one that ends meanwhile isn't mistaken for the next transaction in its slot.
+     *
+     * @param transaction Waiting transaction.
+     * @param waitStart   Time at which the transaction started waiting.
+     */
+    private void preventDeadlock(SharedTransaction transaction, long waitStart) throws ActiveTransactionAborted {
+        int participant = transaction.participant;
+        switch (deadlockPolicy) {
+            case WAIT_DIE:
+                for (long holders = table.getWaitedHolders(participant); holders != 0; holders &= holders - 1) {
+                    if (!table.isOlder(participant, Long.numberOfTrailingZeros(holders))) {
+                        abortSelf(transaction);
+                    }
+                }
+                break;
+            case WOUND_WAIT:
+                for (long holders = table.getWaitedHolders(participant); holders != 0; holders &= holders - 1) {
+                    int holder = Long.numberOfTrailingZeros(holders);
+                    long occupant = table.getOccupant(holder);
+                    // Still held after the occupant is read, so by it or a later transaction we don't abort
+                    if ((table.getWaitedHolders(participant) & (1L << holder)) != 0
+                            && table.isOlder(participant, holder) && !table.isAborted(occupant)) {
+                        abort(occupant);
+                    }
+                }
+                break;
+            case TIMEOUT:
+                if (timeProvider.getTime() - waitStart > waitTimeout) {
+                    abortSelf(transaction);
+                }
+                break;
+            default: // Both detection policies
+                long victim = findVictim(transaction);
+                if (victim == transaction.occupant) {
+                    abortSelf(transaction);
+                } else if (victim != SharedLockTable.NO_OCCUPANT) {
+                    abort(victim);
+                }
+        }
+    }
+
+    private void abortSelf(SharedTransaction transaction) throws ActiveTransactionAborted {
+        table.abort(transaction.occupant);
+        throw new ActiveTransactionAborted();
+    }
+
+    /**
+     * Aborts a transaction of any process, unless it has ended. A transaction of this manager
+     * has its thread interrupted at once, others are interrupted by reapers of their managers.
+     *
+     * @param occupant Slot of the transaction with its generation.
+     */
+    private void abort(long occupant) {
+        table.abort(occupant);
+        SharedTransaction transaction = local.get(SharedLockTable.slotOf(occupant));
+        if (transaction != null && transaction.occupant == occupant) {
+            transaction.interruptAborted();
+        }
+    }
+
+    /**
+     * Looks for a cycle of waiting transactions that contains the given one. Graphs have at most
+     * PARTICIPANTS nodes, so sets of them are bitmaps and the search doesn't allocate.
+     * A transaction of the component may abort itself while we search, which makes it unreachable.
+     * The cycle is being broken then, so we don't choose another victim.
+     *
+     * @param transaction Waiting transaction.
+     * @return Occupant of the youngest transaction of the strongly connected component of the given one
+     * if it is in a cycle that nobody breaks yet, NO_OCCUPANT otherwise.
+     */
+    private long findVictim(SharedTransaction transaction) {
+        int participant = transaction.participant;
+        long bit = 1L << participant;
+        long reachable = reachableFrom(participant);
+        if ((reachable & bit) == 0) {
+            return SharedLockTable.NO_OCCUPANT;
+        }
+        int victim = participant;
+        long victimOccupant = transaction.occupant;
+        for (long rest = reachable & ~bit; rest != 0; rest &= rest - 1) {
+            int other = Long.numberOfTrailingZeros(rest);
+            long occupant = table.getOccupant(other); // Read before the search, which finds only it or a later one
+            long reachableFromOther = reachableFrom(other);
+            if (table.isAborted(occupant)) { // Checked after the search, which finds nothing from an aborted one
+                return SharedLockTable.NO_OCCUPANT;
+            }
+            if ((reachableFromOther & bit) != 0 && table.isOlder(victim, other)) { // On a cycle with us
+                victim = other;
+                victimOccupant = occupant;
+            }
+        }
+        return victimOccupant;
+    }
+
+    /**
+     * @param participant Slot of a transaction.
+     * @return Bitmap of transactions reachable from the given one in the graph of waiting transactions.
+     */
+    private long reachableFrom(int participant) {
+        long seen = 0;
+        long frontier = table.getWaitedHolders(participant);
+        while (frontier != 0) {
+            seen |= frontier;
+            long next = 0;
+            for (long rest = frontier; rest != 0; rest &= rest - 1) {
+                next |= table.getWaitedHolders(Long.numberOfTrailingZeros(rest));
+            }
+            frontier = next & ~seen;
+        }
+        return seen;
+    }
+
+    /**
+     * Body of the background thread, which interrupts threads of transactions of this manager aborted
+     * by other processes and releases locks of transactions of crashed processes.
+     */
+    private void reap() {
+        while (!closed) {
+            for (int participant = 0; participant < SharedLockTable.PARTICIPANTS; participant++) {
+                SharedTransaction transaction = local.get(participant);
+                if (transaction != null && table.isAborted(transaction.occupant)) {
+                    transaction.interruptAborted();
+                }
+                long owner = table.getPid(participant);
+                if (owner > 0 && owner != pid && !isAlive(owner, table.getProcessStart(participant))
+                        && table.cleanUp(participant, owner)) {
+                    cleanedUp.incrementAndGet();
+                }
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(REAPER_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param pid   Id of a process.
+     * @param start Start of the process, 0 if unknown.
+     * @return True if the process is still running, and not replaced by another one with the same pid.
+     */
+    private static boolean isAlive(long pid, long start) {
+        return ProcessHandle.of(pid)
+                .filter(ProcessHandle::isAlive)
+                .map(process -> start == 0 || startOf(process) == start)
+                .orElse(false);
+    }
+
+    /**
+     * @return Start of the process in milliseconds since the epoch, 0 if unknown.
+     */
+    private static long startOf(ProcessHandle process) {
+        return process.info().startInstant().map(Instant::toEpochMilli).orElse(0L);
+    }
+
+    /**
+     * Transaction of a thread, which occupies a participant slot of the table.
+     */
+    private static final class SharedTransaction {
+        private final int participant;
+        private final long occupant; // Slot with its generation, naming this transaction in the table
+        private final Thread thread;
+        private final UndoLog undoLog; // Operations performed by this manager, undone here on rollback
+        private int[] locked = new int[16]; // Ordinals of resources held, used only by the owner thread
+        private int lockedCount = 0;
+        private boolean abortInterrupted = false; // True while the thread has an interrupt of an abort, guarded by this
+        private boolean abortInterruptsStopped = false; // True once aborts mustn't interrupt, guarded by this
+
+        private SharedTransaction(int participant, long occupant, Thread thread, UndoLog undoLog) {
+            this.participant = participant;
+            this.occupant = occupant;
+            this.thread = thread;
+            this.undoLog = undoLog;
+        }
+
+        private void addLocked(int ordinal) {
+            if (lockedCount == locked.length) {
+                locked = Arrays.copyOf(locked, 2 * lockedCount);
+            }
+            locked[lockedCount++] = ordinal;
+        }
+
+        /**
+         * Interrupts the thread of the aborted transaction, only once, and not once it is ending.
+         */
+        private synchronized void interruptAborted() {
+            if (!abortInterrupted && !abortInterruptsStopped) {
+                abortInterrupted = true;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Makes sure an abort won't interrupt the thread any more. Called by the owner thread.
+         *
+         * @return True if the thread was interrupted for an abort since the last call.
+         */
+        private synchronized boolean stopAbortInterrupts() {
+            boolean interrupted = abortInterrupted;
+            abortInterrupted = false;
+            abortInterruptsStopped = true;
+            return interrupted;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package cp1.solution;
+
+import cp1.base.ActiveTransactionAborted;
+import cp1.base.NoActiveTransactionException;
+import cp1.base.ResourceId;
+import cp1.base.ResourceOperation;
+import cp1.base.ResourceOperationException;
+import cp1.base.UnknownResourceIdException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of a transaction started with {@link ImplementedTransactionManager#begin()}.
+ * The handle keeps the whole state of the transaction, so operating on it doesn't look
+ * the transaction up by the current thread. Resources are held by the thread that began
+ * the transaction, so only this thread may use the handle.
+ * Methods behave like their counterparts in {@link cp1.base.TransactionManager},
+ * with NoActiveTransactionException thrown once the transaction has ended.
+ */
+public final class Transaction {
+    private final ImplementedTransactionManager manager; // Manager controlling the resources of the transaction
+    private final Thread thread; // Thread that began the transaction
+    private final long threadId;
+    private final long startTime;
+    private final int priority; // Used by VictimSelector.LOWEST_PRIORITY
+    private final int retryCount; // Number of transactions this one retries, they all have the same start time
+    private final UndoLog undoLog; // Operations performed in the transaction, reused by the next transaction of the thread
+    private final List<ResourceLock> lockedResources; // Locks in control of the transaction, reused like the undo log
+    private final Transaction enclosing; // Transaction in which this one is nested, null for a top-level one
+    private final Transaction root; // Top-level transaction, holding resources for all nested ones, this if top-level
+    private final int firstOperation; // Position in the undo log, shared with enclosing transactions, where we began
+    private final int firstLock; // Position in the list of locked resources, shared like the undo log
+    private Transaction nested; // Active transaction nested in this one, used only by the owner thread
+    private long[] savepointEpochs; // Rollback epoch in which the i-th valid savepoint was set, created with the first one
+    private int savepointsNum = 0; // Number of savepoints not rolled back past, used only by the owner thread
+    private long rollbackEpoch = 0; // Incremented by every rollback, so savepoints set before and after it differ
+    private volatile boolean aborted = false;
+    private volatile boolean active = true; // False once the transaction is committed or rolled back
+    private boolean abortInterrupted = false; // True while the thread has an interrupt of an abort, guarded by this
+    private boolean abortInterruptsStopped = false; // True once an abort mustn't interrupt the thread, guarded by this
+    private volatile boolean prepared = false; // True once the transaction is sure to commit, it isn't wounded then
+    // Lock of the Resource we wait for, null if we don't wait, guarded by waitsForGraph except with TIMEOUT policy
+    private ResourceLock waitsForResource;
+    private LockMode waitsForMode; // Mode in which we wait for the Resource, guarded like the above
+    private volatile long waitTicket; // Order in which we started waiting for a Resource, set under its internal lock
+    private long visitedIn = 0; // Number of the last search for a cycle that visited us, guarded by waitsForGraph
+    private Transaction parent; // Transaction we were reached from in that search, guarded by waitsForGraph
+    private Transaction previousWaiting; // Neighbours in the list of waiting transactions, guarded by waitsForGraph
+    private Transaction nextWaiting;
+
+    Transaction(ImplementedTransactionManager manager, Thread thread, long startTime, int priority, int retryCount,
+                UndoLog undoLog, List<ResourceLock> lockedResources) {
+        this.manager = manager;
+        this.thread = thread;
+        this.threadId = thread.getId();
+        this.startTime = startTime;
+        this.priority = priority;
+        this.retryCount = retryCount;
+        this.undoLog = undoLog;
+        this.lockedResources = lockedResources;
+        this.enclosing = null;
+        this.root = this;
+        this.firstOperation = 0;
+        this.firstLock = 0;
+    }
+
+    /**
+     * Creates a transaction nested in the given one. It continues the logs of the enclosing transaction,
+     * so it inherits its resources and passes its own ones to the enclosing transaction on commit.
+     *
+     * @param enclosing Active transaction in which the new one is nested.
+     */
+    Transaction(Transaction enclosing) {
+        this.manager = enclosing.manager;
+        this.thread = enclosing.thread;
+        this.threadId = enclosing.threadId;
+        this.startTime = enclosing.startTime;
+        this.priority = enclosing.priority;
+        this.retryCount = enclosing.retryCount;
+        this.undoLog = enclosing.undoLog;
+        this.lockedResources = enclosing.lockedResources;
+        this.enclosing = enclosing;
+        this.root = enclosing.root;
+        this.firstOperation = undoLog.size();
+        this.firstLock = lockedResources.size();
+    }
+
+    public void operate(ResourceId rid, ResourceOperation operation) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        manager.operate(this, rid, operation, ImplementedTransactionManager.NO_TIMEOUT);
+    }
+
+    /**
+     * Like {@link ImplementedTransactionManager#tryOperateOnResourceInCurrentTransaction(ResourceId, ResourceOperation)}.
+     */
+    public boolean tryOperate(ResourceId rid, ResourceOperation operation) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        return manager.operate(this, rid, operation, 0);
+    }
+
+    /**
+     * Like {@link ImplementedTransactionManager#tryOperateOnResourceInCurrentTransaction(ResourceId,
+     * ResourceOperation, long, TimeUnit)}.
+     */
+    public boolean tryOperate(ResourceId rid, ResourceOperation operation, long timeout, TimeUnit unit) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        return manager.operate(this, rid, operation, unit.toNanos(timeout));
+    }
+
+    /**
+     * Like {@link ImplementedTransactionManager#operateOnResourcesInCurrentTransaction(Collection)}.
+     */
+    public void operateAll(Collection<? extends Map.Entry<ResourceId, ResourceOperation>> operations) throws
+            NoActiveTransactionException, UnknownResourceIdException, ActiveTransactionAborted,
+            ResourceOperationException, InterruptedException {
+        manager.operateAll(this, operations);
+    }
+
+    /**
+     * Like {@link ImplementedTransactionManager#startNestedTransaction()}.
+     */
+    public Transaction beginNested() throws NoActiveTransactionException, ActiveTransactionAborted {
+        return manager.beginNested(this);
+    }
+
+    public void commit() throws NoActiveTransactionException, ActiveTransactionAborted {
+        manager.commit(this);
+    }
+
+    public void rollback() {
+        manager.rollback(this);
+    }
+
+    /**
+     * Like {@link ImplementedTransactionManager#setSavepointInCurrentTransaction()}.
+     */
+    public Savepoint setSavepoint() throws NoActiveTransactionException, ActiveTransactionAborted {
+        return manager.setSavepoint(this);
+    }
+
+    /**
+     * Like {@link ImplementedTransactionManager#rollbackCurrentTransactionTo(Savepoint)}.
+     */
+    public void rollbackTo(Savepoint savepoint) throws NoActiveTransactionException, ActiveTransactionAborted {
+        manager.rollbackTo(this, savepoint);
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * A nested transaction is aborted with its top-level transaction, which is the one that waits
+     * for resources and holds them.
+     *
+     * @return True if the transaction is active and aborted.
+     */
+    public boolean isAborted() {
+        return active && root.aborted;
+    }
+
+    /**
+     * @return Transaction in which this one is nested, null if this one is top-level.
+     */
+    public Transaction getEnclosing() {
+        return enclosing;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return Number of earlier attempts of this transaction, 0 if it wasn't begun as a retry.
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Number of operations performed so far, which have to be undone if the transaction is aborted.
+     * Read by other threads only while the transaction waits, when it doesn't change.
+     *
+     * @return Number of operations.
+     */
+    public int getOperationCount() {
+        return undoLog.size();
+    }
+
+    /**
+     * Number of resources held by the transaction, read like {@link #getOperationCount()}.
+     *
+     * @return Number of resources.
+     */
+    public int getLockCount() {
+        return lockedResources.size();
+    }
+
+    Transaction getRoot() {
+        return root;
+    }
+
+    int getFirstOperation() {
+        return firstOperation;
+    }
+
+    int getFirstLock() {
+        return firstLock;
+    }
+
+    /**
+     * Registers a new savepoint after all valid ones.
+     *
+     * @return Number of the new savepoint.
+     */
+    int addSavepoint() {
+        if (savepointEpochs == null) {
+            savepointEpochs = new long[4];
+        } else if (savepointsNum == savepointEpochs.length) {
+            savepointEpochs = Arrays.copyOf(savepointEpochs, 2 * savepointsNum);
+        }
+        savepointEpochs[savepointsNum] = rollbackEpoch;
+        return savepointsNum++;
+    }
+
+    long getRollbackEpoch() {
+        return rollbackEpoch;
+    }
+
+    /**
+     * A savepoint is valid until the transaction is rolled back to an earlier one. A later savepoint
+     * with the same number was set in a later epoch, so a stale savepoint doesn't pass for it.
+     *
+     * @param savepoint Savepoint set in this transaction.
+     * @return True if the transaction can be rolled back to the savepoint.
+     */
+    boolean isValid(Savepoint savepoint) {
+        return savepoint.getNumber() < savepointsNum && savepointEpochs[savepoint.getNumber()] == savepoint.getEpoch();
+    }
+
+    /**
+     * Records a rollback to a valid savepoint, which invalidates savepoints set after it.
+     *
+     * @param savepoint Savepoint the transaction was rolled back to.
+     */
+    void rolledBackTo(Savepoint savepoint) {
+        savepointsNum = savepoint.getNumber() + 1;
+        rollbackEpoch++;
+    }
+
+    /**
+     * Records a rollback of the whole transaction, which invalidates all its savepoints.
+     */
+    void rolledBack() {
+        savepointsNum = 0;
+        rollbackEpoch++;
+    }
+
+    Transaction getNested() {
+        return nested;
+    }
+
+    void setNested(Transaction nested) {
+        this.nested = nested;
+    }
+
+    ImplementedTransactionManager getManager() {
+        return manager;
+    }
+
+    Thread getThread() {
+        return thread;
+    }
+
+    long getThreadId() {
+        return threadId;
+    }
+
+    UndoLog getUndoLog() {
+        return undoLog;
+    }
+
+    List<ResourceLock> getLockedResources() {
+        return lockedResources;
+    }
+
+    /**
+     * Marks the transaction as aborted. Called by any thread.
+     */
+    void abort() {
+        aborted = true;
+    }
+
+    /**
+     * Interrupts the thread of the aborted transaction, only once, and not after the transaction
+     * has ended or its owner has called stopAbortInterrupts(). Called by any thread.
+     */
+    synchronized void interruptAborted() {
+        if (!abortInterrupted && !abortInterruptsStopped) {
+            abortInterrupted = true;
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Makes sure an abort won't interrupt the thread any more, so that the owner can tell
+     * the interrupt of an abort from other ones. Called by the owner thread.
+     *
+     * @return True if the thread was interrupted for an abort since the last call.
+     */
+    synchronized boolean stopAbortInterrupts() {
+        boolean interrupted = abortInterrupted;
+        abortInterrupted = false; // The owner clears it, it isn't reported again
+        abortInterruptsStopped = true;
+        return interrupted;
+    }
+
+    void prepare() {
+        prepared = true;
+    }
+
+    boolean isPrepared() {
+        return prepared;
+    }
+
+    /**
+     * Ends the transaction. An abort aimed at it afterwards, by a thread that saw it active,
+     * doesn't interrupt the thread any more.
+     */
+    synchronized void end() {
+        active = false;
+        abortInterruptsStopped = true;
+    }
+
+    ResourceLock getWaitsForResource() {
+        return waitsForResource;
+    }
+
+    LockMode getWaitsForMode() {
+        return waitsForMode;
+    }
+
+    /**
+     * Sets the edge going from this transaction in the graph of waiting threads.
+     *
+     * @param lock Lock guarding the Resource we wait for, null if we stopped waiting.
+     * @param mode Mode in which we wait for the Resource.
+     */
+    void setWaitsFor(ResourceLock lock, LockMode mode) {
+        waitsForResource = lock;
+        waitsForMode = mode;
+    }
+
+    long getWaitTicket() {
+        return waitTicket;
+    }
+
+    void setWaitTicket(long waitTicket) {
+        this.waitTicket = waitTicket;
+    }
+
+    Transaction getPreviousWaiting() {
+        return previousWaiting;
+    }
+
+    Transaction getNextWaiting() {
+        return nextWaiting;
+    }
+
+    void setWaitingLinks(Transaction previous, Transaction next) {
+        previousWaiting = previous;
+        nextWaiting = next;
+    }
+
+    /**
+     * Marks the transaction as visited in a search for a cycle.
+     *
+     * @param searchNumber Number of the search.
+     * @param parent       Transaction that waits for us and from which we were reached, null for the first one.
+     */
+    void visit(long searchNumber, Transaction parent) {
+        this.visitedIn = searchNumber;
+        this.parent = parent;
+    }
+
+    boolean isVisited(long searchNumber) {
+        return visitedIn == searchNumber;
+    }
+
+    Transaction getParent() {
+        return parent;
+    }
+
+    /**
+     * Compares transactions by their start time, and by ids of their threads if they started at the same time.
+     *
+     * @param other Other transaction.
+     * @return True if this transaction is older than the other one.
+     */
+    boolean isOlderThan(Transaction other) {
+        if (startTime != other.startTime) {
+            return startTime < other.startTime;
+        } else {
+            return threadId < other.threadId;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package cp1.solution;
+
+import cp1.base.ActiveTransactionAborted;
+import cp1.base.NoActiveTransactionException;
+import cp1.base.ResourceOperationException;
+import cp1.base.UnknownResourceIdException;
+
+/**
+ * Work done in a transaction run by {@link ImplementedTransactionManager#runInTransaction(RetryPolicy, TransactionBody)}.
+ * The body runs once for every attempt of the transaction, so it should only operate on resources
+ * and shouldn't have other effects. It must not commit or roll back the transaction.
+ *
+ * @param <T> Type of the result of the transaction.
+ */
+@FunctionalInterface
+public interface TransactionBody<T> {
+
+    /**
+     * @param transaction Transaction of the current attempt.
+     * @return Result of the transaction, returned once it is committed.
+     */
+    T run(Transaction transaction) throws NoActiveTransactionException, UnknownResourceIdException,
+            ActiveTransactionAborted, ResourceOperationException, InterruptedException;
+}
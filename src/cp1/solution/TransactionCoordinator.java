@@ -0,0 +1,107 @@
+package cp1.solution;
+
+import cp1.base.AnotherTransactionActiveException;
+import cp1.base.LocalTimeProvider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinator of transactions spanning many independent managers, committed with two-phase commit.
+ * A distributed transaction begins a part in every manager it enlists, all parts with the start time
+ * of the whole transaction, so WAIT_DIE and WOUND_WAIT order transactions the same way in every manager
+ * and no deadlock can span managers using them. Managers with detection policies break their own
+ * deadlocks, and a background thread of the coordinator periodically breaks deadlocks spanning them,
+ * found in a graph of waiting threads built from their graphs. The thread runs only if some manager
+ * uses a detection policy. With TIMEOUT policy waits time out
+ * in each manager, which also ends deadlocks spanning managers. A manager may be shared by many
+ * coordinators and used by its own transactions at the same time.
+ */
+public class TransactionCoordinator {
+    private static final long DEFAULT_DETECTION_INTERVAL_MILLIS = 10; // Of deadlocks spanning managers
+
+    private final LocalTimeProvider timeProvider;
+    private final List<ImplementedTransactionManager> managers;
+    private final Set<ImplementedTransactionManager> enlistable; // Managers are compared by identity
+    private volatile VictimSelector victimSelector = VictimSelector.YOUNGEST; // For deadlocks spanning managers
+    private final ThreadLocal<DistributedTransaction> lastTransaction = new ThreadLocal<>();
+
+    public TransactionCoordinator(Collection<ImplementedTransactionManager> managers,
+                                  LocalTimeProvider timeProvider) {
+        this(managers, timeProvider, DEFAULT_DETECTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a coordinator of transactions spanning the given managers.
+     *
+     * @param managers          Managers in which distributed transactions operate.
+     * @param timeProvider      Provider of the start time of distributed transactions.
+     * @param detectionInterval Longest interval between scans for deadlocks spanning managers.
+     * @param unit              Unit of the interval.
+     */
+    public TransactionCoordinator(Collection<ImplementedTransactionManager> managers,
+                                  LocalTimeProvider timeProvider, long detectionInterval, TimeUnit unit) {
+        if (managers.isEmpty()) {
+            throw new IllegalArgumentException("No managers to coordinate");
+        }
+        this.timeProvider = timeProvider;
+        this.managers = new ArrayList<>(managers);
+        this.enlistable = Collections.newSetFromMap(new IdentityHashMap<>());
+        this.enlistable.addAll(managers);
+        for (ImplementedTransactionManager manager : managers) {
+            if (manager.detectsDeadlocks()) {
+                DeadlockDetector.start(this, TransactionCoordinator::breakDeadlocks, unit.toNanos(detectionInterval));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sets the way of choosing which transaction of a deadlock spanning managers is aborted.
+     * Deadlocks within a manager are broken with the selector of the manager.
+     *
+     * @param victimSelector Selector of transactions to abort, VictimSelector.YOUNGEST by default.
+     */
+    public void setVictimSelector(VictimSelector victimSelector) {
+        this.victimSelector = victimSelector;
+    }
+
+    /**
+     * Starts a distributed transaction in the current thread. It doesn't begin any part until
+     * a manager is enlisted.
+     *
+     * @return Handle of the new transaction.
+     */
+    public DistributedTransaction begin() throws AnotherTransactionActiveException {
+        DistributedTransaction last = lastTransaction.get();
+        if (last != null && last.isActive()) {
+            throw new AnotherTransactionActiveException();
+        }
+        DistributedTransaction transaction = new DistributedTransaction(this, Thread.currentThread(),
+                timeProvider.getTime(), Thread.currentThread().getPriority());
+        lastTransaction.set(transaction);
+        return transaction;
+    }
+
+    /**
+     * @param manager Manager to check.
+     * @return True if distributed transactions of this coordinator may operate in the manager.
+     */
+    boolean coordinates(ImplementedTransactionManager manager) {
+        return enlistable.contains(manager);
+    }
+
+    /**
+     * Finds and breaks deadlocks spanning managers. Called periodically by the DeadlockDetector.
+     *
+     * @return Number of aborted transactions.
+     */
+    int breakDeadlocks() {
+        return JointWaitsForGraph.breakDeadlocks(managers, victimSelector);
+    }
+}
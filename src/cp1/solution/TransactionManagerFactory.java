@@ -39,4 +39,47 @@ public final class TransactionManagerFactory {
         return new ImplementedTransactionManager(resources, timeProvider);
     }
 
+    /**
+     * Instantiates a transaction manager like
+     * {@link #newTM(Collection, LocalTimeProvider)},
+     * which deals with deadlocks according
+     * to a given policy.
+     *
+     * @param resources      The collection of resources.
+     * @param timeProvider   A local time provider.
+     * @param deadlockPolicy A way of dealing with deadlocks.
+     * @return A new transaction manager for
+     * controlling the resources.
+     */
+    public final static TransactionManager newTM(
+            Collection<Resource> resources,
+            LocalTimeProvider timeProvider,
+            DeadlockPolicy deadlockPolicy
+    ) {
+        return new ImplementedTransactionManager(resources, timeProvider, deadlockPolicy);
+    }
+
+    /**
+     * Instantiates a transaction manager like
+     * {@link #newTM(Collection, LocalTimeProvider, DeadlockPolicy)},
+     * which splits the resources into shards
+     * controlled independently, so that transactions
+     * using different shards don't contend.
+     *
+     * @param resources      The collection of resources.
+     * @param timeProvider   A local time provider.
+     * @param deadlockPolicy A way of dealing with deadlocks.
+     * @param shards         The number of shards.
+     * @return A new transaction manager for
+     * controlling the resources.
+     */
+    public final static TransactionManager newShardedTM(
+            Collection<Resource> resources,
+            LocalTimeProvider timeProvider,
+            DeadlockPolicy deadlockPolicy,
+            int shards
+    ) {
+        return new ShardedTransactionManager(resources, timeProvider, deadlockPolicy, shards);
+    }
+
 }
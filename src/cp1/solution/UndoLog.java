@@ -0,0 +1,73 @@
+package cp1.solution;
+
+import cp1.base.Resource;
+import cp1.base.ResourceOperation;
+
+import java.util.Arrays;
+
+/**
+ * Log of operations performed in a transaction, kept to undo them on rollback. Entries are stored
+ * in parallel arrays, so logging an operation doesn't allocate once the arrays are big enough.
+ * Each thread reuses its log in consecutive transactions, hence the arrays only grow.
+ */
+class UndoLog {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Resource[] resources = new Resource[INITIAL_CAPACITY]; // Resource the i-th operation was performed on
+    private ResourceOperation[] operations = new ResourceOperation[INITIAL_CAPACITY]; // The i-th operation performed
+    private int size = 0; // Number of logged operations
+
+    /**
+     * Appends an operation to the log.
+     *
+     * @param resource  Resource the operation was performed on.
+     * @param operation Operation performed.
+     */
+    void add(Resource resource, ResourceOperation operation) {
+        if (size == resources.length) {
+            resources = Arrays.copyOf(resources, 2 * size);
+            operations = Arrays.copyOf(operations, 2 * size);
+        }
+        resources[size] = resource;
+        operations[size] = operation;
+        size++;
+    }
+
+    /**
+     * @return Number of logged operations.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Undoes logged operations, the most recent one first, and clears the log.
+     */
+    void undoAll() {
+        undoTo(0);
+    }
+
+    /**
+     * Undoes operations logged after the given number of first ones, the most recent one first,
+     * and removes them from the log.
+     *
+     * @param kept Number of operations that stay in the log.
+     */
+    void undoTo(int kept) {
+        while (size > kept) {
+            size--;
+            operations[size].undo(resources[size]);
+            resources[size] = null; // Logged objects shouldn't outlive the transaction
+            operations[size] = null;
+        }
+    }
+
+    /**
+     * Clears the log without undoing the operations.
+     */
+    void clear() {
+        Arrays.fill(resources, 0, size, null);
+        Arrays.fill(operations, 0, size, null);
+        size = 0;
+    }
+}
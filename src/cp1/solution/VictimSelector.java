@@ -0,0 +1,59 @@
+package cp1.solution;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * Chooses which transaction of a deadlock gets aborted with DETECTION and BACKGROUND_DETECTION policies.
+ * The manager compares transactions of a cycle pairwise and aborts the one preferred over all others,
+ * so a selector should define a strict order. It is called while the graph of waiting transactions
+ * is locked, so it must be cheap and must not call the manager.
+ * WAIT_DIE and WOUND_WAIT always abort younger transactions, as they prevent deadlocks by age.
+ */
+@FunctionalInterface
+public interface VictimSelector {
+
+    /**
+     * Aborts the transaction with the latest start time.
+     */
+    VictimSelector YOUNGEST = (candidate, victim) -> victim.isOlderThan(candidate);
+
+    /**
+     * Aborts the transaction with the fewest operations to undo, so the least work is wasted.
+     */
+    VictimSelector FEWEST_OPERATIONS = cheapest(Transaction::getOperationCount);
+
+    /**
+     * Aborts the transaction holding the fewest resources, so the least transactions have to be woken up.
+     */
+    VictimSelector FEWEST_LOCKS = cheapest(Transaction::getLockCount);
+
+    /**
+     * Aborts the transaction with the lowest priority given to {@link ImplementedTransactionManager#begin(int)}.
+     */
+    VictimSelector LOWEST_PRIORITY = cheapest(Transaction::getPriority);
+
+    /**
+     * @param candidate Transaction of the cycle.
+     * @param victim    Transaction chosen so far from the other transactions of the cycle.
+     * @return True if the candidate should be aborted rather than the victim.
+     */
+    boolean isBetterVictim(Transaction candidate, Transaction victim);
+
+    /**
+     * Returns a selector aborting the transaction of the lowest cost, the youngest one of those of equal cost.
+     *
+     * @param cost Cost of aborting a transaction.
+     * @return Selector comparing costs of transactions.
+     */
+    static VictimSelector cheapest(ToLongFunction<Transaction> cost) {
+        return (candidate, victim) -> {
+            long candidateCost = cost.applyAsLong(candidate);
+            long victimCost = cost.applyAsLong(victim);
+            if (candidateCost != victimCost) {
+                return candidateCost < victimCost;
+            } else {
+                return YOUNGEST.isBetterVictim(candidate, victim);
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+/* Checks operateOnResourcesInCurrentTransaction:
+ * 1) two threads repeatedly run batches over the same resources listed in opposite orders;
+ *    resources are locked in the order of their ids, so no transaction is ever aborted,
+ * 2) when an operation of a batch fails, the preceding ones stay in the transaction
+ *    and are undone by a rollback.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+
+public class BatchOperations {
+
+    private final static int RESOURCES = 10;
+    private final static int REPS = 500;
+
+    public static void main(String[] args) throws InterruptedException {
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < RESOURCES; i++) {
+            resources.add(new CountingResource(new SimpleResourceId(i)));
+        }
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(resources, System::currentTimeMillis);
+
+        oppositeOrders(tm, resources);
+        failingOperation(tm, resources);
+        System.out.println("OK");
+    }
+
+    private static List<Map.Entry<ResourceId, ResourceOperation>> batch(List<Resource> resources,
+                                                                        ResourceOperation operation) {
+        List<Map.Entry<ResourceId, ResourceOperation>> batch = new ArrayList<>();
+        for (Resource r : resources) {
+            batch.add(new AbstractMap.SimpleImmutableEntry<>(r.getId(), operation));
+        }
+        return batch;
+    }
+
+    private static void oppositeOrders(ImplementedTransactionManager tm, List<Resource> resources)
+            throws InterruptedException {
+        List<Resource> reversed = new ArrayList<>(resources);
+        Collections.reverse(reversed);
+        AtomicInteger aborted = new AtomicInteger(0);
+
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            List<Map.Entry<ResourceId, ResourceOperation>> batch =
+                    batch(t == 0 ? resources : reversed, new IncrementOperation());
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < REPS; i++) {
+                    try {
+                        tm.startTransaction();
+                        tm.operateOnResourcesInCurrentTransaction(batch);
+                        tm.commitCurrentTransaction();
+                    } catch (ActiveTransactionAborted | InterruptedException e) {
+                        aborted.incrementAndGet();
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    } finally {
+                        tm.rollbackCurrentTransaction();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        if (aborted.get() != 0) {
+            throw new AssertionError(aborted.get() + " transactions were aborted");
+        }
+        for (Resource r : resources) {
+            expectResourceValue((CountingResource) r, 2 * REPS);
+        }
+    }
+
+    private static void failingOperation(ImplementedTransactionManager tm, List<Resource> resources) {
+        List<Map.Entry<ResourceId, ResourceOperation>> batch = batch(resources.subList(0, 2), new IncrementOperation());
+        batch.add(new AbstractMap.SimpleImmutableEntry<>(resources.get(2).getId(), new FailingOpImpl()));
+        batch.addAll(batch(resources.subList(3, 4), new IncrementOperation()));
+
+        try {
+            tm.startTransaction();
+            tm.operateOnResourcesInCurrentTransaction(batch);
+            throw new AssertionError("Failing operation did not fail");
+        } catch (ResourceOperationException e) {
+            expectResourceValue((CountingResource) resources.get(0), 2 * REPS + 1);
+            expectResourceValue((CountingResource) resources.get(1), 2 * REPS + 1);
+            expectResourceValue((CountingResource) resources.get(3), 2 * REPS);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        } finally {
+            tm.rollbackCurrentTransaction();
+        }
+        for (Resource r : resources) {
+            expectResourceValue((CountingResource) r, 2 * REPS);
+        }
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class FailingOpImpl extends ResourceOperation {
+        @Override
+        public void execute(Resource r) throws ResourceOperationException {
+            throw new ResourceOperationException(r.getId(), this);
+        }
+        @Override
+        public void undo(Resource r) {
+            throw new AssertionError("Undoing a failed operation");
+        }
+    }
+}
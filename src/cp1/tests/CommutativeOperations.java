@@ -0,0 +1,210 @@
+/* Checks commutative operations:
+ * 1) two transactions incrementing the same counter don't wait for each other,
+ * 2) commutative operations of different classes, and reads, wait for each other,
+ * 3) rolling back one of concurrent increments undoes only its own,
+ * 4) two transactions that increment and then read the same counter deadlock,
+ *    and the younger of them gets aborted, while a single transaction may read its own increment,
+ * 5) many transactions incrementing a hot counter lose no increments.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class CommutativeOperations {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static int THREADS = 8;
+    private final static int REPS = 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        CountingResource r2 = new CountingResource(new SimpleResourceId(2));
+        CountingResource r3 = new CountingResource(new SimpleResourceId(3));
+        CountingResource r4 = new CountingResource(new SimpleResourceId(4));
+        List<Resource> resources = Arrays.asList(r0, r1, r2, r3, r4);
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(resources, System::currentTimeMillis);
+
+        concurrentIncrements(tm, r0);
+        conflictingOperations(tm, r1, new AddOpImpl(10), 11);
+        conflictingOperations(tm, r2, new ReadOpImpl(), 1);
+        rollbackOfOneIncrement(tm, r3);
+        readAfterIncrement(tm, r4);
+        hotCounter(tm, r0);
+        System.out.println("OK");
+    }
+
+    private static void concurrentIncrements(TransactionManager tm, CountingResource r) throws InterruptedException {
+        CountDownLatch bothIncremented = new CountDownLatch(2);
+        runAll(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new IncrementOpImpl());
+            bothIncremented.countDown();
+            if (!bothIncremented.await(10 * BASE_WAIT_TIME, TimeUnit.MILLISECONDS)) {
+                throw new AssertionError("Increments of the same resource waited for each other");
+            }
+            tm.commitCurrentTransaction();
+        }, 2, BASE_WAIT_TIME / 10, 10 * BASE_WAIT_TIME);
+        expectResourceValue(r, 2);
+    }
+
+    private static void conflictingOperations(TransactionManager tm, CountingResource r, ResourceOperation other,
+                                              long expected) throws InterruptedException {
+        CountDownLatch incremented = new CountDownLatch(1);
+        AtomicBoolean incrementCommitted = new AtomicBoolean(false);
+        Thread incrementer = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new IncrementOpImpl());
+            incremented.countDown();
+            Thread.sleep(2 * BASE_WAIT_TIME);
+            incrementCommitted.set(true);
+            tm.commitCurrentTransaction();
+        }));
+        Thread operator = new Thread(asRunnable(() -> {
+            incremented.await();
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), other);
+            if (!incrementCommitted.get()) {
+                throw new AssertionError(other.getClass().getSimpleName() + " did not wait for the increment");
+            }
+            tm.commitCurrentTransaction();
+        }));
+        incrementer.start();
+        operator.start();
+        incrementer.join();
+        operator.join();
+        expectResourceValue(r, expected);
+    }
+
+    private static void rollbackOfOneIncrement(TransactionManager tm, CountingResource r) throws InterruptedException {
+        CountDownLatch bothIncremented = new CountDownLatch(2);
+        CountDownLatch rolledBack = new CountDownLatch(1);
+        Thread rollingBack = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new AddOpImpl(5));
+            bothIncremented.countDown();
+            bothIncremented.await();
+            tm.rollbackCurrentTransaction();
+            rolledBack.countDown();
+        }));
+        Thread committing = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new AddOpImpl(3));
+            bothIncremented.countDown();
+            rolledBack.await();
+            tm.commitCurrentTransaction();
+        }));
+        rollingBack.start();
+        committing.start();
+        rollingBack.join();
+        committing.join();
+        expectResourceValue(r, 3);
+    }
+
+    private static void readAfterIncrement(ImplementedTransactionManager tm, CountingResource r)
+            throws InterruptedException {
+        CountDownLatch bothIncremented = new CountDownLatch(2);
+        int[] aborted = new int[1];
+        runAll(() -> {
+            tm.startTransaction();
+            try {
+                tm.operateOnResourceInCurrentTransaction(r.getId(), new IncrementOpImpl());
+                bothIncremented.countDown();
+                bothIncremented.await();
+                tm.operateOnResourceInCurrentTransaction(r.getId(), new ReadOpImpl());
+                tm.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted e) {
+                synchronized (aborted) {
+                    aborted[0]++;
+                }
+            } finally {
+                tm.rollbackCurrentTransaction();
+            }
+        }, 2, BASE_WAIT_TIME / 10, 10 * BASE_WAIT_TIME);
+        if (aborted[0] != 1) {
+            throw new AssertionError("Expected exactly one aborted transaction, got " + aborted[0]);
+        }
+        expectResourceValue(r, 1);
+
+        runAll(() -> { // Alone, in one batch
+            tm.startTransaction();
+            ReadOpImpl read = new ReadOpImpl();
+            List<Map.Entry<ResourceId, ResourceOperation>> batch = Arrays.asList(
+                    new AbstractMap.SimpleImmutableEntry<>(r.getId(), new IncrementOpImpl()),
+                    new AbstractMap.SimpleImmutableEntry<>(r.getId(), read));
+            tm.operateOnResourcesInCurrentTransaction(batch);
+            if (read.read != 2) {
+                throw new AssertionError("Read " + read.read + " after an increment of 1");
+            }
+            tm.commitCurrentTransaction();
+        }, 1, BASE_WAIT_TIME / 10, 10 * BASE_WAIT_TIME);
+    }
+
+    private static void hotCounter(TransactionManager tm, CountingResource r) throws InterruptedException {
+        long before = r.getValue();
+        runAll(() -> {
+            for (int i = 0; i < REPS; i++) {
+                tm.startTransaction();
+                tm.operateOnResourceInCurrentTransaction(r.getId(), new IncrementOpImpl());
+                tm.commitCurrentTransaction();
+            }
+        }, THREADS, BASE_WAIT_TIME / 10, 100 * BASE_WAIT_TIME);
+        expectResourceValue(r, before + (long) THREADS * REPS);
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ReadOpImpl extends ReadOnlyResourceOperation {
+        private long read;
+        @Override
+        public void execute(Resource r) {
+            read = ((CountingResource)r).getValue();
+        }
+    }
+
+    private static final class IncrementOpImpl extends CommutativeResourceOperation {
+        @Override
+        public void execute(Resource r) {
+            ((CountingResource)r).add(1);
+        }
+        @Override
+        public void undo(Resource r) {
+            ((CountingResource)r).add(-1);
+        }
+    }
+
+    private static final class AddOpImpl extends CommutativeResourceOperation {
+        private final long delta;
+        private AddOpImpl(long delta) {
+            this.delta = delta;
+        }
+        @Override
+        public void execute(Resource r) {
+            ((CountingResource)r).add(delta);
+        }
+        @Override
+        public void undo(Resource r) {
+            ((CountingResource)r).add(-delta);
+        }
+    }
+}
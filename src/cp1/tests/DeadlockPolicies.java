@@ -0,0 +1,174 @@
+/* Checks every DeadlockPolicy but TIMEOUT with two transactions, the older and the younger one:
+ * 1) a deadlock of the two transactions ends with the younger one aborted,
+ * 2) when the older transaction needs a resource held by the younger one, it waits,
+ *    except for WOUND_WAIT, where the younger one gets aborted,
+ * 3) with WOUND_WAIT, a wound of a transaction that has just committed or rolled back doesn't
+ *    interrupt its thread, which would otherwise see the interrupt after the commit or in its next transaction.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.TransactionManagerFactory;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class DeadlockPolicies {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static String OLDER = "older";
+
+    public static void main(String[] args) throws InterruptedException {
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            if (policy == DeadlockPolicy.TIMEOUT) {
+                continue; // Aborts whoever waits too long, regardless of age, see TimeoutDeadlocks
+            }
+            deadlock(policy);
+            olderWaitsForYounger(policy);
+        }
+        woundAfterEnd();
+        System.out.println("OK");
+    }
+
+    private static TransactionManager newTM(DeadlockPolicy policy, CountingResource... resources) {
+        // Transaction of the OLDER thread always starts earlier
+        return TransactionManagerFactory.newTM(Arrays.asList(resources),
+                () -> Thread.currentThread().getName().equals(OLDER) ? 0 : 1, policy);
+    }
+
+    private static void deadlock(DeadlockPolicy policy) throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        TransactionManager tm = newTM(policy, r0, r1);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        AtomicBoolean youngerAborted = new AtomicBoolean(false);
+
+        Thread older = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            bothLocked.await();
+            tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+            tm.commitCurrentTransaction();
+        }), OLDER);
+        Thread younger = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            try {
+                tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+                bothLocked.countDown();
+                bothLocked.await();
+                tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                tm.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                youngerAborted.set(tm.isTransactionAborted());
+            } finally {
+                tm.rollbackCurrentTransaction();
+            }
+        }));
+        runAll(10 * BASE_WAIT_TIME, older, younger);
+
+        if (!youngerAborted.get()) {
+            throw new AssertionError(policy + ": younger transaction was not aborted");
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+    }
+
+    private static void olderWaitsForYounger(DeadlockPolicy policy) throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        TransactionManager tm = newTM(policy, r0);
+        CountDownLatch locked = new CountDownLatch(1);
+        AtomicBoolean youngerAborted = new AtomicBoolean(false);
+
+        Thread older = new Thread(asRunnable(() -> {
+            locked.await();
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            tm.commitCurrentTransaction();
+        }), OLDER);
+        Thread younger = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            try {
+                tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                locked.countDown();
+                Thread.sleep(2 * BASE_WAIT_TIME);
+                tm.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                youngerAborted.set(tm.isTransactionAborted());
+            } finally {
+                tm.rollbackCurrentTransaction();
+            }
+        }));
+        runAll(10 * BASE_WAIT_TIME, older, younger);
+
+        if (youngerAborted.get() != (policy == DeadlockPolicy.WOUND_WAIT)) {
+            throw new AssertionError(policy + ": younger transaction aborted: " + youngerAborted.get());
+        }
+        expectResourceValue(r0, policy == DeadlockPolicy.WOUND_WAIT ? 1 : 2);
+    }
+
+    private static void woundAfterEnd() throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        TransactionManager tm = newTM(DeadlockPolicy.WOUND_WAIT, r0);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(5 * BASE_WAIT_TIME);
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        AtomicLong commits = new AtomicLong(0);
+        AtomicLong strayInterrupts = new AtomicLong(0);
+
+        Thread older = new Thread(asRunnable(() -> {
+            try {
+                while (System.nanoTime() < deadline) {
+                    tm.startTransaction();
+                    // Wounds the younger
+                    tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                    tm.commitCurrentTransaction();
+                    commits.incrementAndGet();
+                }
+            } finally {
+                stopped.set(true);
+            }
+        }), OLDER);
+        Thread younger = new Thread(asRunnable(() -> {
+            while (!stopped.get()) {
+                tm.startTransaction();
+                try {
+                    tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                    tm.commitCurrentTransaction();
+                    commits.incrementAndGet();
+                    if (Thread.interrupted()) { // A wound came after the check in the commit
+                        strayInterrupts.incrementAndGet();
+                    }
+                } catch (ActiveTransactionAborted e) {
+                    // Wounded, the interrupt that came with it is cleared below
+                } catch (InterruptedException e) {
+                    if (!tm.isTransactionAborted()) { // Left by a wound of an earlier transaction
+                        strayInterrupts.incrementAndGet();
+                    }
+                } finally {
+                    boolean aborted = tm.isTransactionAborted();
+                    tm.rollbackCurrentTransaction();
+                    if (aborted) {
+                        Thread.interrupted(); // Clears the interrupt that came with the abort
+                    }
+                }
+            }
+        }));
+        runAll(10 * BASE_WAIT_TIME, older, younger);
+
+        if (strayInterrupts.get() != 0) {
+            throw new AssertionError(strayInterrupts.get() + " wounds interrupted threads of ended transactions");
+        }
+        expectResourceValue(r0, commits.get());
+    }
+}
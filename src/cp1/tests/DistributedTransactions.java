@@ -0,0 +1,232 @@
+/* Checks transactions spanning many managers, coordinated with two-phase commit:
+ * 1) a transaction commits or rolls back in all managers together,
+ * 2) a transaction whose part was wounded in one manager fails to commit and is rolled back
+ *    in every manager,
+ * 3) a deadlock of two transactions waiting in different managers ends with the younger one
+ *    aborted, with every DeadlockPolicy but TIMEOUT, which may abort either of them,
+ * 4) managers not coordinated by the coordinator and repeated transactions are rejected,
+ * 5) a coordinator of managers that don't detect deadlocks starts no detector thread.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.DistributedTransaction;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.Transaction;
+import cp1.solution.TransactionCoordinator;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class DistributedTransactions {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static String OLDER = "older";
+    // Transaction of the OLDER thread always starts earlier
+    private final static LocalTimeProvider timeProvider =
+            () -> Thread.currentThread().getName().equals(OLDER) ? 0 : 1;
+
+    public static void main(String[] args) throws Exception {
+        atomicity();
+        woundedPart();
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            if (policy != DeadlockPolicy.TIMEOUT) {
+                crossManagerDeadlock(policy);
+            }
+        }
+        invalidUse();
+        noDetectorWithoutDetection();
+        System.out.println("OK");
+    }
+
+    private static void atomicity() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm0 = new ImplementedTransactionManager(Collections.singletonList(r0),
+                System::nanoTime);
+        ImplementedTransactionManager tm1 = new ImplementedTransactionManager(Collections.singletonList(r1),
+                System::nanoTime);
+        TransactionCoordinator coordinator = new TransactionCoordinator(Arrays.asList(tm0, tm1), System::nanoTime);
+
+        DistributedTransaction transaction = coordinator.begin();
+        transaction.operate(tm0, r0.getId(), new IncrementOperation());
+        transaction.operate(tm1, r1.getId(), new IncrementOperation());
+        transaction.commit();
+        if (transaction.isActive()) {
+            throw new AssertionError("Committed transaction is active");
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+
+        transaction = coordinator.begin();
+        transaction.operate(tm0, r0.getId(), new IncrementOperation());
+        transaction.operate(tm1, r1.getId(), new IncrementOperation());
+        transaction.rollback();
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+
+        // Resources were released in both managers
+        Transaction local = tm1.begin();
+        if (!local.tryOperate(r1.getId(), new IncrementOperation())) {
+            throw new AssertionError("Resource held after the distributed transaction ended");
+        }
+        local.commit();
+        expectResourceValue(r1, 2);
+    }
+
+    private static void woundedPart() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm0 = new ImplementedTransactionManager(Collections.singletonList(r0),
+                timeProvider, DeadlockPolicy.WOUND_WAIT);
+        ImplementedTransactionManager tm1 = new ImplementedTransactionManager(Collections.singletonList(r1),
+                timeProvider, DeadlockPolicy.WOUND_WAIT);
+        TransactionCoordinator coordinator = new TransactionCoordinator(Arrays.asList(tm0, tm1), timeProvider);
+        CountDownLatch bothLocked = new CountDownLatch(1);
+        AtomicBoolean commitFailed = new AtomicBoolean(false);
+
+        Thread younger = new Thread(asRunnable(() -> {
+            DistributedTransaction transaction = coordinator.begin();
+            transaction.operate(tm0, r0.getId(), new IncrementOperation());
+            transaction.operate(tm1, r1.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            long deadline = System.currentTimeMillis() + 10 * BASE_WAIT_TIME;
+            while (!transaction.isAborted() && System.currentTimeMillis() < deadline) {
+                Thread.onSpinWait();
+            }
+            Thread.interrupted(); // Clears the interrupt that came with the abort
+            try {
+                transaction.commit();
+            } catch (ActiveTransactionAborted e) {
+                commitFailed.set(!transaction.isActive());
+            }
+        }));
+        Thread older = new Thread(asRunnable(() -> {
+            bothLocked.await();
+            Transaction transaction = tm1.begin(); // Wounds the part of the younger transaction
+            transaction.operate(r1.getId(), new IncrementOperation());
+            transaction.commit();
+        }), OLDER);
+        runAll(20 * BASE_WAIT_TIME, younger, older);
+
+        if (!commitFailed.get()) {
+            throw new AssertionError("Wounded transaction did not fail to commit");
+        }
+        expectResourceValue(r0, 0);
+        expectResourceValue(r1, 1);
+    }
+
+    private static void crossManagerDeadlock(DeadlockPolicy policy) throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm0 = new ImplementedTransactionManager(Collections.singletonList(r0),
+                timeProvider, policy);
+        ImplementedTransactionManager tm1 = new ImplementedTransactionManager(Collections.singletonList(r1),
+                timeProvider, policy);
+        TransactionCoordinator coordinator = new TransactionCoordinator(Arrays.asList(tm0, tm1), timeProvider);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        AtomicBoolean youngerAborted = new AtomicBoolean(false);
+
+        Thread older = new Thread(asRunnable(() -> {
+            DistributedTransaction transaction = coordinator.begin();
+            transaction.operate(tm0, r0.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            bothLocked.await();
+            transaction.operate(tm1, r1.getId(), new IncrementOperation());
+            transaction.commit();
+        }), OLDER);
+        Thread younger = new Thread(asRunnable(() -> {
+            DistributedTransaction transaction = coordinator.begin();
+            try {
+                transaction.operate(tm1, r1.getId(), new IncrementOperation());
+                bothLocked.countDown();
+                bothLocked.await();
+                transaction.operate(tm0, r0.getId(), new IncrementOperation());
+                transaction.commit();
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                youngerAborted.set(transaction.isAborted());
+            } finally {
+                transaction.rollback();
+            }
+        }));
+        runAll(10 * BASE_WAIT_TIME, older, younger);
+
+        if (!youngerAborted.get()) {
+            throw new AssertionError(policy + ": younger transaction was not aborted");
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+    }
+
+    private static void noDetectorWithoutDetection() {
+        long detectorsBefore = countDetectorThreads();
+        for (DeadlockPolicy policy : new DeadlockPolicy[]{DeadlockPolicy.WAIT_DIE, DeadlockPolicy.WOUND_WAIT,
+                DeadlockPolicy.TIMEOUT}) {
+            ImplementedTransactionManager tm = new ImplementedTransactionManager(
+                    Collections.singletonList(new CountingResource(new SimpleResourceId(0))), System::nanoTime, policy);
+            new TransactionCoordinator(Collections.singletonList(tm), System::nanoTime);
+        }
+        if (countDetectorThreads() != detectorsBefore) {
+            throw new AssertionError("Coordinator started a detector for managers without detection");
+        }
+    }
+
+    private static long countDetectorThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("deadlock-detector"))
+                .count();
+    }
+
+    private static void invalidUse() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm0 = new ImplementedTransactionManager(Collections.singletonList(r0),
+                System::nanoTime);
+        ImplementedTransactionManager foreign = new ImplementedTransactionManager(Collections.singletonList(r1),
+                System::nanoTime);
+        TransactionCoordinator coordinator = new TransactionCoordinator(Collections.singletonList(tm0),
+                System::nanoTime);
+
+        DistributedTransaction transaction = coordinator.begin();
+        try {
+            transaction.enlist(foreign);
+            throw new AssertionError("Enlisted a manager not coordinated by the coordinator");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            coordinator.begin();
+            throw new AssertionError("Began a second transaction");
+        } catch (AnotherTransactionActiveException e) {
+            // Expected
+        }
+        if (transaction.enlist(tm0) != transaction.enlist(tm0)) {
+            throw new AssertionError("Manager enlisted twice");
+        }
+        transaction.commit();
+        try {
+            transaction.operate(tm0, r0.getId(), new IncrementOperation());
+            throw new AssertionError("Operated in a committed transaction");
+        } catch (NoActiveTransactionException e) {
+            // Expected
+        }
+        expectResourceValue(r0, 0);
+
+        try {
+            new TransactionCoordinator(Collections.emptyList(), System::nanoTime);
+            throw new AssertionError("Created a coordinator without managers");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
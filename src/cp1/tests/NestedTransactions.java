@@ -0,0 +1,197 @@
+/* Checks nested transactions:
+ * 1) rolling back a nested transaction undoes only its operations and releases only resources it used first,
+ *    committing it leaves its operations and resources to the enclosing transaction,
+ * 2) rolling back an enclosing transaction undoes committed nested ones and ends active ones,
+ *    and an enclosing transaction can't be used while a nested one is active,
+ * 3) a thread still can't start a second top-level transaction,
+ * 4) a transaction aborted in a deadlock while waiting in a nested transaction is aborted with its enclosing one.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.Transaction;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class NestedTransactions {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static String OLDER = "older";
+
+    public static void main(String[] args) throws Exception {
+        commitAndRollbackNested();
+        rollbackEnclosing();
+        oneTopLevelTransaction();
+        abortWhileNested();
+        System.out.println("OK");
+    }
+
+    private static void commitAndRollbackNested() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Arrays.asList(r0, r1), System::currentTimeMillis);
+
+        tm.startTransaction();
+        tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+        tm.startNestedTransaction();
+        tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+        tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+        tm.rollbackCurrentTransaction();
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 0);
+        if (!tm.isTransactionActive()) {
+            throw new AssertionError("Rolling back a nested transaction ended the enclosing one");
+        }
+        expectLockable(tm, r0, false);
+        expectLockable(tm, r1, true);
+
+        tm.startNestedTransaction();
+        tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+        tm.commitCurrentTransaction();
+        expectLockable(tm, r1, false); // Inherited by the enclosing transaction
+        tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+        tm.commitCurrentTransaction();
+        if (tm.isTransactionActive()) {
+            throw new AssertionError("Committed transaction is active");
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 3); // Once by expectLockable()
+    }
+
+    private static void rollbackEnclosing() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Arrays.asList(r0), System::currentTimeMillis);
+
+        Transaction top = tm.begin();
+        top.operate(r0.getId(), new IncrementOperation());
+        Transaction middle = top.beginNested();
+        middle.operate(r0.getId(), new IncrementOperation());
+        Transaction inner = middle.beginNested();
+        inner.operate(r0.getId(), new IncrementOperation());
+        inner.commit();
+        Transaction second = middle.beginNested();
+        second.operate(r0.getId(), new IncrementOperation());
+        try {
+            middle.operate(r0.getId(), new IncrementOperation());
+            throw new AssertionError("Used a transaction while a nested one is active");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        expectResourceValue(r0, 4);
+
+        middle.rollback();
+        expectResourceValue(r0, 1);
+        if (second.isActive() || !top.isActive()) {
+            throw new AssertionError("Rollback ended wrong transactions");
+        }
+        Transaction third = top.beginNested();
+        third.operate(r0.getId(), new IncrementOperation());
+        top.rollback();
+        if (third.isActive()) {
+            throw new AssertionError("Nested transaction is active after rolling back the enclosing one");
+        }
+        expectResourceValue(r0, 0);
+        expectLockable(tm, r0, true);
+    }
+
+    private static void oneTopLevelTransaction() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Arrays.asList(r0), System::currentTimeMillis);
+
+        try {
+            tm.startNestedTransaction();
+            throw new AssertionError("Started a nested transaction without an enclosing one");
+        } catch (NoActiveTransactionException e) {
+            // Expected
+        }
+        tm.startTransaction();
+        tm.startNestedTransaction();
+        try {
+            tm.startTransaction();
+            throw new AssertionError("Started a second top-level transaction");
+        } catch (AnotherTransactionActiveException e) {
+            // Expected
+        }
+        tm.rollbackCurrentTransaction();
+        tm.rollbackCurrentTransaction();
+        if (tm.isTransactionActive()) {
+            throw new AssertionError("Rolled back transaction is active");
+        }
+    }
+
+    private static void abortWhileNested() throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        // Transaction of the OLDER thread always starts earlier
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(Arrays.asList(r0, r1),
+                () -> Thread.currentThread().getName().equals(OLDER) ? 0 : 1, DeadlockPolicy.DETECTION);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        AtomicBoolean nestedAborted = new AtomicBoolean(false);
+        AtomicBoolean enclosingAborted = new AtomicBoolean(false);
+
+        Thread older = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            bothLocked.await();
+            tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+            tm.commitCurrentTransaction();
+        }), OLDER);
+        Thread younger = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            bothLocked.await();
+            tm.startNestedTransaction();
+            try {
+                tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                tm.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                nestedAborted.set(tm.isTransactionAborted());
+            } finally {
+                tm.rollbackCurrentTransaction();
+            }
+            enclosingAborted.set(tm.isTransactionAborted());
+            tm.rollbackCurrentTransaction();
+        }));
+        runAll(10 * BASE_WAIT_TIME, older, younger);
+
+        if (!nestedAborted.get() || !enclosingAborted.get()) {
+            throw new AssertionError("Younger transaction was not aborted");
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+    }
+
+    /**
+     * Checks in another thread if a resource can be used without waiting, incrementing it if so.
+     */
+    private static void expectLockable(ImplementedTransactionManager tm, CountingResource r, boolean lockable)
+            throws InterruptedException {
+        AtomicBoolean locked = new AtomicBoolean(false);
+        Thread other = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            locked.set(tm.tryOperateOnResourceInCurrentTransaction(r.getId(), new IncrementOperation()));
+            tm.commitCurrentTransaction();
+        }));
+        other.start();
+        other.join();
+        if (locked.get() != lockable) {
+            throw new AssertionError("Resource " + r.getId() + (lockable ? " is held" : " is not held"));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/* Checks read-only operations:
+ * 1) two transactions reading the same resource don't wait for each other,
+ * 2) a writing transaction waits for a reading one to end,
+ * 3) two transactions that read and then write the same resource deadlock,
+ *    and the younger of them gets aborted,
+ * 4) a writer isn't starved by readers that keep coming while it waits.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.TransactionManagerFactory;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class ReadOnlyOperations {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static int READERS = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        List<Resource> resources = Arrays.asList(r0, r1);
+        TransactionManager tm = TransactionManagerFactory.newTM(resources, System::currentTimeMillis);
+
+        concurrentReaders(tm, r0);
+        writerWaitsForReader(tm, r0);
+        upgradeDeadlock(tm, r1);
+        writerNotStarved(tm, r0);
+        System.out.println("OK");
+    }
+
+    private static void concurrentReaders(TransactionManager tm, CountingResource r) throws InterruptedException {
+        CountDownLatch bothRead = new CountDownLatch(2);
+        runAll(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new ReadOpImpl());
+            bothRead.countDown();
+            if (!bothRead.await(10 * BASE_WAIT_TIME, TimeUnit.MILLISECONDS)) {
+                throw new AssertionError("Readers of the same resource waited for each other");
+            }
+            tm.commitCurrentTransaction();
+        }, 2, BASE_WAIT_TIME / 10, 10 * BASE_WAIT_TIME);
+    }
+
+    private static void writerWaitsForReader(TransactionManager tm, CountingResource r) throws InterruptedException {
+        CountDownLatch read = new CountDownLatch(1);
+        AtomicBoolean readerCommitted = new AtomicBoolean(false);
+        Thread reader = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new ReadOpImpl());
+            read.countDown();
+            Thread.sleep(2 * BASE_WAIT_TIME);
+            readerCommitted.set(true);
+            tm.commitCurrentTransaction();
+        }));
+        Thread writer = new Thread(asRunnable(() -> {
+            read.await();
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new IncrementOperation());
+            if (!readerCommitted.get()) {
+                throw new AssertionError("Writer did not wait for the reader");
+            }
+            tm.commitCurrentTransaction();
+        }));
+        reader.start();
+        writer.start();
+        reader.join();
+        writer.join();
+        expectResourceValue(r, 1);
+    }
+
+    private static void writerNotStarved(TransactionManager tm, CountingResource r) throws InterruptedException {
+        AtomicBoolean written = new AtomicBoolean(false);
+        // Readers give up waiting for the writer then
+        long readersEnd = System.currentTimeMillis() + 20 * BASE_WAIT_TIME;
+        Thread[] readers = new Thread[READERS];
+        for (int i = 0; i < READERS; i++) {
+            readers[i] = new Thread(asRunnable(() -> {
+                // Read periods overlap, so without preference for the writer the resource would never be free
+                while (!written.get() && System.currentTimeMillis() < readersEnd) {
+                    tm.startTransaction();
+                    tm.operateOnResourceInCurrentTransaction(r.getId(), new ReadOpImpl());
+                    Thread.sleep(BASE_WAIT_TIME / 4);
+                    tm.commitCurrentTransaction();
+                }
+            }));
+            readers[i].start();
+            Thread.sleep(BASE_WAIT_TIME / 10);
+        }
+        Thread writer = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new IncrementOperation());
+            written.set(true);
+            tm.commitCurrentTransaction();
+        }));
+        long start = System.currentTimeMillis();
+        writer.start();
+        writer.join();
+        long waited = System.currentTimeMillis() - start;
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (waited > 5 * BASE_WAIT_TIME) {
+            throw new AssertionError("Writer waited " + waited + " ms for readers that kept coming");
+        }
+        expectResourceValue(r, 2);
+    }
+
+    private static void upgradeDeadlock(TransactionManager tm, CountingResource r) throws InterruptedException {
+        CountDownLatch bothRead = new CountDownLatch(2);
+        int[] aborted = new int[1];
+        runAll(() -> {
+            tm.startTransaction();
+            try {
+                tm.operateOnResourceInCurrentTransaction(r.getId(), new ReadOpImpl());
+                bothRead.countDown();
+                bothRead.await();
+                tm.operateOnResourceInCurrentTransaction(r.getId(), new IncrementOperation());
+                tm.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted e) {
+                synchronized (aborted) {
+                    aborted[0]++;
+                }
+            } finally {
+                tm.rollbackCurrentTransaction();
+            }
+        }, 2, BASE_WAIT_TIME / 10, 10 * BASE_WAIT_TIME);
+        if (aborted[0] != 1) {
+            throw new AssertionError("Expected exactly one aborted transaction, got " + aborted[0]);
+        }
+        expectResourceValue(r, 1);
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ReadOpImpl extends ReadOnlyResourceOperation {
+        private long read;
+        @Override
+        public void execute(Resource r) {
+            read = ((CountingResource)r).getValue();
+        }
+    }
+}
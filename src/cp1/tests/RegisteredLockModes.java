@@ -0,0 +1,304 @@
+/* Checks lock modes registered with a compatibility matrix:
+ * 1) appends to the same log don't wait for each other, neither do reads,
+ * 2) appends and reads wait for each other, and an overwrite waits for an append,
+ * 3) a note, compatible with reads but not with itself, doesn't wait for a read but waits for another note,
+ * 4) rolling back one of concurrent appends undoes only its own entry,
+ * 5) deadlock prevention respects the matrix, a younger transaction doesn't die for a compatible holder,
+ * 6) deadlock detection respects the matrix, two transactions appending and then reading
+ *    the same log deadlock, and one of them gets aborted,
+ * 7) invalid registrations are rejected.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.LockMode;
+import cp1.solution.TransactionManagerFactory;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class RegisteredLockModes {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static int RESOURCES = 9;
+
+    public static void main(String[] args) throws InterruptedException {
+        LockMode append = LockMode.register("APPEND", AppendOpImpl.class, true);
+        LockMode note = LockMode.register("NOTE", NoteOpImpl.class, false, LockMode.SHARED);
+        if (LockMode.of(new AppendOpImpl("a")) != append || LockMode.of(new NoteOpImpl()) != note
+                || LockMode.of(new ReadOpImpl()) != LockMode.SHARED
+                || LockMode.of(new OverwriteOpImpl()) != LockMode.EXCLUSIVE) {
+            throw new AssertionError("Operations tied to wrong modes");
+        }
+        if (!append.isCompatibleWith(append) || append.isCompatibleWith(LockMode.SHARED)
+                || append.isCompatibleWith(LockMode.EXCLUSIVE) || !note.isCompatibleWith(LockMode.SHARED)
+                || !LockMode.SHARED.isCompatibleWith(note) || note.isCompatibleWith(note)
+                || note.isCompatibleWith(append)) {
+            throw new AssertionError("Wrong compatibility matrix");
+        }
+
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < RESOURCES; i++) {
+            resources.add(new ResourceImpl(new SimpleResourceId(i)));
+        }
+        TransactionManager tm = TransactionManagerFactory.newTM(resources, System::currentTimeMillis);
+
+        concurrentOperations(tm, get(resources, 0), new AppendOpImpl("a"), new AppendOpImpl("b"));
+        concurrentOperations(tm, get(resources, 1), new ReadOpImpl(), new ReadOpImpl());
+        concurrentOperations(tm, get(resources, 2), new NoteOpImpl(), new ReadOpImpl());
+        conflictingOperations(tm, get(resources, 3), new AppendOpImpl("a"), new ReadOpImpl());
+        conflictingOperations(tm, get(resources, 4), new AppendOpImpl("a"), new OverwriteOpImpl());
+        conflictingOperations(tm, get(resources, 5), new NoteOpImpl(), new NoteOpImpl());
+        rollbackOfOneAppend(tm, get(resources, 6));
+        waitDie(get(resources, 7));
+        readAfterAppend(tm, get(resources, 8));
+        invalidRegistrations(append);
+        System.out.println("OK");
+    }
+
+    private static ResourceImpl get(List<Resource> resources, int i) {
+        return (ResourceImpl) resources.get(i);
+    }
+
+    private static void concurrentOperations(TransactionManager tm, ResourceImpl r, ResourceOperation first,
+                                             ResourceOperation second) throws InterruptedException {
+        CountDownLatch bothOperated = new CountDownLatch(2);
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            ResourceOperation operation = t == 0 ? first : second;
+            threads[t] = new Thread(asRunnable(() -> {
+                tm.startTransaction();
+                tm.operateOnResourceInCurrentTransaction(r.getId(), operation);
+                bothOperated.countDown();
+                if (!bothOperated.await(10 * BASE_WAIT_TIME, TimeUnit.MILLISECONDS)) {
+                    throw new AssertionError(first.getClass().getSimpleName() + " and "
+                            + second.getClass().getSimpleName() + " waited for each other");
+                }
+                tm.commitCurrentTransaction();
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    private static void conflictingOperations(TransactionManager tm, ResourceImpl r, ResourceOperation first,
+                                              ResourceOperation second) throws InterruptedException {
+        CountDownLatch firstOperated = new CountDownLatch(1);
+        AtomicBoolean firstCommitted = new AtomicBoolean(false);
+        Thread firstThread = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), first);
+            firstOperated.countDown();
+            Thread.sleep(2 * BASE_WAIT_TIME);
+            firstCommitted.set(true);
+            tm.commitCurrentTransaction();
+        }));
+        Thread secondThread = new Thread(asRunnable(() -> {
+            firstOperated.await();
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), second);
+            if (!firstCommitted.get()) {
+                throw new AssertionError(second.getClass().getSimpleName() + " did not wait for "
+                        + first.getClass().getSimpleName());
+            }
+            tm.commitCurrentTransaction();
+        }));
+        firstThread.start();
+        secondThread.start();
+        firstThread.join();
+        secondThread.join();
+    }
+
+    private static void rollbackOfOneAppend(TransactionManager tm, ResourceImpl r) throws InterruptedException {
+        CountDownLatch bothAppended = new CountDownLatch(2);
+        CountDownLatch rolledBack = new CountDownLatch(1);
+        Thread rollingBack = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new AppendOpImpl("rolled back"));
+            bothAppended.countDown();
+            bothAppended.await();
+            tm.rollbackCurrentTransaction();
+            rolledBack.countDown();
+        }));
+        Thread committing = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new AppendOpImpl("committed"));
+            bothAppended.countDown();
+            rolledBack.await();
+            tm.commitCurrentTransaction();
+        }));
+        rollingBack.start();
+        committing.start();
+        rollingBack.join();
+        committing.join();
+        expectResourceValue(r, Collections.singletonList("committed"));
+    }
+
+    private static void waitDie(ResourceImpl r) throws InterruptedException {
+        TransactionManager tm = TransactionManagerFactory.newTM(Collections.singletonList(r),
+                System::currentTimeMillis, DeadlockPolicy.WAIT_DIE);
+        CountDownLatch olderAppended = new CountDownLatch(1);
+        CountDownLatch youngerAppended = new CountDownLatch(1);
+        Thread older = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new AppendOpImpl("older"));
+            olderAppended.countDown();
+            youngerAppended.await();
+            tm.commitCurrentTransaction();
+        }));
+        Thread younger = new Thread(asRunnable(() -> {
+            olderAppended.await();
+            Thread.sleep(BASE_WAIT_TIME / 10); // Starts a younger transaction
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r.getId(), new AppendOpImpl("younger"));
+            youngerAppended.countDown();
+            tm.commitCurrentTransaction();
+        }));
+        older.start();
+        younger.start();
+        older.join();
+        younger.join();
+        expectResourceValue(r, Arrays.asList("older", "younger"));
+    }
+
+    private static void readAfterAppend(TransactionManager tm, ResourceImpl r) throws InterruptedException {
+        CountDownLatch bothAppended = new CountDownLatch(2);
+        AtomicInteger aborted = new AtomicInteger(0);
+        runAll(() -> {
+            tm.startTransaction();
+            try {
+                tm.operateOnResourceInCurrentTransaction(r.getId(), new AppendOpImpl("entry"));
+                bothAppended.countDown();
+                bothAppended.await();
+                tm.operateOnResourceInCurrentTransaction(r.getId(), new ReadOpImpl());
+                tm.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted e) {
+                aborted.incrementAndGet();
+            } finally {
+                tm.rollbackCurrentTransaction();
+            }
+        }, 2, BASE_WAIT_TIME / 10, 10 * BASE_WAIT_TIME);
+        if (aborted.get() != 1) {
+            throw new AssertionError("Expected exactly one aborted transaction, got " + aborted.get());
+        }
+        expectResourceValue(r, Collections.singletonList("entry"));
+    }
+
+    private static void invalidRegistrations(LockMode append) {
+        expectRejected(() -> LockMode.register("INVALID", InvalidOpImpl.class, true, LockMode.EXCLUSIVE));
+        expectRejected(() -> LockMode.register("INVALID", ReadOnlyResourceOperation.class, true));
+        expectRejected(() -> append.tie(AppendOpImpl.class));
+        expectRejected(() -> LockMode.SHARED.tie(NoteOpImpl.class));
+        if (LockMode.of(new NoteOpImpl()) == LockMode.SHARED) {
+            throw new AssertionError("Rejected registration changed the mode of an operation");
+        }
+    }
+
+    private static void expectRejected(Runnable registration) {
+        try {
+            registration.run();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("Invalid registration accepted");
+    }
+
+    private final static void expectResourceValue(ResourceImpl r, List<String> val) {
+        if (!r.getValue().equals(val)) {
+            throw new AssertionError(
+                    "For resource " + r.getId() +
+                            ", expected value " + val +
+                            ", but got value " + r.getValue()
+            );
+        }
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class ResourceImpl extends Resource {
+        // Appended to concurrently
+        private final List<String> entries = Collections.synchronizedList(new ArrayList<>());
+        public ResourceImpl(ResourceId id) {
+            super(id);
+        }
+        public List<String> getValue() {
+            synchronized (entries) {
+                return new ArrayList<>(entries);
+            }
+        }
+    }
+
+    private static final class ReadOpImpl extends ReadOnlyResourceOperation {
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).getValue();
+        }
+    }
+
+    private static final class AppendOpImpl extends ResourceOperation {
+        private final String entry;
+        private AppendOpImpl(String entry) {
+            this.entry = entry;
+        }
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).entries.add(entry);
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).entries.remove(entry);
+        }
+    }
+
+    private static final class NoteOpImpl extends ResourceOperation {
+        @Override
+        public void execute(Resource r) {
+            ((ResourceImpl)r).entries.add("note");
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).entries.remove("note");
+        }
+    }
+
+    private static final class OverwriteOpImpl extends ResourceOperation {
+        private List<String> previous;
+        @Override
+        public void execute(Resource r) {
+            previous = ((ResourceImpl)r).getValue();
+            ((ResourceImpl)r).entries.clear();
+        }
+        @Override
+        public void undo(Resource r) {
+            ((ResourceImpl)r).entries.addAll(previous);
+        }
+    }
+
+    private static final class InvalidOpImpl extends ResourceOperation {
+        @Override
+        public void execute(Resource r) {
+        }
+        @Override
+        public void undo(Resource r) {
+        }
+    }
+}
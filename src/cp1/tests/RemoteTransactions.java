@@ -0,0 +1,441 @@
+/* Checks managers sharing locks through a LockServer over loopback, each client standing for a process:
+ * 1) a transaction of one client waits for a resource held by a transaction of another one,
+ * 2) a deadlock of transactions of different clients ends with the younger one aborted,
+ *    with every DeadlockPolicy but TIMEOUT, which may abort either of them,
+ * 3) interrupting a waiting thread interrupts its request without aborting the transaction,
+ * 4) a transaction aborted while its thread doesn't wait for the server has the thread interrupted,
+ *    and one aborted while its thread waits for a resource gets ActiveTransactionAborted instead,
+ * 5) transactions of many threads of both clients, aborted and retried, keep values of resources consistent,
+ * 6) transactions of a client that lost its connection are aborted and roll back,
+ * 7) unknown resources are reported,
+ * 8) transactions begun while all workers of the server are busy wait for a free one.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.LockServer;
+import cp1.solution.RemoteTransactionManager;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class RemoteTransactions {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static int THREADS = 8;
+    private final static int REPS = 200;
+
+    public static void main(String[] args) throws Exception {
+        waitForOtherClient();
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            if (policy != DeadlockPolicy.TIMEOUT) {
+                crossClientDeadlock(policy);
+            }
+        }
+        interruptedWait();
+        abortWhileNotWaiting();
+        abortWhileWaiting();
+        consistency();
+        lostConnection();
+        queuedSessions();
+        System.out.println("OK");
+    }
+
+    private static LockServer startServer(int resourcesNum, DeadlockPolicy policy) throws Exception {
+        AtomicLong time = new AtomicLong(0); // Transactions are older if they began earlier
+        return new LockServer(resourcesNum, time::incrementAndGet, policy);
+    }
+
+    private static LockServer startServer(int resourcesNum, DeadlockPolicy policy, int maxWorkers) throws Exception {
+        AtomicLong time = new AtomicLong(0);
+        return new LockServer(resourcesNum, time::incrementAndGet, policy, maxWorkers);
+    }
+
+    private static InetSocketAddress loopback() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    private static void waitForOtherClient() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        List<Resource> resources = Arrays.asList(r0);
+        try (LockServer server = startServer(1, DeadlockPolicy.DETECTION)) {
+            InetSocketAddress address = server.bind(loopback());
+            RemoteTransactionManager tm1 = new RemoteTransactionManager(resources, address);
+            RemoteTransactionManager tm2 = new RemoteTransactionManager(resources, address);
+            CountDownLatch locked = new CountDownLatch(1);
+            AtomicLong committedAt = new AtomicLong(0);
+            AtomicLong lockedAt = new AtomicLong(0);
+
+            Thread holder = new Thread(asRunnable(() -> {
+                tm1.startTransaction();
+                tm1.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                locked.countDown();
+                Thread.sleep(BASE_WAIT_TIME);
+                committedAt.set(System.nanoTime());
+                tm1.commitCurrentTransaction();
+            }));
+            Thread waiter = new Thread(asRunnable(() -> {
+                locked.await();
+                tm2.startTransaction();
+                tm2.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                lockedAt.set(System.nanoTime());
+                tm2.commitCurrentTransaction();
+            }));
+            runAll(10 * BASE_WAIT_TIME, holder, waiter);
+
+            if (lockedAt.get() < committedAt.get()) {
+                throw new AssertionError("Resource was locked by two clients at once");
+            }
+            expectResourceValue(r0, 2);
+
+            tm1.startTransaction();
+            try {
+                tm1.operateOnResourceInCurrentTransaction(new SimpleResourceId(1), new IncrementOperation());
+                throw new AssertionError("Operated on an unknown resource");
+            } catch (UnknownResourceIdException e) {
+                // Expected
+            }
+            tm1.rollbackCurrentTransaction();
+            tm1.close();
+            tm2.close();
+        }
+    }
+
+    private static void crossClientDeadlock(DeadlockPolicy policy) throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        List<Resource> resources = Arrays.asList(r0, r1);
+        try (LockServer server = startServer(2, policy)) {
+            InetSocketAddress address = server.bind(loopback());
+            RemoteTransactionManager tm1 = new RemoteTransactionManager(resources, address);
+            RemoteTransactionManager tm2 = new RemoteTransactionManager(resources, address);
+            CountDownLatch olderBegan = new CountDownLatch(1);
+            CountDownLatch bothLocked = new CountDownLatch(2);
+            AtomicBoolean youngerAborted = new AtomicBoolean(false);
+
+            Thread older = new Thread(asRunnable(() -> {
+                tm1.startTransaction();
+                olderBegan.countDown();
+                tm1.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                bothLocked.countDown();
+                bothLocked.await();
+                tm1.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+                tm1.commitCurrentTransaction();
+            }));
+            Thread younger = new Thread(asRunnable(() -> {
+                olderBegan.await();
+                tm2.startTransaction();
+                try {
+                    tm2.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+                    bothLocked.countDown();
+                    bothLocked.await();
+                    tm2.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                    tm2.commitCurrentTransaction();
+                } catch (ActiveTransactionAborted | InterruptedException e) {
+                    youngerAborted.set(tm2.isTransactionAborted());
+                } finally {
+                    tm2.rollbackCurrentTransaction();
+                }
+            }));
+            runAll(10 * BASE_WAIT_TIME, older, younger);
+
+            if (!youngerAborted.get()) {
+                throw new AssertionError(policy + ": younger transaction was not aborted");
+            }
+            expectResourceValue(r0, 1);
+            expectResourceValue(r1, 1);
+            tm1.close();
+            tm2.close();
+        }
+    }
+
+    private static void interruptedWait() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        List<Resource> resources = Arrays.asList(r0);
+        try (LockServer server = startServer(1, DeadlockPolicy.DETECTION)) {
+            InetSocketAddress address = server.bind(loopback());
+            RemoteTransactionManager tm1 = new RemoteTransactionManager(resources, address);
+            RemoteTransactionManager tm2 = new RemoteTransactionManager(resources, address);
+            CountDownLatch locked = new CountDownLatch(1);
+            CountDownLatch interrupted = new CountDownLatch(1);
+            AtomicBoolean interruptCarried = new AtomicBoolean(false);
+
+            Thread holder = new Thread(asRunnable(() -> {
+                tm1.startTransaction();
+                tm1.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                locked.countDown();
+                interrupted.await();
+                tm1.commitCurrentTransaction();
+            }));
+            Thread waiter = new Thread(asRunnable(() -> {
+                locked.await();
+                tm2.startTransaction();
+                try {
+                    tm2.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                } catch (InterruptedException e) {
+                    interruptCarried.set(tm2.isTransactionActive() && !tm2.isTransactionAborted());
+                } finally {
+                    interrupted.countDown();
+                    tm2.rollbackCurrentTransaction();
+                }
+            }));
+            holder.start();
+            waiter.start();
+            Thread.sleep(BASE_WAIT_TIME);
+            waiter.interrupt();
+            holder.join(10 * BASE_WAIT_TIME);
+            waiter.join(10 * BASE_WAIT_TIME);
+            if (holder.isAlive() || waiter.isAlive()) {
+                throw new AssertionError("Transactions did not finish");
+            }
+
+            if (!interruptCarried.get()) {
+                throw new AssertionError("Waiting request was not interrupted");
+            }
+            expectResourceValue(r0, 1);
+            tm1.close();
+            tm2.close();
+        }
+    }
+
+    private static void abortWhileNotWaiting() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        List<Resource> resources = Arrays.asList(r0);
+        try (LockServer server = startServer(1, DeadlockPolicy.WOUND_WAIT)) {
+            InetSocketAddress address = server.bind(loopback());
+            RemoteTransactionManager tm1 = new RemoteTransactionManager(resources, address);
+            RemoteTransactionManager tm2 = new RemoteTransactionManager(resources, address);
+            CountDownLatch olderBegan = new CountDownLatch(1);
+            CountDownLatch locked = new CountDownLatch(1);
+            AtomicBoolean youngerInterrupted = new AtomicBoolean(false);
+
+            Thread older = new Thread(asRunnable(() -> {
+                tm1.startTransaction();
+                olderBegan.countDown();
+                locked.await();
+                tm1.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation()); // Wounds the younger
+                tm1.commitCurrentTransaction();
+            }));
+            Thread younger = new Thread(asRunnable(() -> {
+                olderBegan.await();
+                tm2.startTransaction();
+                try {
+                    tm2.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                    locked.countDown();
+                    Thread.sleep(10 * BASE_WAIT_TIME);
+                } catch (InterruptedException e) {
+                    youngerInterrupted.set(tm2.isTransactionAborted());
+                } finally {
+                    tm2.rollbackCurrentTransaction();
+                }
+            }));
+            runAll(5 * BASE_WAIT_TIME, older, younger);
+
+            if (!youngerInterrupted.get()) {
+                throw new AssertionError("Thread of the wounded transaction was not interrupted");
+            }
+            expectResourceValue(r0, 1);
+            tm1.close();
+            tm2.close();
+        }
+    }
+
+    private static void abortWhileWaiting() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        List<Resource> resources = Arrays.asList(r0, r1);
+        try (LockServer server = startServer(2, DeadlockPolicy.WOUND_WAIT)) {
+            InetSocketAddress address = server.bind(loopback());
+            RemoteTransactionManager tm1 = new RemoteTransactionManager(resources, address);
+            RemoteTransactionManager tm2 = new RemoteTransactionManager(resources, address);
+            CountDownLatch olderBegan = new CountDownLatch(1);
+            CountDownLatch youngerLocked = new CountDownLatch(1);
+            CountDownLatch olderLocked = new CountDownLatch(1);
+            AtomicBoolean youngerAborted = new AtomicBoolean(false);
+            AtomicBoolean interruptLeft = new AtomicBoolean(false);
+
+            Thread older = new Thread(asRunnable(() -> {
+                tm1.startTransaction();
+                olderBegan.countDown();
+                youngerLocked.await();
+                tm1.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                olderLocked.countDown();
+                Thread.sleep(BASE_WAIT_TIME); // The younger waits for R0 by now
+                tm1.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation()); // Wounds the younger
+                tm1.commitCurrentTransaction();
+            }));
+            Thread younger = new Thread(asRunnable(() -> {
+                olderBegan.await();
+                tm2.startTransaction();
+                try {
+                    tm2.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+                    youngerLocked.countDown();
+                    olderLocked.await();
+                    tm2.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                } catch (ActiveTransactionAborted e) {
+                    youngerAborted.set(tm2.isTransactionAborted());
+                } finally {
+                    interruptLeft.set(Thread.interrupted());
+                    tm2.rollbackCurrentTransaction();
+                }
+            }));
+            runAll(10 * BASE_WAIT_TIME, older, younger);
+
+            if (!youngerAborted.get()) {
+                throw new AssertionError("Waiting request of the wounded transaction was not aborted");
+            }
+            if (interruptLeft.get()) {
+                throw new AssertionError("Abort reported by the response also interrupted the thread");
+            }
+            expectResourceValue(r0, 1);
+            expectResourceValue(r1, 1);
+            tm1.close();
+            tm2.close();
+        }
+    }
+
+    private static void consistency() throws Exception {
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            resources.add(new CountingResource(new SimpleResourceId(i)));
+        }
+        try (LockServer server = startServer(resources.size(), DeadlockPolicy.DETECTION)) {
+            InetSocketAddress address = server.bind(loopback());
+            RemoteTransactionManager[] tms = {
+                    new RemoteTransactionManager(resources, address),
+                    new RemoteTransactionManager(resources, address)
+            };
+            AtomicLong aborts = new AtomicLong(0);
+
+            Thread[] threads = new Thread[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                RemoteTransactionManager tm = tms[t % 2];
+                threads[t] = new Thread(asRunnable(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int rep = 0; rep < REPS; rep++) {
+                        boolean committed = false;
+                        while (!committed) {
+                            tm.startTransaction();
+                            try {
+                                for (int i = 0; i < 2; i++) {
+                                    ResourceId rid = resources.get(random.nextInt(resources.size())).getId();
+                                    tm.operateOnResourceInCurrentTransaction(rid, new IncrementOperation());
+                                }
+                                tm.commitCurrentTransaction();
+                                committed = true;
+                            } catch (ActiveTransactionAborted | InterruptedException e) {
+                                aborts.incrementAndGet();
+                            } finally {
+                                tm.rollbackCurrentTransaction();
+                                Thread.interrupted(); // Clears the interrupt that came with the abort
+                            }
+                        }
+                    }
+                }));
+            }
+            runAll(100 * BASE_WAIT_TIME, threads);
+
+            long sum = 0;
+            for (Resource r : resources) {
+                sum += ((CountingResource) r).getValue();
+            }
+            if (sum != 2L * THREADS * REPS) {
+                throw new AssertionError("Expected the sum " + 2L * THREADS * REPS + ", but got " + sum
+                        + " after " + aborts.get() + " aborts");
+            }
+            for (RemoteTransactionManager tm : tms) {
+                tm.close();
+            }
+        }
+    }
+
+    private static void lostConnection() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        List<Resource> resources = Arrays.asList(r0, r1);
+        LockServer server = startServer(2, DeadlockPolicy.DETECTION);
+        RemoteTransactionManager tm = new RemoteTransactionManager(resources, server.bind(loopback()));
+
+        tm.startTransaction();
+        tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+        server.close();
+        try {
+            tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+            throw new AssertionError("Operated after the connection was lost");
+        } catch (ActiveTransactionAborted e) {
+            // Expected
+        }
+        if (!tm.isTransactionAborted()) {
+            throw new AssertionError("Transaction not aborted after the connection was lost");
+        }
+        tm.rollbackCurrentTransaction();
+        expectResourceValue(r0, 0);
+        expectResourceValue(r1, 0);
+
+        try {
+            tm.commitCurrentTransaction();
+            throw new AssertionError("Committed without a transaction");
+        } catch (NoActiveTransactionException e) {
+            // Expected
+        }
+        tm.close();
+    }
+
+    private static void queuedSessions() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        List<Resource> resources = Arrays.asList(r0);
+        try (LockServer server = startServer(1, DeadlockPolicy.DETECTION, 1)) {
+            InetSocketAddress address = server.bind(loopback());
+            RemoteTransactionManager tm1 = new RemoteTransactionManager(resources, address);
+            RemoteTransactionManager tm2 = new RemoteTransactionManager(resources, address);
+            CountDownLatch locked = new CountDownLatch(1);
+            CountDownLatch secondBegan = new CountDownLatch(1);
+
+            Thread first = new Thread(asRunnable(() -> {
+                tm1.startTransaction();
+                tm1.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                locked.countDown();
+                Thread.sleep(2 * BASE_WAIT_TIME);
+                tm1.commitCurrentTransaction();
+            }));
+            Thread second = new Thread(asRunnable(() -> {
+                locked.await();
+                tm2.startTransaction(); // Waits for the only worker
+                secondBegan.countDown();
+                tm2.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                tm2.commitCurrentTransaction();
+            }));
+            first.start();
+            second.start();
+            locked.await();
+            Thread.sleep(BASE_WAIT_TIME);
+            if (secondBegan.getCount() == 0 && first.isAlive()) {
+                throw new AssertionError("Transaction began while the only worker was busy");
+            }
+            first.join(10 * BASE_WAIT_TIME);
+            second.join(10 * BASE_WAIT_TIME);
+            if (first.isAlive() || second.isAlive()) {
+                throw new AssertionError("Transactions did not finish");
+            }
+
+            expectResourceValue(r0, 2);
+            tm1.close();
+            tm2.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/* Checks transactions begun as retries of ended ones:
+ * 1) a retry keeps the start time and the priority of the previous transaction and counts retries,
+ * 2) only ended transactions of the same manager can be retried,
+ * 3) restartTransaction() retries the last transaction of the current thread,
+ * 4) a transaction aborted in a deadlock and retried wins the next deadlock with a transaction begun later.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.Transaction;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class RestartedTransactions {
+
+    private final static long BASE_WAIT_TIME = 200;
+
+    public static void main(String[] args) throws Exception {
+        retries();
+        onlyEndedTransactions();
+        restartCurrentTransaction();
+        retriedTransactionWins();
+        System.out.println("OK");
+    }
+
+    private static ImplementedTransactionManager newTM(CountingResource... resources) {
+        AtomicLong time = new AtomicLong(0); // Every transaction starts later than the previous one
+        return new ImplementedTransactionManager(Arrays.asList(resources), time::incrementAndGet);
+    }
+
+    private static void retries() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        ImplementedTransactionManager tm = newTM(r0);
+
+        Transaction first = tm.begin(3);
+        first.operate(r0.getId(), new IncrementOperation());
+        first.rollback();
+        Transaction second = tm.begin(first);
+        second.operate(r0.getId(), new IncrementOperation());
+        second.commit();
+        Transaction third = tm.begin(second);
+        third.commit();
+        Transaction fresh = tm.begin();
+        fresh.commit();
+
+        if (second.getStartTime() != first.getStartTime() || third.getStartTime() != first.getStartTime()) {
+            throw new AssertionError("Retry got a new start time");
+        }
+        if (second.getPriority() != 3 || third.getPriority() != 3) {
+            throw new AssertionError("Retry got a new priority");
+        }
+        if (first.getRetryCount() != 0 || second.getRetryCount() != 1 || third.getRetryCount() != 2) {
+            throw new AssertionError("Wrong retry counts: " + first.getRetryCount() + ", " +
+                    second.getRetryCount() + ", " + third.getRetryCount());
+        }
+        if (fresh.getStartTime() <= first.getStartTime() || fresh.getRetryCount() != 0) {
+            throw new AssertionError("New transaction inherited from a retried one");
+        }
+        expectResourceValue(r0, 1);
+    }
+
+    private static void onlyEndedTransactions() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        ImplementedTransactionManager tm = newTM(r0);
+        ImplementedTransactionManager otherTm = newTM(r0);
+
+        Transaction active = tm.begin();
+        AtomicReference<Throwable> result = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                tm.begin(active);
+            } catch (Throwable e) {
+                result.set(e);
+            }
+        });
+        other.start();
+        other.join();
+        if (!(result.get() instanceof IllegalArgumentException)) {
+            throw new AssertionError("Retried an active transaction: " + result.get());
+        }
+        active.commit();
+
+        try {
+            otherTm.begin(active);
+            throw new AssertionError("Retried a transaction of another manager");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static void restartCurrentTransaction() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        ImplementedTransactionManager tm = newTM(r0);
+
+        tm.restartTransaction(); // Nothing to retry, starts a new transaction
+        if (tm.getCurrentTransactionRetryCount() != 0) {
+            throw new AssertionError("Transaction without predecessors counted as a retry");
+        }
+        try {
+            tm.restartTransaction();
+            throw new AssertionError("Restarted an active transaction");
+        } catch (AnotherTransactionActiveException e) {
+            // Expected
+        }
+        tm.rollbackCurrentTransaction();
+        tm.restartTransaction();
+        tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+        if (tm.getCurrentTransactionRetryCount() != 1) {
+            throw new AssertionError("Expected 1 retry, got " + tm.getCurrentTransactionRetryCount());
+        }
+        tm.commitCurrentTransaction();
+        if (tm.getCurrentTransactionRetryCount() != -1) {
+            throw new AssertionError("Committed transaction is current");
+        }
+        expectResourceValue(r0, 1);
+    }
+
+    private static void retriedTransactionWins() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm = newTM(r0, r1);
+
+        // Transactions are begun in the order of arguments, so the second one is younger and loses
+        Transaction[] aborted = deadlock(r0, r1, tm::begin, tm::begin);
+        if (aborted[0] != null || aborted[1] == null) {
+            throw new AssertionError("Younger transaction was not aborted");
+        }
+        Transaction loser = aborted[1];
+        // The retry begins later than the new transaction, but it is older
+        aborted = deadlock(r0, r1, tm::begin, () -> tm.begin(loser));
+        if (aborted[0] == null || aborted[1] != null) {
+            throw new AssertionError("Retried transaction was aborted again");
+        }
+        expectResourceValue(r0, 2);
+        expectResourceValue(r1, 2);
+    }
+
+    private interface TransactionStarter {
+        Transaction begin() throws Exception;
+    }
+
+    /**
+     * Runs two transactions locking r0 and r1 in opposite orders, the first one begun before the second one.
+     *
+     * @return Aborted transactions, null for the committed ones.
+     */
+    private static Transaction[] deadlock(CountingResource r0, CountingResource r1,
+                                          TransactionStarter firstStarter, TransactionStarter secondStarter)
+            throws InterruptedException {
+        CountDownLatch firstBegun = new CountDownLatch(1);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        Transaction[] aborted = new Transaction[2];
+        Thread first = new Thread(asRunnable(() -> {
+            Transaction transaction = firstStarter.begin();
+            firstBegun.countDown();
+            lockBoth(transaction, r0, r1, bothLocked, aborted, 0);
+        }));
+        Thread second = new Thread(asRunnable(() -> {
+            firstBegun.await();
+            Transaction transaction = secondStarter.begin();
+            lockBoth(transaction, r1, r0, bothLocked, aborted, 1);
+        }));
+        runAll(10 * BASE_WAIT_TIME, first, second);
+        return aborted;
+    }
+
+    private static void lockBoth(Transaction transaction, CountingResource firstResource,
+                                 CountingResource secondResource, CountDownLatch bothLocked,
+                                 Transaction[] aborted, int index) throws Exception {
+        try {
+            transaction.operate(firstResource.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            bothLocked.await();
+            transaction.operate(secondResource.getId(), new IncrementOperation());
+            transaction.commit();
+        } catch (ActiveTransactionAborted | InterruptedException e) {
+            if (transaction.isAborted()) {
+                aborted[index] = transaction;
+            }
+        } finally {
+            transaction.rollback();
+        }
+    }
+}
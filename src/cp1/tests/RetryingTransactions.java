@@ -0,0 +1,161 @@
+/* Checks transactions run with runInTransaction():
+ * 1) threads incrementing the same resources in random orders keep aborting each other,
+ *    but every transaction is eventually committed once and metrics of retries add up,
+ * 2) an exception of an operation rolls the transaction back and is thrown without retries,
+ * 3) a transaction aborted in its last allowed attempt ends with ActiveTransactionAborted.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.RetryPolicy;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class RetryingTransactions {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static int THREADS = 8;
+    private final static int RESOURCES = 4;
+    private final static int REPS = 200;
+
+    public static void main(String[] args) throws Exception {
+        hotResources();
+        failingOperation();
+        lastAttemptAborted();
+        System.out.println("OK");
+    }
+
+    private static void hotResources() throws InterruptedException {
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < RESOURCES; i++) {
+            resources.add(new CountingResource(new SimpleResourceId(i)));
+        }
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(resources, System::nanoTime);
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(asRunnable(() -> {
+                List<Resource> order = new ArrayList<>(resources);
+                for (int i = 0; i < REPS; i++) {
+                    Collections.shuffle(order);
+                    tm.runInTransaction(transaction -> {
+                        for (Resource r : order) {
+                            transaction.operate(r.getId(), new IncrementOperation());
+                        }
+                        return null;
+                    });
+                }
+            }));
+        }
+        runAll(50 * BASE_WAIT_TIME, threads);
+
+        for (Resource r : resources) {
+            expectResourceValue((CountingResource) r, THREADS * REPS);
+        }
+        RetryPolicy policy = tm.getDefaultRetryPolicy();
+        if (policy.getAttempts() - policy.getAborts() != THREADS * REPS || policy.getFailures() != 0
+                || policy.getRetries() != policy.getAborts()) {
+            throw new AssertionError("Wrong metrics: " + policy.getAttempts() + " attempts, " +
+                    policy.getAborts() + " aborts, " + policy.getFailures() + " failures");
+        }
+        if (policy.getAborts() > 0 && policy.getBackoff(TimeUnit.NANOSECONDS) == 0) {
+            throw new AssertionError("Retried without backing off");
+        }
+    }
+
+    private static void failingOperation() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(Arrays.asList(r0, r1), System::nanoTime);
+        AtomicInteger runs = new AtomicInteger(0);
+
+        try {
+            tm.runInTransaction(transaction -> {
+                runs.incrementAndGet();
+                transaction.operate(r0.getId(), new IncrementOperation());
+                transaction.operate(r1.getId(), new FailingOpImpl());
+                return null;
+            });
+            throw new AssertionError("Failed operation was not reported");
+        } catch (ResourceOperationException e) {
+            // Expected
+        }
+        expectResourceValue(r0, 0);
+        if (runs.get() != 1 || tm.getDefaultRetryPolicy().getAttempts() != 0) {
+            throw new AssertionError("Failed transaction was retried");
+        }
+
+        long result = tm.runInTransaction(transaction -> {
+            transaction.operate(r0.getId(), new IncrementOperation());
+            return r0.getValue();
+        });
+        if (result != 1) {
+            throw new AssertionError("Expected result 1, got " + result);
+        }
+    }
+
+    private static void lastAttemptAborted() throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(Arrays.asList(r0, r1), System::nanoTime);
+        RetryPolicy policy = new RetryPolicy(1, 0, 0, TimeUnit.MILLISECONDS);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        AtomicInteger aborted = new AtomicInteger(0);
+
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < 2; t++) {
+            CountingResource first = t == 0 ? r0 : r1;
+            CountingResource second = t == 0 ? r1 : r0;
+            threads[t] = new Thread(asRunnable(() -> {
+                try {
+                    tm.runInTransaction(policy, transaction -> {
+                        transaction.operate(first.getId(), new IncrementOperation());
+                        bothLocked.countDown();
+                        bothLocked.await();
+                        transaction.operate(second.getId(), new IncrementOperation());
+                        return null;
+                    });
+                } catch (ActiveTransactionAborted e) {
+                    aborted.incrementAndGet();
+                }
+            }));
+        }
+        runAll(10 * BASE_WAIT_TIME, threads);
+
+        if (aborted.get() != 1 || policy.getFailures() != 1 || policy.getRetries() != 0) {
+            throw new AssertionError("Expected one transaction to give up, got " + aborted.get());
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class FailingOpImpl extends ResourceOperation {
+        @Override
+        public void execute(Resource r) throws ResourceOperationException {
+            throw new ResourceOperationException(r.getId(), this);
+        }
+        @Override
+        public void undo(Resource r) {
+        }
+    }
+}
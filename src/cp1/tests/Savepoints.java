@@ -0,0 +1,173 @@
+/* Checks savepoints and partial rollbacks:
+ * 1) rolling back to a savepoint after a failed operation undoes only operations performed after it,
+ *    keeps resources used before it and releases the others, and the transaction can go on,
+ * 2) rolling back the whole transaction after a partial rollback undoes the remaining operations,
+ * 3) a savepoint is invalid in other transactions and after rolling back to an earlier one,
+ *    even once the transaction has performed as many operations again.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.Savepoint;
+import cp1.solution.Transaction;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+
+public class Savepoints {
+
+    public static void main(String[] args) throws Exception {
+        recoverFromFailedStep();
+        rollbackAfterPartialRollback();
+        invalidSavepoints();
+        System.out.println("OK");
+    }
+
+    private static void recoverFromFailedStep() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        CountingResource r2 = new CountingResource(new SimpleResourceId(2));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Arrays.asList(r0, r1, r2), System::currentTimeMillis);
+
+        tm.startTransaction();
+        tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+        Savepoint savepoint = tm.setSavepointInCurrentTransaction();
+        try {
+            tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            tm.operateOnResourceInCurrentTransaction(r2.getId(), new FailingOpImpl());
+            throw new AssertionError("Failed operation was not reported");
+        } catch (ResourceOperationException e) {
+            tm.rollbackCurrentTransactionTo(savepoint);
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 0);
+        expectResourceValue(r2, 0);
+        if (!tm.isTransactionActive()) {
+            throw new AssertionError("Partial rollback ended the transaction");
+        }
+        expectLockable(tm, r0, false);
+        expectLockable(tm, r1, true);
+        expectLockable(tm, r2, true);
+
+        tm.operateOnResourceInCurrentTransaction(r2.getId(), new IncrementOperation());
+        tm.commitCurrentTransaction();
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1); // Incremented by expectLockable()
+        expectResourceValue(r2, 2);
+    }
+
+    private static void rollbackAfterPartialRollback() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Arrays.asList(r0, r1), System::currentTimeMillis);
+
+        Transaction transaction = tm.begin();
+        transaction.operate(r0.getId(), new IncrementOperation());
+        Savepoint savepoint = transaction.setSavepoint();
+        transaction.operate(r1.getId(), new IncrementOperation());
+        transaction.rollbackTo(savepoint);
+        transaction.rollbackTo(savepoint); // Nothing left to undo
+        transaction.operate(r0.getId(), new IncrementOperation());
+        expectResourceValue(r0, 2);
+        transaction.rollback();
+        expectResourceValue(r0, 0);
+        expectResourceValue(r1, 0);
+        expectLockable(tm, r0, true);
+    }
+
+    private static void invalidSavepoints() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Arrays.asList(r0), System::currentTimeMillis);
+
+        Transaction first = tm.begin();
+        Savepoint earlier = first.setSavepoint();
+        first.operate(r0.getId(), new IncrementOperation());
+        Savepoint later = first.setSavepoint();
+        first.operate(r0.getId(), new IncrementOperation());
+        first.rollbackTo(earlier);
+        try {
+            first.rollbackTo(later);
+            throw new AssertionError("Rolled back to a savepoint after an earlier one");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        first.operate(r0.getId(), new IncrementOperation());
+        first.operate(r0.getId(), new IncrementOperation());
+        try {
+            first.rollbackTo(later); // Logs are as long as when it was set again
+            throw new AssertionError("Rolled back to a savepoint after an earlier one, once operated again");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        first.rollbackTo(earlier); // Stays valid after rolling back to it
+        Savepoint again = first.setSavepoint();
+        first.operate(r0.getId(), new IncrementOperation());
+        first.rollbackTo(again);
+        first.rollbackTo(earlier);
+        first.commit();
+
+        Transaction second = tm.begin();
+        try {
+            second.rollbackTo(earlier);
+            throw new AssertionError("Rolled back to a savepoint of another transaction");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        second.commit();
+        try {
+            second.setSavepoint();
+            throw new AssertionError("Set a savepoint in a committed transaction");
+        } catch (NoActiveTransactionException e) {
+            // Expected
+        }
+        expectResourceValue(r0, 0);
+    }
+
+    /**
+     * Checks in another thread if a resource can be used without waiting, incrementing it if so.
+     */
+    private static void expectLockable(ImplementedTransactionManager tm, CountingResource r, boolean lockable)
+            throws InterruptedException {
+        AtomicBoolean locked = new AtomicBoolean(false);
+        Thread other = new Thread(() -> {
+            try {
+                tm.startTransaction();
+                locked.set(tm.tryOperateOnResourceInCurrentTransaction(r.getId(), new IncrementOperation()));
+                tm.commitCurrentTransaction();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        other.start();
+        other.join();
+        if (locked.get() != lockable) {
+            throw new AssertionError("Resource " + r.getId() + (lockable ? " is held" : " is not held"));
+        }
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    private static final class FailingOpImpl extends ResourceOperation {
+        @Override
+        public void execute(Resource r) throws ResourceOperationException {
+            throw new ResourceOperationException(r.getId(), this);
+        }
+        @Override
+        public void undo(Resource r) {
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/* Checks the sharded manager:
+ * 1) a deadlock of two transactions using resources of different shards ends with the younger one
+ *    aborted, with every DeadlockPolicy but TIMEOUT, which may abort either of them,
+ * 2) transactions using resources of all shards, aborted and retried, keep values of resources consistent,
+ * 3) unknown resources are reported and a manager without shards is rejected.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.TransactionManagerFactory;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class ShardedTransactions {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static String OLDER = "older";
+    private final static int SHARDS = 4;
+    private final static int THREADS = 8;
+    private final static int REPS = 200;
+
+    public static void main(String[] args) throws Exception {
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            if (policy != DeadlockPolicy.TIMEOUT) {
+                crossShardDeadlock(policy);
+            }
+            consistency(policy);
+        }
+        invalidUse();
+        System.out.println("OK");
+    }
+
+    private static void crossShardDeadlock(DeadlockPolicy policy) throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0)); // Shards are chosen by hash codes of ids
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        // Transaction of the OLDER thread always starts earlier
+        TransactionManager tm = TransactionManagerFactory.newShardedTM(Arrays.asList(r0, r1),
+                () -> Thread.currentThread().getName().equals(OLDER) ? 0 : 1, policy, 2);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        AtomicBoolean youngerAborted = new AtomicBoolean(false);
+
+        Thread older = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            bothLocked.await();
+            tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+            tm.commitCurrentTransaction();
+        }), OLDER);
+        Thread younger = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            try {
+                tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+                bothLocked.countDown();
+                bothLocked.await();
+                tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                tm.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                youngerAborted.set(tm.isTransactionAborted());
+            } finally {
+                tm.rollbackCurrentTransaction();
+            }
+        }));
+        runAll(10 * BASE_WAIT_TIME, older, younger);
+
+        if (!youngerAborted.get()) {
+            throw new AssertionError(policy + ": younger transaction was not aborted");
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+    }
+
+    private static void consistency(DeadlockPolicy policy) throws InterruptedException {
+        List<CountingResource> resources = new ArrayList<>();
+        for (int i = 0; i < 2 * SHARDS; i++) {
+            resources.add(new CountingResource(new SimpleResourceId(i)));
+        }
+        TransactionManager tm = TransactionManagerFactory.newShardedTM(new ArrayList<>(resources),
+                System::nanoTime, policy, SHARDS);
+        AtomicLong commits = new AtomicLong(0);
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(asRunnable(() -> {
+                for (int i = 0; i < REPS; i++) {
+                    try {
+                        tm.startTransaction();
+                        int offset = ThreadLocalRandom.current().nextInt(resources.size());
+                        for (int j = 0; j < resources.size(); j++) {
+                            CountingResource r = resources.get((offset + j) % resources.size());
+                            tm.operateOnResourceInCurrentTransaction(r.getId(), new IncrementOperation());
+                        }
+                        tm.commitCurrentTransaction();
+                        commits.incrementAndGet();
+                    } catch (ActiveTransactionAborted | InterruptedException e) {
+                        // Not retried, values must stay consistent anyway
+                    } finally {
+                        tm.rollbackCurrentTransaction();
+                        Thread.interrupted(); // Clears the interrupt that came with the abort
+                    }
+                }
+            }));
+        }
+        runAll(50 * BASE_WAIT_TIME, threads);
+
+        for (CountingResource r : resources) {
+            expectResourceValue(r, commits.get());
+        }
+    }
+
+    private static void invalidUse() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        Collection<Resource> resources = Arrays.asList(r0);
+        TransactionManager tm = TransactionManagerFactory.newShardedTM(resources, System::nanoTime,
+                DeadlockPolicy.DETECTION, SHARDS);
+        tm.startTransaction();
+        try {
+            tm.operateOnResourceInCurrentTransaction(new SimpleResourceId(1), new IncrementOperation());
+            throw new AssertionError("Operated on an unknown resource");
+        } catch (UnknownResourceIdException e) {
+            // Expected
+        }
+        try {
+            tm.startTransaction();
+            throw new AssertionError("Started a second transaction");
+        } catch (AnotherTransactionActiveException e) {
+            // Expected
+        }
+        tm.rollbackCurrentTransaction();
+
+        try {
+            TransactionManagerFactory.newShardedTM(resources, System::nanoTime, DeadlockPolicy.DETECTION, 0);
+            throw new AssertionError("Created a sharded manager without shards");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/* Checks managers sharing locks through a lock table in a memory-mapped file:
+ * 1) a deadlock of transactions of two managers ends with the younger one aborted, with every
+ *    DeadlockPolicy but TIMEOUT, which may abort either of them,
+ * 2) transactions of several processes, aborted and retried, keep values of resources in a shared file
+ *    consistent,
+ * 3) a resource held by a crashed process is released,
+ * 4) a participant slot of a process that crashed while taking it is freed,
+ * 5) a transaction begun while all participant slots are taken waits for one to be freed,
+ *    and stops waiting when interrupted if it began interruptibly,
+ * 6) with WOUND_WAIT, a wound of a transaction that has just ended neither interrupts its thread
+ *    nor aborts the next transaction taking its participant slot.
+ * Other processes run this class with arguments, as workers of the test.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.SharedMemoryTransactionManager;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+
+public class SharedMemoryTransactions {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static int RESOURCES = 4;
+    private final static int PROCESSES = 3;
+    private final static int THREADS = 2; // In each process
+    private final static int REPS = 200;
+    private final static int PARTICIPANTS = 63; // Transactions active at once in all processes
+    private final static String INCREMENT = "increment";
+    private final static String HOLD = "hold";
+    private final static String LOCKED = "locked";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            worker(args);
+            return;
+        }
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            if (policy != DeadlockPolicy.TIMEOUT) {
+                crossManagerDeadlock(policy);
+            }
+        }
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            consistency(policy);
+        }
+        crashedHolder();
+        crashedClaimant();
+        fullTable();
+        woundAfterEnd();
+        System.out.println("OK");
+    }
+
+    private static void crossManagerDeadlock(DeadlockPolicy policy) throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        List<Resource> resources = Arrays.asList(r0, r1);
+        Path file = Files.createTempFile("locks", ".bin");
+        AtomicLong time = new AtomicLong(0); // Transactions are older if they began earlier
+        // Managers stand for two processes
+        SharedMemoryTransactionManager tm1 = new SharedMemoryTransactionManager(resources, file,
+                time::incrementAndGet, policy);
+        SharedMemoryTransactionManager tm2 = new SharedMemoryTransactionManager(resources, file,
+                time::incrementAndGet, policy);
+        CountDownLatch olderBegan = new CountDownLatch(1);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        AtomicBoolean youngerAborted = new AtomicBoolean(false);
+
+        Thread older = new Thread(asRunnable(() -> {
+            tm1.startTransaction();
+            olderBegan.countDown();
+            tm1.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            bothLocked.await();
+            tm1.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+            tm1.commitCurrentTransaction();
+        }));
+        Thread younger = new Thread(asRunnable(() -> {
+            olderBegan.await();
+            tm2.startTransaction();
+            try {
+                tm2.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+                bothLocked.countDown();
+                bothLocked.await();
+                tm2.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                tm2.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                youngerAborted.set(tm2.isTransactionAborted());
+            } finally {
+                tm2.rollbackCurrentTransaction();
+            }
+        }));
+        older.start();
+        younger.start();
+        older.join(10 * BASE_WAIT_TIME);
+        younger.join(10 * BASE_WAIT_TIME);
+        tm1.close();
+        tm2.close();
+        Files.delete(file);
+        if (older.isAlive() || younger.isAlive()) {
+            throw new AssertionError(policy + ": transactions did not finish");
+        }
+
+        if (!youngerAborted.get()) {
+            throw new AssertionError(policy + ": younger transaction was not aborted");
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+    }
+
+    private static void consistency(DeadlockPolicy policy) throws Exception {
+        Path locks = Files.createTempFile("locks", ".bin");
+        Path values = Files.createTempFile("values", ".bin");
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < PROCESSES; i++) {
+            processes.add(startWorker(INCREMENT, locks.toString(), values.toString(), policy.name()));
+        }
+        for (Process process : processes) {
+            if (!process.waitFor(100 * BASE_WAIT_TIME, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+                throw new AssertionError(policy + ": worker process did not finish");
+            }
+            if (process.exitValue() != 0) {
+                throw new AssertionError(policy + ": worker process failed");
+            }
+        }
+
+        List<Resource> resources = mappedResources(values);
+        long sum = 0;
+        for (Resource r : resources) {
+            sum += ((MappedResourceImpl) r).getValue();
+        }
+        Files.delete(locks);
+        Files.delete(values);
+        if (sum != 2L * PROCESSES * THREADS * REPS) {
+            throw new AssertionError(policy + ": expected the sum " + 2L * PROCESSES * THREADS * REPS
+                    + ", but got " + sum);
+        }
+    }
+
+    private static void crashedHolder() throws Exception {
+        Path locks = Files.createTempFile("locks", ".bin");
+        Process holder = startWorker(HOLD, locks.toString());
+        BufferedReader output = new BufferedReader(new InputStreamReader(holder.getInputStream()));
+        if (!LOCKED.equals(output.readLine())) {
+            holder.destroyForcibly();
+            throw new AssertionError("Worker process did not lock the resource");
+        }
+
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        SharedMemoryTransactionManager tm = new SharedMemoryTransactionManager(Arrays.asList(r0), locks,
+                System::nanoTime, DeadlockPolicy.DETECTION);
+        holder.destroyForcibly(); // Crashes while holding the resource
+        holder.waitFor();
+        Thread waiter = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            tm.commitCurrentTransaction();
+        }));
+        waiter.start();
+        waiter.join(10 * BASE_WAIT_TIME);
+        tm.close();
+        Files.delete(locks);
+        if (waiter.isAlive()) {
+            throw new AssertionError("Resource of the crashed process was not released");
+        }
+
+        if (tm.getCleanedUpTransactions() != 1) {
+            throw new AssertionError("Expected one transaction cleaned up, but got " + tm.getCleanedUpTransactions());
+        }
+        expectResourceValue(r0, 1);
+    }
+
+    private static void crashedClaimant() throws Exception {
+        Path locks = Files.createTempFile("locks", ".bin");
+        Process claimant = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-version").redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        claimant.waitFor();
+
+        // Slot 0 of the table, after a header line, as left by a process that crashed while taking it
+        try (RandomAccessFile file = new RandomAccessFile(locks.toFile(), "rw")) {
+            MappedByteBuffer table = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2 * 64);
+            table.order(ByteOrder.nativeOrder()).putLong(64, claimant.pid() | 1L << 62);
+        }
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        SharedMemoryTransactionManager tm = new SharedMemoryTransactionManager(Arrays.asList(r0), locks,
+                System::nanoTime, DeadlockPolicy.DETECTION);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10 * BASE_WAIT_TIME);
+        while (tm.getCleanedUpTransactions() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        tm.close();
+        Files.delete(locks);
+
+        if (tm.getCleanedUpTransactions() != 1) {
+            throw new AssertionError("Slot of the crashed claimant was not freed");
+        }
+    }
+
+    private static void woundAfterEnd() throws Exception {
+        Path locks = Files.createTempFile("locks", ".bin");
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        String olderName = "older";
+        // Transactions of the older thread always start earlier
+        SharedMemoryTransactionManager tm = new SharedMemoryTransactionManager(Arrays.asList(r0), locks,
+                () -> Thread.currentThread().getName().equals(olderName) ? 0 : 1, DeadlockPolicy.WOUND_WAIT);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(5 * BASE_WAIT_TIME);
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        AtomicLong commits = new AtomicLong(0);
+        AtomicLong strayAborts = new AtomicLong(0);
+
+        Thread older = new Thread(asRunnable(() -> {
+            try {
+                while (System.nanoTime() < deadline) {
+                    tm.startTransaction();
+                    // Wounds the younger
+                    tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                    tm.commitCurrentTransaction();
+                    commits.incrementAndGet();
+                }
+            } finally {
+                stopped.set(true);
+            }
+        }), olderName);
+        Thread younger = new Thread(asRunnable(() -> {
+            while (!stopped.get()) {
+                tm.startTransaction(); // Takes the slot of the previous transaction of the thread
+                try {
+                    Thread.yield();
+                    if (tm.isTransactionAborted() || Thread.interrupted()) { // Holds nothing to be wounded for
+                        strayAborts.incrementAndGet();
+                        continue;
+                    }
+                    tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                    tm.commitCurrentTransaction();
+                    commits.incrementAndGet();
+                    if (Thread.interrupted()) { // A wound came after the check in the commit
+                        strayAborts.incrementAndGet();
+                    }
+                } catch (ActiveTransactionAborted | InterruptedException e) {
+                    if (!tm.isTransactionAborted()) {
+                        strayAborts.incrementAndGet();
+                    }
+                } finally {
+                    boolean aborted = tm.isTransactionAborted();
+                    tm.rollbackCurrentTransaction();
+                    if (aborted) {
+                        Thread.interrupted(); // Clears the interrupt that came with the abort
+                    }
+                }
+            }
+        }));
+        older.start();
+        younger.start();
+        older.join(10 * BASE_WAIT_TIME);
+        younger.join(10 * BASE_WAIT_TIME);
+        boolean finished = !older.isAlive() && !younger.isAlive();
+        tm.close();
+        Files.delete(locks);
+
+        if (!finished) {
+            throw new AssertionError("Transactions did not finish");
+        }
+        if (strayAborts.get() != 0) {
+            throw new AssertionError(strayAborts.get() + " wounds hit ended transactions or their successors");
+        }
+        expectResourceValue(r0, commits.get());
+    }
+
+    private static void fullTable() throws Exception {
+        Path locks = Files.createTempFile("locks", ".bin");
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        SharedMemoryTransactionManager tm = new SharedMemoryTransactionManager(Arrays.asList(r0), locks,
+                System::nanoTime, DeadlockPolicy.DETECTION);
+        CountDownLatch began = new CountDownLatch(PARTICIPANTS);
+        CountDownLatch end = new CountDownLatch(1);
+        CountDownLatch waiterBegan = new CountDownLatch(1);
+        AtomicBoolean interruptedWaitStopped = new AtomicBoolean(false);
+
+        Thread[] holders = new Thread[PARTICIPANTS];
+        for (int t = 0; t < PARTICIPANTS; t++) {
+            boolean first = t == 0;
+            holders[t] = new Thread(asRunnable(() -> {
+                tm.startTransaction();
+                began.countDown();
+                if (first) {
+                    end.await(); // Only the first one ends, freeing one slot
+                    tm.commitCurrentTransaction();
+                }
+            }));
+            holders[t].start();
+        }
+        began.await();
+        Thread interruptible = new Thread(asRunnable(() -> {
+            try {
+                tm.startTransactionInterruptibly();
+            } catch (InterruptedException e) {
+                interruptedWaitStopped.set(!tm.isTransactionActive());
+            }
+        }));
+        Thread waiter = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            waiterBegan.countDown();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            tm.commitCurrentTransaction();
+        }));
+        interruptible.start();
+        waiter.start();
+        Thread.sleep(BASE_WAIT_TIME);
+        boolean beganEarly = waiterBegan.getCount() == 0;
+        interruptible.interrupt();
+        interruptible.join(10 * BASE_WAIT_TIME);
+        end.countDown();
+        waiter.join(10 * BASE_WAIT_TIME);
+        boolean finished = !interruptible.isAlive() && !waiter.isAlive();
+        for (Thread t : holders) {
+            t.join(); // Transactions of ended threads keep their slots, the table file is dropped with them
+        }
+        tm.close();
+        Files.delete(locks);
+
+        if (beganEarly) {
+            throw new AssertionError("Transaction began while all participant slots were taken");
+        }
+        if (!finished) {
+            throw new AssertionError("Transactions did not finish");
+        }
+        if (!interruptedWaitStopped.get()) {
+            throw new AssertionError("Interrupted wait for a participant slot did not stop");
+        }
+        expectResourceValue(r0, 1);
+    }
+
+    private static Process startWorker(String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), SharedMemoryTransactions.class.getName()));
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    private static List<Resource> mappedResources(Path values) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(values.toFile(), "rw")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8 * RESOURCES);
+        }
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < RESOURCES; i++) {
+            resources.add(new MappedResourceImpl(new SimpleResourceId(i), buffer, i));
+        }
+        return resources;
+    }
+
+    private static void worker(String[] args) throws Exception {
+        Path locks = Paths.get(args[1]);
+        if (args[0].equals(HOLD)) {
+            CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+            SharedMemoryTransactionManager tm = new SharedMemoryTransactionManager(Arrays.asList(r0), locks,
+                    System::nanoTime, DeadlockPolicy.DETECTION);
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            System.out.println(LOCKED);
+            System.out.flush();
+            Thread.sleep(Long.MAX_VALUE);
+        }
+
+        List<Resource> resources = mappedResources(Paths.get(args[2]));
+        // Start times are comparable, as all processes run on the same host
+        SharedMemoryTransactionManager tm = new SharedMemoryTransactionManager(resources, locks,
+                System::nanoTime, DeadlockPolicy.valueOf(args[3]));
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(asRunnable(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int rep = 0; rep < REPS; rep++) {
+                    boolean committed = false;
+                    while (!committed) {
+                        tm.startTransaction();
+                        try {
+                            for (int i = 0; i < 2; i++) {
+                                ResourceId rid = resources.get(random.nextInt(RESOURCES)).getId();
+                                tm.operateOnResourceInCurrentTransaction(rid, new MappedResourceOpImpl());
+                            }
+                            tm.commitCurrentTransaction();
+                            committed = true;
+                        } catch (ActiveTransactionAborted | InterruptedException e) {
+                            // Retried
+                        } finally {
+                            tm.rollbackCurrentTransaction();
+                            Thread.interrupted(); // Clears the interrupt that came with the abort
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        tm.close();
+    }
+
+    // ---------------------------------------------------------
+    // -                                                       -
+    // -     Sample implementations of the cp1.base interfaces     -
+    // -                                                       -
+    // ---------------------------------------------------------
+
+    // Value kept in a file mapped by all processes, so that they see each other's operations
+    private static final class MappedResourceImpl extends Resource {
+        private final MappedByteBuffer values;
+        private final int index;
+        public MappedResourceImpl(ResourceId id, MappedByteBuffer values, int index) {
+            super(id);
+            this.values = values;
+            this.index = index;
+        }
+        public long getValue() {
+            return this.values.getLong(8 * this.index);
+        }
+        public void setValue(long value) {
+            this.values.putLong(8 * this.index, value);
+        }
+    }
+
+    private static final class MappedResourceOpImpl extends ResourceOperation {
+        @Override
+        public void execute(Resource r) {
+            MappedResourceImpl resource = (MappedResourceImpl)r;
+            resource.setValue(resource.getValue() + 1); // Not atomic, only locks keep updates from being lost
+        }
+        @Override
+        public void undo(Resource r) {
+            MappedResourceImpl resource = (MappedResourceImpl)r;
+            resource.setValue(resource.getValue() - 1);
+        }
+    }
+}
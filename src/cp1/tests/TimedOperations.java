@@ -0,0 +1,78 @@
+/* Checks tryOperateOnResourceInCurrentTransaction. While another transaction holds a resource:
+ * 1) the variant without a timeout fails immediately,
+ * 2) the variant with a timeout fails after the timeout,
+ * both leaving the transaction active and able to operate on other resources and commit,
+ * 3) the variant with a timeout long enough gets the resource once the other transaction ends.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+
+public class TimedOperations {
+
+    private final static long BASE_WAIT_TIME = 200;
+
+    public static void main(String[] args) throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Arrays.asList(r0, r1), System::currentTimeMillis);
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch triedOnce = new CountDownLatch(1);
+
+        Thread holder = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            locked.countDown();
+            triedOnce.await();
+            Thread.sleep(5 * BASE_WAIT_TIME);
+            tm.commitCurrentTransaction();
+        }));
+        Thread trying = new Thread(asRunnable(() -> {
+            locked.await();
+            tm.startTransaction();
+            if (tm.tryOperateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation())) {
+                throw new AssertionError("Got a resource held by other transaction");
+            }
+
+            long start = System.nanoTime();
+            if (tm.tryOperateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation(),
+                    BASE_WAIT_TIME, TimeUnit.MILLISECONDS)) {
+                throw new AssertionError("Got a resource held by other transaction");
+            }
+            if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(BASE_WAIT_TIME)) {
+                throw new AssertionError("Waited shorter than the timeout");
+            }
+            triedOnce.countDown();
+            if (!tm.isTransactionActive() || tm.isTransactionAborted()) {
+                throw new AssertionError("Failed attempts changed the transaction");
+            }
+            tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+
+            if (!tm.tryOperateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation(),
+                    20 * BASE_WAIT_TIME, TimeUnit.MILLISECONDS)) {
+                throw new AssertionError("Did not get a released resource");
+            }
+            tm.commitCurrentTransaction();
+        }));
+
+        holder.start();
+        trying.start();
+        holder.join();
+        trying.join();
+        expectResourceValue(r0, 2);
+        expectResourceValue(r1, 1);
+        System.out.println("OK");
+    }
+}
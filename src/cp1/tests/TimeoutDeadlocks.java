@@ -0,0 +1,125 @@
+/* Checks the TIMEOUT deadlock policy:
+ * 1) of two deadlocked transactions, the one waiting longer gets aborted and the other one commits,
+ *    and the abort is not counted as a false positive,
+ * 2) a transaction waiting too long for a resource held by a transaction that doesn't wait
+ *    is aborted too, and the abort is counted as a false positive.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class TimeoutDeadlocks {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static long WAIT_TIMEOUT = 2 * BASE_WAIT_TIME;
+    private final static long CHECK_INTERVAL = BASE_WAIT_TIME / 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        deadlock();
+        longHolder();
+        System.out.println("OK");
+    }
+
+    private static ImplementedTransactionManager newTM(CountingResource... resources) {
+        return new ImplementedTransactionManager(Arrays.asList(resources), System::currentTimeMillis,
+                DeadlockPolicy.TIMEOUT, CHECK_INTERVAL, TimeUnit.MILLISECONDS, WAIT_TIMEOUT);
+    }
+
+    private static void deadlock() throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        ImplementedTransactionManager tm = newTM(r0, r1);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        AtomicBoolean firstAborted = new AtomicBoolean(false);
+
+        // The first thread starts waiting earlier, so it times out first
+        Thread first = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            try {
+                tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                bothLocked.countDown();
+                bothLocked.await();
+                tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+                tm.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted e) {
+                firstAborted.set(tm.isTransactionAborted());
+            } finally {
+                tm.rollbackCurrentTransaction();
+            }
+        }));
+        Thread second = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            bothLocked.await();
+            Thread.sleep(BASE_WAIT_TIME);
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            tm.commitCurrentTransaction();
+        }));
+        runAll(10 * BASE_WAIT_TIME, first, second);
+
+        if (!firstAborted.get()) {
+            throw new AssertionError("Transaction waiting longer was not aborted");
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+        expectAborts(tm, 1, 0);
+    }
+
+    private static void longHolder() throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        ImplementedTransactionManager tm = newTM(r0);
+        CountDownLatch locked = new CountDownLatch(1);
+        AtomicBoolean waiterAborted = new AtomicBoolean(false);
+
+        Thread holder = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            locked.countDown();
+            Thread.sleep(2 * WAIT_TIMEOUT);
+            tm.commitCurrentTransaction();
+        }));
+        Thread waiter = new Thread(asRunnable(() -> {
+            locked.await();
+            tm.startTransaction();
+            try {
+                tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+                tm.commitCurrentTransaction();
+            } catch (ActiveTransactionAborted e) {
+                waiterAborted.set(tm.isTransactionAborted());
+            } finally {
+                tm.rollbackCurrentTransaction();
+            }
+        }));
+        runAll(10 * BASE_WAIT_TIME, holder, waiter);
+
+        if (!waiterAborted.get()) {
+            throw new AssertionError("Transaction waiting too long was not aborted");
+        }
+        expectResourceValue(r0, 1);
+        expectAborts(tm, 1, 1);
+    }
+
+    private static void expectAborts(ImplementedTransactionManager tm, long aborts, long falseAborts) {
+        if (tm.getTimeoutAborts() != aborts || tm.getFalseTimeoutAborts() != falseAborts) {
+            throw new AssertionError(
+                    "Expected " + aborts + " timeout aborts, " + falseAborts + " of them false, " +
+                            "but got " + tm.getTimeoutAborts() + ", " + tm.getFalseTimeoutAborts() + " false"
+            );
+        }
+    }
+}
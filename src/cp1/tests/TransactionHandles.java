@@ -0,0 +1,130 @@
+/* Checks transactions started with begin():
+ * 1) operations on the handle are committed or rolled back like with the TransactionManager methods,
+ * 2) a thread can't begin a transaction while it has one, started either way,
+ * 3) an ended handle throws NoActiveTransactionException and is not seen as the current transaction,
+ * 4) a deadlock of a handle transaction and a TransactionManager one aborts the younger one.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.Transaction;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class TransactionHandles {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static String OLDER = "older";
+
+    public static void main(String[] args) throws Exception {
+        commitAndRollback();
+        oneTransactionPerThread();
+        deadlock();
+        System.out.println("OK");
+    }
+
+    private static void commitAndRollback() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Arrays.asList(r0), System::currentTimeMillis);
+
+        Transaction transaction = tm.begin();
+        transaction.operate(r0.getId(), new IncrementOperation());
+        transaction.commit();
+        expectResourceValue(r0, 1);
+        if (transaction.isActive()) {
+            throw new AssertionError("Committed transaction is active");
+        }
+        try {
+            transaction.operate(r0.getId(), new IncrementOperation());
+            throw new AssertionError("Operated in a committed transaction");
+        } catch (NoActiveTransactionException e) {
+            // Expected
+        }
+
+        transaction = tm.begin();
+        transaction.operate(r0.getId(), new IncrementOperation());
+        transaction.operate(r0.getId(), new IncrementOperation());
+        transaction.rollback();
+        transaction.rollback(); // Does nothing
+        expectResourceValue(r0, 1);
+    }
+
+    private static void oneTransactionPerThread() throws Exception {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        ImplementedTransactionManager tm =
+                new ImplementedTransactionManager(Arrays.asList(r0), System::currentTimeMillis);
+
+        Transaction transaction = tm.begin();
+        try {
+            tm.startTransaction();
+            throw new AssertionError("Started a second transaction");
+        } catch (AnotherTransactionActiveException e) {
+            // Expected
+        }
+        if (tm.isTransactionActive()) {
+            throw new AssertionError("Transaction begun with a handle is current");
+        }
+        transaction.commit();
+
+        tm.startTransaction();
+        try {
+            tm.begin();
+            throw new AssertionError("Began a second transaction");
+        } catch (AnotherTransactionActiveException e) {
+            // Expected
+        }
+        tm.commitCurrentTransaction();
+        tm.begin().rollback();
+    }
+
+    private static void deadlock() throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        // Transaction of the OLDER thread always starts earlier
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(Arrays.asList(r0, r1),
+                () -> Thread.currentThread().getName().equals(OLDER) ? 0 : 1);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        AtomicBoolean youngerAborted = new AtomicBoolean(false);
+
+        Thread older = new Thread(asRunnable(() -> {
+            tm.startTransaction();
+            tm.operateOnResourceInCurrentTransaction(r0.getId(), new IncrementOperation());
+            bothLocked.countDown();
+            bothLocked.await();
+            tm.operateOnResourceInCurrentTransaction(r1.getId(), new IncrementOperation());
+            tm.commitCurrentTransaction();
+        }), OLDER);
+        Thread younger = new Thread(asRunnable(() -> {
+            Transaction transaction = tm.begin();
+            try {
+                transaction.operate(r1.getId(), new IncrementOperation());
+                bothLocked.countDown();
+                bothLocked.await();
+                transaction.operate(r0.getId(), new IncrementOperation());
+                transaction.commit();
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                youngerAborted.set(transaction.isAborted());
+            } finally {
+                transaction.rollback();
+            }
+        }));
+
+        runAll(10 * BASE_WAIT_TIME, older, younger);
+        if (!youngerAborted.get()) {
+            throw new AssertionError("Younger transaction was not aborted");
+        }
+        expectResourceValue(r0, 1);
+        expectResourceValue(r1, 1);
+    }
+}
@@ -0,0 +1,118 @@
+/* Checks that every built-in VictimSelector chooses the right transaction of a deadlock, with both
+ * detection policies. The older transaction has lower priority, performs fewer operations and holds
+ * more resources than the younger one, so each selector picks a victim by a different property:
+ * YOUNGEST and FEWEST_LOCKS abort the younger transaction, FEWEST_OPERATIONS and LOWEST_PRIORITY the older one.
+ */
+package cp1.tests;
+
+import cp1.base.*;
+import cp1.solution.DeadlockPolicy;
+import cp1.solution.ImplementedTransactionManager;
+import cp1.solution.Transaction;
+import cp1.solution.VictimSelector;
+import cp1.tests.helper.CountingResource;
+import cp1.tests.helper.IncrementOperation;
+import cp1.tests.helper.SimpleResourceId;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cp1.tests.helper.CountingResource.expectResourceValue;
+import static cp1.tests.helper.TestThreads.asRunnable;
+import static cp1.tests.helper.TestThreads.runAll;
+
+public class VictimSelection {
+
+    private final static long BASE_WAIT_TIME = 200;
+    private final static String OLDER = "older";
+
+    public static void main(String[] args) throws InterruptedException {
+        DeadlockPolicy[] policies = {DeadlockPolicy.DETECTION, DeadlockPolicy.BACKGROUND_DETECTION};
+        for (DeadlockPolicy policy : policies) {
+            deadlock(policy, VictimSelector.YOUNGEST, false);
+            deadlock(policy, VictimSelector.FEWEST_OPERATIONS, true);
+            deadlock(policy, VictimSelector.FEWEST_LOCKS, false);
+            deadlock(policy, VictimSelector.LOWEST_PRIORITY, true);
+        }
+        System.out.println("OK");
+    }
+
+    private static void deadlock(DeadlockPolicy policy, VictimSelector selector, boolean olderAbortedExpected)
+            throws InterruptedException {
+        CountingResource r0 = new CountingResource(new SimpleResourceId(0));
+        CountingResource r1 = new CountingResource(new SimpleResourceId(1));
+        CountingResource r2 = new CountingResource(new SimpleResourceId(2));
+        // Transaction of the OLDER thread always starts earlier
+        ImplementedTransactionManager tm = new ImplementedTransactionManager(Arrays.asList(r0, r1, r2),
+                () -> Thread.currentThread().getName().equals(OLDER) ? 0 : 1,
+                policy, BASE_WAIT_TIME / 10, TimeUnit.MILLISECONDS);
+        tm.setVictimSelector(selector);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        AtomicBoolean olderAborted = new AtomicBoolean(false);
+        AtomicBoolean youngerAborted = new AtomicBoolean(false);
+
+        // 2 operations on 2 resources, low priority
+        Thread older = new Thread(asRunnable(() -> {
+            Transaction transaction = tm.begin(1);
+            try {
+                transaction.operate(r0.getId(), new IncrementOperation());
+                transaction.operate(r2.getId(), new IncrementOperation());
+                bothLocked.countDown();
+                bothLocked.await();
+                transaction.operate(r1.getId(), new IncrementOperation());
+                transaction.commit();
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                olderAborted.set(transaction.isAborted());
+            } finally {
+                transaction.rollback();
+            }
+        }), OLDER);
+        // 3 operations on 1 resource, high priority
+        Thread younger = new Thread(asRunnable(() -> {
+            Transaction transaction = tm.begin(5);
+            try {
+                for (int i = 0; i < 3; i++) {
+                    transaction.operate(r1.getId(), new IncrementOperation());
+                }
+                bothLocked.countDown();
+                bothLocked.await();
+                transaction.operate(r0.getId(), new IncrementOperation());
+                transaction.commit();
+            } catch (ActiveTransactionAborted | InterruptedException e) {
+                youngerAborted.set(transaction.isAborted());
+            } finally {
+                transaction.rollback();
+            }
+        }));
+        runAll(10 * BASE_WAIT_TIME, older, younger);
+
+        String description = policy + " " + selector(selector) + ": ";
+        if (olderAborted.get() != olderAbortedExpected || youngerAborted.get() == olderAbortedExpected) {
+            throw new AssertionError(description + "older aborted: " + olderAborted.get() +
+                    ", younger aborted: " + youngerAborted.get());
+        }
+        if (olderAbortedExpected) {
+            expectResourceValue(r0, 1);
+            expectResourceValue(r1, 3);
+            expectResourceValue(r2, 0);
+        } else {
+            expectResourceValue(r0, 1);
+            expectResourceValue(r1, 1);
+            expectResourceValue(r2, 1);
+        }
+    }
+
+    private static String selector(VictimSelector selector) {
+        if (selector == VictimSelector.YOUNGEST) {
+            return "YOUNGEST";
+        } else if (selector == VictimSelector.FEWEST_OPERATIONS) {
+            return "FEWEST_OPERATIONS";
+        } else if (selector == VictimSelector.FEWEST_LOCKS) {
+            return "FEWEST_LOCKS";
+        } else {
+            return "LOWEST_PRIORITY";
+        }
+    }
+}
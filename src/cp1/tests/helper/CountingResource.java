@@ -0,0 +1,37 @@
+package cp1.tests.helper;
+
+import cp1.base.Resource;
+import cp1.base.ResourceId;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resource holding a number, changed by IncrementOperation and by operations of tests.
+ */
+public class CountingResource extends Resource {
+
+    private final AtomicLong value = new AtomicLong(0); // Commutative operations change it concurrently
+
+    public CountingResource(ResourceId id) {
+        super(id);
+    }
+
+    public long getValue() {
+        return value.get();
+    }
+
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+
+    public static void expectResourceValue(CountingResource r, long val) {
+        if (r.getValue() != val) {
+            throw new AssertionError(
+                    "For resource " + r.getId() +
+                            ", expected value " + val +
+                            ", but got value " + r.getValue()
+            );
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package cp1.tests.helper;
+
+import cp1.base.Resource;
+import cp1.base.ResourceOperation;
+
+public class IncrementOperation extends ResourceOperation {
+
+    @Override
+    public void execute(Resource r) {
+        ((CountingResource) r).add(1);
+    }
+
+    @Override
+    public void undo(Resource r) {
+        ((CountingResource) r).add(-1);
+    }
+
+}
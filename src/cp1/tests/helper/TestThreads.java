@@ -0,0 +1,63 @@
+package cp1.tests.helper;
+
+/**
+ * Threads of the main-program tests, which fail the test with an AssertionError
+ * if their body throws or they don't finish in time.
+ */
+public final class TestThreads {
+
+    private TestThreads() {
+    }
+
+    public static Runnable asRunnable(Body body) {
+        return () -> {
+            try {
+                body.run();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        };
+    }
+
+    /**
+     * Starts the threads and waits for each of them at most the given time.
+     */
+    public static void runAll(long timeoutMillis, Thread... threads) throws InterruptedException {
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join(timeoutMillis);
+        }
+        for (Thread t : threads) {
+            if (t.isAlive()) {
+                throw new AssertionError("Transactions did not finish");
+            }
+        }
+    }
+
+    /**
+     * Runs the body in the given number of threads, started one by one with a pause in between,
+     * so later threads start younger transactions, and waits for each of them at most the given time.
+     */
+    public static void runAll(Body body, int threadsNum, long pauseMillis, long timeoutMillis)
+            throws InterruptedException {
+        Thread[] threads = new Thread[threadsNum];
+        for (int i = 0; i < threadsNum; i++) {
+            threads[i] = new Thread(asRunnable(body));
+            threads[i].start();
+            Thread.sleep(pauseMillis);
+        }
+        for (Thread t : threads) {
+            t.join(timeoutMillis);
+            if (t.isAlive()) {
+                throw new AssertionError("Transactions did not finish");
+            }
+        }
+    }
+
+    public interface Body {
+        void run() throws Exception;
+    }
+
+}